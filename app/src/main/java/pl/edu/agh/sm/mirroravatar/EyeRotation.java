@@ -1,69 +1,48 @@
 package pl.edu.agh.sm.mirroravatar;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
-import java.util.Stack;
+import pl.edu.agh.sm.mirroravatar.gaze.FilterType;
+import pl.edu.agh.sm.mirroravatar.gaze.GazeFilter;
 
 public class EyeRotation {
-    private int stackSize = 3;
-    private Queue<Double> yaw;
-    private Queue<Double> pitch;
+    private final GazeFilter yawFilter;
+    private final GazeFilter pitchFilter;
+    private double yaw;
+    private double pitch;
 
     public EyeRotation() {
-        this.yaw = new LinkedList<>();
-        this.pitch = new LinkedList<>();
+        this(FilterType.MOVING_AVERAGE, FilterType.MOVING_AVERAGE);
+    }
+
+    public EyeRotation(FilterType yawFilterType, FilterType pitchFilterType) {
+        this(yawFilterType.create(), pitchFilterType.create());
+    }
+
+    public EyeRotation(GazeFilter yawFilter, GazeFilter pitchFilter) {
+        this.yawFilter = yawFilter;
+        this.pitchFilter = pitchFilter;
     }
 
     public void setRotation(double newYaw, double newPitch) {
-        if (yaw.size() < stackSize) {
-            yaw.add(newYaw);
-        } else {
-            yaw.poll();
-            yaw.add(newYaw);
-        }
-        if (pitch.size() < stackSize) {
-            pitch.add(newPitch);
-        } else {
-            pitch.poll();
-            pitch.add(newPitch);
-        }
+        setRotation(newYaw, newPitch, System.nanoTime());
     }
 
-    public Double getYaw() {
-        double sum = 0;
-        double num = 0;
-        for (Double r : yaw) {
-            sum += r;
-            num += 1;
-        }
-        if (num == 0) {
-            return 0.0;
-        } else {
-            return sum / num;
-        }
+    public void setRotation(double newYaw, double newPitch, long timestampNanos) {
+        yaw = yawFilter.filter(newYaw, timestampNanos);
+        pitch = pitchFilter.filter(newPitch, timestampNanos);
     }
 
-    public Double getPitch() {
-        double sum = 0;
-        double num = 0;
-        for (Double r : pitch) {
-            sum += r;
-            num += 1;
-        }
-        if (num == 0) {
-            return 0.0;
-        } else {
-            return sum / num;
-        }
+    public double getYaw() {
+        return yaw;
     }
-//
-//     public List<Double> getRotation(){
-//         List<Double> res = new ArrayList<Double>();
-//         res.add(xRotation);
-//         res.add(yRotation);
-//         return res;
-//     }
 
+    public double getPitch() {
+        return pitch;
+    }
+
+    public void reset() {
+        yawFilter.reset();
+        pitchFilter.reset();
+        yaw = 0;
+        pitch = 0;
+    }
 }
@@ -1,12 +1,11 @@
 package pl.edu.agh.sm.mirroravatar;
 
 import android.annotation.SuppressLint;
-import android.content.Context;
 import android.content.pm.PackageManager;
 import android.hardware.Camera;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
+import android.os.Looper;
 import android.util.Log;
 import android.util.Range;
 import android.view.Gravity;
@@ -15,6 +14,7 @@ import android.view.OrientationEventListener;
 import android.view.View;
 import android.widget.LinearLayout;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
@@ -28,13 +28,25 @@ import org.rajawali3d.surface.IRajawaliSurface;
 import org.rajawali3d.surface.RajawaliSurfaceView;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import pl.edu.agh.sm.mirroravatar.camera.FrameSource;
 import pl.edu.agh.sm.mirroravatar.camera.HardwareCamera;
+import pl.edu.agh.sm.mirroravatar.camera.ReplayFrameSource;
+import pl.edu.agh.sm.mirroravatar.gaze.GazeChannel;
+import pl.edu.agh.sm.mirroravatar.gaze.GazeSample;
+import pl.edu.agh.sm.mirroravatar.trace.FrameTracer;
+import pl.edu.agh.sm.mirroravatar.trace.LatencyReporter;
+import pl.edu.agh.sm.mirroravatar.tracking.CascadeDetector;
+import pl.edu.agh.sm.mirroravatar.tracking.CascadeLoader;
+import pl.edu.agh.sm.mirroravatar.tracking.FaceEyeDetector;
+import pl.edu.agh.sm.mirroravatar.tracking.TrackingOnlyDetector;
 
 import androidx.appcompat.app.ActionBar;
 import android.view.ViewGroup;
@@ -48,39 +60,38 @@ import static android.view.WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON;
 public class MainActivity extends AppCompatActivity {
     private ObjRenderer modelRenderer;
 
-    public static final int LEFT_EYE_MESSAGE_ID = 0;
-    public static final int RIGHT_EYE_MESSAGE_ID = 1;
-    public static final String EYE_CENTER_POINT_X_ID = "eyeCenterPointX";
-    public static final String EYE_CENTER_POINT_Y_ID = "eyeCenterPointY";
-    public static final String IRIS_POINT_X_ID = "irisPointX";
-    public static final String IRIS_POINT_Y_ID = "irisPointY";
-    private static final String FACE_DIR = "facelib";
-    private static final String FACE_MODEL = "haarcascade_frontalface_alt2.xml";
-    private static final String LEFT_EYE_DIR = "lefteyelib";
-    private static final String LEFT_EYE_MODEL = "haarcascade_lefteye_2splits.xml";
-    private static final String RIGHT_EYE_DIR = "righteyelib";
-    private static final String RIGHT_EYE_MODEL = "haarcascade_righteye_2splits.xml";
-    private static final int BYTE_SIZE = 4096;
+    private static final String CASCADE_DIR = "cascades";
+    private static final int CASCADE_LOADERS = 4;
+    private static final double MIN_DETECTION_RATE = 0.8;
+    private static final int EYE_REFRESH_INTERVAL = 15;
     private static final int REQUEST_CODE_PERMISSIONS = 111;
+    private static final long GAZE_TEXT_UPDATE_MS = 100;
+    private static final long LATENCY_REPORT_MS = 5000;
+    private static final String LATENCY_LOG = "latency.log";
+    private static final String EXTRA_REPLAY = "replay";
+    private static final String EXTRA_REPLAY_FAST = "replay_fast";
+    private static final String EXTRA_RECORD = "record";
+    private static final String EXTRA_MIN_DETECTION_RATE = "min_detection_rate";
     private static final String[] REQUIRED_PERMISSIONS = {
             CAMERA
     };
-    private final EyeDetectionHandler eyeDetectionHandler = new EyeDetectionHandler(this);
+    private final GazeChannel gazeChannel = new GazeChannel();
+    private final GazeSample uiGazeSample = new GazeSample();
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final FrameTracer frameTracer = new FrameTracer();
+    private LatencyReporter latencyReporter;
 
-    private HardwareCamera hardwareCamera;
+    private FrameSource frameSource;
     private LinearLayout layout;
     private TextView rotationTextView;
     private TextView leftEyeCenterPointTextView;
     private TextView leftIrisPointTextView;
     private TextView rightEyeCenterPointTextView;
     private TextView rightIrisPointTextView;
+    private TextView statsTextView;
     private OpenCvEyeTrackingProcessor eyeTrackingProcessor;
-    private CascadeClassifier faceDetector = null;
-    private CascadeClassifier leftEyeDetector = null;
-    private CascadeClassifier rightEyeDetector = null;
-    private File faceDir;
-    private File leftEyeDir;
-    private File rightEyeDir;
+    private int screenRotation = 0;
+    private boolean resumed;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -101,6 +112,13 @@ public class MainActivity extends AppCompatActivity {
         leftIrisPointTextView = findViewById(R.id.leftIrisPoint);
         rightEyeCenterPointTextView = findViewById(R.id.rightEyeCenterPoint);
         rightIrisPointTextView = findViewById(R.id.rightIrisPoint);
+        statsTextView = findViewById(R.id.stats_tv);
+        latencyReporter = new LatencyReporter(frameTracer, new File(getFilesDir(), LATENCY_LOG), LATENCY_REPORT_MS);
+        if (BuildConfig.DEBUG) {
+            statsTextView.setVisibility(View.VISIBLE);
+            latencyReporter.setStatsLineListener(statsLine ->
+                    uiHandler.post(() -> statsTextView.setText(statsLine)));
+        }
         OrientationEventListener orientationEventListener = initLocationListener();
         if (orientationEventListener.canDetectOrientation()) {
             orientationEventListener.enable();
@@ -120,8 +138,9 @@ public class MainActivity extends AppCompatActivity {
 //        addContentView(surface, new ActionBar.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT));
         layout.addView(surface);
 
-        modelRenderer = new ObjRenderer(this);
+        modelRenderer = new ObjRenderer(this, gazeChannel, frameTracer);
         surface.setSurfaceRenderer(modelRenderer);
+        gazeChannel.setListener(surface::requestRenderUpdate);
 
 //        surface.setOnTouchListener(new View.OnTouchListener() {
 //            @Override
@@ -135,35 +154,31 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public void onPause() {
         super.onPause();
-        if (hardwareCamera != null && hardwareCamera.isConnected()) {
-            hardwareCamera.disconnectCamera();
+        resumed = false;
+        uiHandler.removeCallbacks(gazeTextUpdater);
+        latencyReporter.stop();
+        if (frameSource != null && frameSource.isConnected()) {
+            frameSource.disconnectCamera();
         }
     }
 
     @Override
     public void onResume() {
         super.onResume();
+        resumed = true;
         checkOpenCV();
-        if (hardwareCamera != null && !hardwareCamera.isConnected()) {
-            hardwareCamera.connectCamera();
+        if (frameSource != null && !frameSource.isConnected()) {
+            frameSource.connectCamera();
         }
+        uiHandler.post(gazeTextUpdater);
+        latencyReporter.start();
     }
 
     @Override
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     public void onDestroy() {
         super.onDestroy();
-        if (hardwareCamera != null && hardwareCamera.isConnected()) {
-            hardwareCamera.disconnectCamera();
-        }
-        if (faceDir.exists()) {
-            faceDir.delete();
-        }
-        if (leftEyeDir.exists()) {
-            leftEyeDir.delete();
-        }
-        if (rightEyeDir.exists()) {
-            rightEyeDir.delete();
+        if (frameSource != null && frameSource.isConnected()) {
+            frameSource.disconnectCamera();
         }
     }
 
@@ -195,74 +210,92 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    @SuppressWarnings("deprecation")
+    /**
+     * Loads the cascades in parallel off the main thread, the camera is connected once they are ready.
+     * The LBP face cascade is not kept in {@code res/raw}, the build copies it there from the OpenCV SDK.
+     */
     private void callFaceDetector() {
-        loadFaceLib();
-        loadLeftEyeDetector();
-        loadRightEyeDetector();
-        eyeTrackingProcessor = new OpenCvEyeTrackingProcessor(eyeDetectionHandler, faceDetector, leftEyeDetector, rightEyeDetector);
-        hardwareCamera = new HardwareCamera(Camera.CameraInfo.CAMERA_FACING_FRONT);
-        hardwareCamera.setCameraListener(eyeTrackingProcessor);
-        hardwareCamera.connectCamera();
+        checkOpenCV();
+        ExecutorService executor = Executors.newFixedThreadPool(CASCADE_LOADERS);
+        CascadeLoader loader = new CascadeLoader(getResources(), new File(getFilesDir(), CASCADE_DIR), executor);
+        CompletableFuture<CascadeClassifier> face = loader.load(R.raw.haarcascade_frontalface_alt2);
+        CompletableFuture<CascadeClassifier> leftEye = loader.load(R.raw.haarcascade_lefteye_2splits);
+        CompletableFuture<CascadeClassifier> rightEye = loader.load(R.raw.haarcascade_righteye_2splits);
+        CompletableFuture<CascadeClassifier> lbpFace = loader.load(R.raw.lbpcascade_frontalface_improved);
+        executor.shutdown();
+        CompletableFuture.allOf(face, leftEye, rightEye, lbpFace).thenRunAsync(
+                () -> startTracking(face.join(), leftEye.join(), rightEye.join(), lbpFace.join()), uiHandler::post);
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void loadFaceLib() {
-        InputStream modelInputStream = getResources().openRawResource(R.raw.haarcascade_frontalface_alt2);
-        faceDir = getDir(FACE_DIR, Context.MODE_PRIVATE);
-        File faceModel = new File(faceDir, FACE_MODEL);
-        loadModel(modelInputStream, faceModel);
-        faceDetector = new CascadeClassifier(faceModel.getAbsolutePath());
-        if (faceDetector.empty()) {
-            faceDetector = null;
-        } else {
-            faceDir.delete();
+    @SuppressWarnings("deprecation")
+    private void startTracking(CascadeClassifier faceDetector, CascadeClassifier leftEyeDetector, CascadeClassifier rightEyeDetector,
+                               CascadeClassifier lbpFaceDetector) {
+        if (isDestroyed()) {
+            return;
         }
-    }
-
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void loadLeftEyeDetector() {
-        InputStream modelInputStream = getResources().openRawResource(R.raw.haarcascade_lefteye_2splits);
-        leftEyeDir = getDir(LEFT_EYE_DIR, Context.MODE_PRIVATE);
-        File leftEyeModel = new File(leftEyeDir, LEFT_EYE_MODEL);
-        loadModel(modelInputStream, leftEyeModel);
-        leftEyeDetector = new CascadeClassifier(leftEyeModel.getAbsolutePath());
-        if (leftEyeDetector.empty()) {
-            leftEyeDetector = null;
-        } else {
-            leftEyeDir.delete();
+        // the candidates share the classifiers, only one of them runs at a time; Haar first, the calibration
+        // checks the eyes the others find against it. A cascade that failed to load is null, the candidates
+        // needing it are left out.
+        List<FaceEyeDetector> detectors = new ArrayList<>();
+        boolean eyes = leftEyeDetector != null && rightEyeDetector != null;
+        if (faceDetector != null && eyes) {
+            CascadeDetector haar = CascadeDetector.haar(faceDetector, leftEyeDetector, rightEyeDetector);
+            detectors.add(haar);
+            detectors.add(haar.withEyeFlow(EYE_REFRESH_INTERVAL));
         }
-    }
-
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void loadRightEyeDetector() {
-        InputStream modelInputStream = getResources().openRawResource(R.raw.haarcascade_righteye_2splits);
-        rightEyeDir = getDir(RIGHT_EYE_DIR, Context.MODE_PRIVATE);
-        File rightEyeModel = new File(rightEyeDir, RIGHT_EYE_MODEL);
-        loadModel(modelInputStream, rightEyeModel);
-        rightEyeDetector = new CascadeClassifier(rightEyeModel.getAbsolutePath());
-        if (rightEyeDetector.empty()) {
-            rightEyeDetector = null;
-        } else {
-            rightEyeDir.delete();
+        if (lbpFaceDetector != null && eyes) {
+            CascadeDetector lbp = CascadeDetector.lbp(lbpFaceDetector, leftEyeDetector, rightEyeDetector);
+            detectors.add(lbp);
+            detectors.add(lbp.withEyeFlow(EYE_REFRESH_INTERVAL));
+        }
+        CascadeClassifier trackingFace = lbpFaceDetector != null ? lbpFaceDetector : faceDetector;
+        if (trackingFace != null) {
+            detectors.add(new TrackingOnlyDetector(trackingFace));
+        }
+        if (detectors.isEmpty()) {
+            Log.e("Cascades", "No face cascade could be loaded, tracking is not started");
+            Toast.makeText(this, R.string.cascades_not_loaded, Toast.LENGTH_LONG).show();
+            return;
+        }
+        double minDetectionRate = getIntent().getDoubleExtra(EXTRA_MIN_DETECTION_RATE, MIN_DETECTION_RATE);
+        eyeTrackingProcessor = new OpenCvEyeTrackingProcessor(gazeChannel, frameTracer, detectors, minDetectionRate);
+        eyeTrackingProcessor.setScreenRotation(screenRotation);
+        frameSource = createFrameSource();
+        FrameSource source = frameSource;
+        // the restart stops the pipeline threads the request comes from
+        eyeTrackingProcessor.setPreviewSizeListener(size -> uiHandler.post(() -> source.setMinPreviewSize(size)));
+        frameSource.setCameraListener(eyeTrackingProcessor);
+        frameSource.setFrameTracer(frameTracer);
+        if (resumed) {
+            frameSource.connectCamera();
         }
     }
 
-    private void loadModel(InputStream modelInputStream, File model) {
-        try {
-            if (!model.exists()) {
-                FileOutputStream modelOutputStream = new FileOutputStream(model);
-                byte[] buffer = new byte[BYTE_SIZE];
-                int bytesRead;
-                while ((bytesRead = modelInputStream.read(buffer)) != -1) {
-                    modelOutputStream.write(buffer, 0, bytesRead);
-                }
-                modelInputStream.close();
-                modelOutputStream.close();
+    /**
+     * Live front camera by default. For reproducible runs a capture can be replayed with
+     * {@code adb shell am start -n pl.edu.agh.sm.mirroravatar/.MainActivity --es replay <file> [--ez replay_fast true]},
+     * and the live camera can be recorded with {@code --es record <file>}.
+     * The detection rate the detector calibration requires can be set with {@code --ed min_detection_rate <0..1>}.
+     */
+    @SuppressWarnings("deprecation")
+    private FrameSource createFrameSource() {
+        String replayPath = getIntent().getStringExtra(EXTRA_REPLAY);
+        if (replayPath != null) {
+            boolean fast = getIntent().getBooleanExtra(EXTRA_REPLAY_FAST, false);
+            eyeTrackingProcessor.setBlockWhenBusy(fast);
+            return new ReplayFrameSource(new File(replayPath),
+                    fast ? ReplayFrameSource.Pacing.AS_FAST_AS_POSSIBLE : ReplayFrameSource.Pacing.RECORDED_RATE, true);
+        }
+        HardwareCamera camera = new HardwareCamera(Camera.CameraInfo.CAMERA_FACING_FRONT);
+        String recordPath = getIntent().getStringExtra(EXTRA_RECORD);
+        if (recordPath != null) {
+            try {
+                camera.startRecording(new File(recordPath));
+            } catch (IOException e) {
+                Log.e("Recording", "Could not start recording to " + recordPath, e);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        return camera;
     }
 
     private OrientationEventListener initLocationListener() {
@@ -271,56 +304,42 @@ public class MainActivity extends AppCompatActivity {
             public void onOrientationChanged(int orientation) {
                 if (Range.create(45, 134).contains(orientation)) {
                     rotationTextView.setText(getString(R.string.n_270_degree));
-                    eyeTrackingProcessor.setScreenRotation(270);
+                    screenRotation = 270;
                 } else if (Range.create(135, 224).contains(orientation)) {
                     rotationTextView.setText(getString(R.string.n_180_degree));
-                    eyeTrackingProcessor.setScreenRotation(0);
+                    screenRotation = 0;
                 } else if (Range.create(225, 314).contains(orientation)) {
                     rotationTextView.setText(getString(R.string.n_90_degree));
-                    eyeTrackingProcessor.setScreenRotation(90);
+                    screenRotation = 90;
                 } else {
                     rotationTextView.setText(getString(R.string.n_0_degree));
-                    eyeTrackingProcessor.setScreenRotation(180);
+                    screenRotation = 180;
+                }
+                if (eyeTrackingProcessor != null) {
+                    eyeTrackingProcessor.setScreenRotation(screenRotation);
                 }
             }
         };
     }
 
-    public static class EyeDetectionHandler extends Handler {
-
-        private final WeakReference<MainActivity> sActivity;
-
-        EyeDetectionHandler(MainActivity activity) {
-            sActivity = new WeakReference<>(activity);
-        }
-
-        @SuppressLint("SetTextI18n")
-        public void handleMessage(Message msg) {
-            MainActivity activity = sActivity.get();
-            TextView eyeCenterPointTextView;
-            TextView irisPointTextView;
-
-            Double eyeCenterPointX = Double.valueOf(msg.getData().getString(EYE_CENTER_POINT_X_ID));
-            Double eyeCenterPointY = Double.valueOf(msg.getData().getString(EYE_CENTER_POINT_Y_ID));
-            Double irisPointX = Double.valueOf(msg.getData().getString(IRIS_POINT_X_ID));
-            Double irisPointY = Double.valueOf(msg.getData().getString(IRIS_POINT_Y_ID));
-
-            if (msg.what == LEFT_EYE_MESSAGE_ID) {
-                eyeCenterPointTextView = activity.leftEyeCenterPointTextView;
-                irisPointTextView = activity.leftIrisPointTextView;
-                activity.modelRenderer.setEyesPosition(eyeCenterPointX, eyeCenterPointY, irisPointX, irisPointY);
-            } else {
-                eyeCenterPointTextView = activity.rightEyeCenterPointTextView;
-                irisPointTextView = activity.rightIrisPointTextView;
+    private final Runnable gazeTextUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (gazeChannel.readLatest(uiGazeSample)) {
+                setEyeTextViews(uiGazeSample.left, leftEyeCenterPointTextView, leftIrisPointTextView);
+                setEyeTextViews(uiGazeSample.right, rightEyeCenterPointTextView, rightIrisPointTextView);
             }
+            uiHandler.postDelayed(this, GAZE_TEXT_UPDATE_MS);
+        }
+    };
 
-
-            eyeCenterPointTextView.setText(eyeCenterPointX + ", " + eyeCenterPointY);
-            irisPointTextView.setText(irisPointX + ", " + irisPointY);
-
-//          to move eyes separately
-//            activity.modelRenderer.setEyePosition(eyeCenterPointX, eyeCenterPointY, irisPointX, irisPointY, msg.what);
+    @SuppressLint("SetTextI18n")
+    private static void setEyeTextViews(GazeSample.Eye eye, TextView eyeCenterPointTextView, TextView irisPointTextView) {
+        if (!eye.valid) {
+            return;
         }
+        eyeCenterPointTextView.setText(eye.centerX + ", " + eye.centerY);
+        irisPointTextView.setText(eye.irisX + ", " + eye.irisY);
     }
 
 }
\ No newline at end of file
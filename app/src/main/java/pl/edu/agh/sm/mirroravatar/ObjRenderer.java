@@ -8,7 +8,6 @@ import android.view.MotionEvent;
 
 import org.rajawali3d.Object3D;
 import org.rajawali3d.lights.DirectionalLight;
-import org.rajawali3d.loader.LoaderOBJ;
 import org.rajawali3d.loader.ParsingException;
 import org.rajawali3d.materials.Material;
 import org.rajawali3d.materials.methods.DiffuseMethod;
@@ -20,16 +19,52 @@ import org.rajawali3d.math.vector.Vector3;
 import org.rajawali3d.primitives.Sphere;
 import org.rajawali3d.renderer.RajawaliRenderer;
 
-import static pl.edu.agh.sm.mirroravatar.MainActivity.LEFT_EYE_MESSAGE_ID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pl.edu.agh.sm.mirroravatar.gaze.FilterType;
+import pl.edu.agh.sm.mirroravatar.gaze.GazeChannel;
+import pl.edu.agh.sm.mirroravatar.gaze.GazePredictor;
+import pl.edu.agh.sm.mirroravatar.gaze.GazeSample;
+import pl.edu.agh.sm.mirroravatar.mesh.LodSelector;
+import pl.edu.agh.sm.mirroravatar.mesh.MeshLoader;
+import pl.edu.agh.sm.mirroravatar.trace.FrameTracer;
 
 public class ObjRenderer extends RajawaliRenderer {
+    private static final double YAW_MULTIPLIER = 5.0;
+    private static final double PITCH_MULTIPLIER = 1.0;
+    private static final double FRAME_BUDGET_SECONDS = 1.0 / 30;
+    /**
+     * From the end of the draw calls to the frame on screen: the compositor latches the buffer on the next vsync
+     * and scans it out on the one after, two periods at 60 Hz.
+     */
+    private static final long PRESENT_LATENCY_NANOS = 33_000_000L;
+    private static final double[] HEAD_LOD_RATIOS = {1.0, 0.5, 0.25};
+    private static final double[] HEAD_LOD_SIZES = {600, 300, 0};
+    private static final int[] EYE_LOD_SEGMENTS = {24, 16, 10};
+    private static final double[] EYE_LOD_SIZES = {160, 60, 0};
+
+    private final GazeChannel gazeChannel;
+    private final FrameTracer tracer;
+    private final GazeSample gazeSample = new GazeSample();
+    private final Quaternion restOrientation = new Quaternion(0.8, -0.05, -0.6, 0.05);
+    private final Quaternion eyesOrientation = new Quaternion();
+    private final Quaternion axisRotation = new Quaternion();
     private Object3D headObject;
     private Object3D leftEye;
     private Object3D rightEye;
+    private final LodSelector headLodSelector = new LodSelector(HEAD_LOD_SIZES, FRAME_BUDGET_SECONDS);
+    private final LodSelector eyeLodSelector = new LodSelector(EYE_LOD_SIZES, FRAME_BUDGET_SECONDS);
+    private double headRadius;
+    private int headLevel;
+    private int eyeLevel;
     private EyeRotation eyesRotation = new EyeRotation();
-
-    private EyeRotation leftEyeRotation = new EyeRotation();
-    private EyeRotation rightEyeRotation = new EyeRotation();
+    private final AtomicReference<EyeRotation> pendingEyesRotation = new AtomicReference<>();
+    private final GazePredictor gazePredictor = new GazePredictor();
+    private boolean hasEyesPosition;
+    /**
+     * How long the scene took to render last time, what the levels of detail are chosen by.
+     */
+    private double renderSeconds;
 
     private DirectionalLight mDirectionalLight;
     Vector2 start = new Vector2();
@@ -38,20 +73,28 @@ public class ObjRenderer extends RajawaliRenderer {
     double pitch = 0;
 
 
-    public ObjRenderer(Context context) {
+    public ObjRenderer(Context context, GazeChannel gazeChannel, FrameTracer tracer) {
         super(context);
+        this.gazeChannel = gazeChannel;
+        this.tracer = tracer;
     }
 
     @Override
     protected void initScene() {
-        LoaderOBJ headParser = new LoaderOBJ(mContext.getResources(), mTextureManager, R.raw.head_obj);
+        MeshLoader meshLoader = new MeshLoader(mContext.getResources(), mContext.getPackageName(),
+                mTextureManager, mContext.getCacheDir());
+        Object3D[] headLods;
         try {
-            headParser.parse();
+            headLods = meshLoader.loadLods(R.raw.head_obj, HEAD_LOD_RATIOS);
         } catch (ParsingException e) {
-            e.printStackTrace();
+            // there is no scene without the head
+            throw new IllegalStateException("Could not load the head model", e);
+        }
+        for (Object3D lod : headLods) {
+            lod.setColor(Color.parseColor("#ecbcb4"));
         }
-        headObject = headParser.getParsedObject();
-        headObject.setColor(Color.parseColor("#ecbcb4"));
+        headRadius = headLods[0].getGeometry().getBoundingSphere().getRadius();
+        headObject = lodContainer(headLods);
         headObject.setPosition(0, 0, -25);
 
         Material eyeMaterial = new Material();
@@ -66,24 +109,18 @@ public class ObjRenderer extends RajawaliRenderer {
             Log.d("DEBUG", "TEXTURE ERROR");
         }
 
-        Quaternion eyesPosition = new Quaternion(0.8, -0.05, -0.6, 0.05);
-        System.out.println("Starting with :" + eyesPosition.toString());
-
-        leftEye = new Sphere(1, 24, 24);
-        leftEye.setMaterial(eyeMaterial);
-
-        rightEye = new Sphere(1, 24, 24);
-        rightEye.setMaterial(eyeMaterial);
+        leftEye = lodContainer(eyeLods(eyeMaterial));
+        rightEye = lodContainer(eyeLods(eyeMaterial));
 
 //        leftEye.rotate(Vector3.Axis.X, 45);
         leftEye.setScale(0.45);
         leftEye.setPosition(1.22f, 5.63f, -23.2f);
-        leftEye.setOrientation(eyesPosition);
+        leftEye.setOrientation(restOrientation);
 
 //        rightEye.rotate(Vector3.Axis.Y, 190);
         rightEye.setScale(0.45);
         rightEye.setPosition(-1.22f, 5.63f, -23.2f);
-        rightEye.setOrientation(eyesPosition);
+        rightEye.setOrientation(restOrientation);
 
 
         mDirectionalLight = new DirectionalLight(3f, 0f, -5.0f); //1f, .2f, -1.0f
@@ -98,95 +135,113 @@ public class ObjRenderer extends RajawaliRenderer {
         getCurrentCamera().setLookAt(headObject.getPosition());
     }
 
+    private static Object3D[] eyeLods(Material material) {
+        Object3D[] lods = new Object3D[EYE_LOD_SEGMENTS.length];
+        for (int i = 0; i < lods.length; i++) {
+            lods[i] = new Sphere(1, EYE_LOD_SEGMENTS[i], EYE_LOD_SEGMENTS[i]);
+            lods[i].setMaterial(material);
+        }
+        return lods;
+    }
+
+    /**
+     * Container drawing one of the levels, which all share its transformation.
+     */
+    private static Object3D lodContainer(Object3D[] levels) {
+        Object3D container = new Object3D();
+        container.isContainer(true);
+        for (int i = 0; i < levels.length; i++) {
+            levels[i].setVisible(i == 0);
+            container.addChild(levels[i]);
+        }
+        return container;
+    }
+
     @Override
     public void onOffsetsChanged(float xOffset, float yOffset, float xOffsetStep, float yOffsetStep, int xPixelOffset, int yPixelOffset) {
 
     }
 
+    /**
+     * Pulls the newest gaze sample on the GL thread, so the scene is updated at most once per frame,
+     * and shows the eyes where they are predicted to be when this frame reaches the screen.
+     */
     @Override
     protected void onRender(long elapsedRealtime, double deltaTime) {
+        EyeRotation newRotation = pendingEyesRotation.getAndSet(null);
+        if (newRotation != null) {
+            eyesRotation = newRotation;
+            gazePredictor.reset();
+        }
+        if (gazeChannel.readLatest(gazeSample) && (gazeSample.left.valid || gazeSample.right.valid)) {
+            // both eyes look the same way, either one sets the gaze
+            GazeSample.Eye eye = gazeSample.left.valid ? gazeSample.left : gazeSample.right;
+            setEyesPosition(eye.centerX, eye.centerY, eye.irisX, eye.irisY,
+                    gazeSample.timestampNanos, gazeSample.confidence);
+            hasEyesPosition = true;
+            tracer.stamp(gazeSample.frameId, FrameTracer.RENDERED);
+        }
+        if (hasEyesPosition) {
+            // what is drawn now is displayed once it is rendered and presented, deltaTime is the gap since the
+            // previous on demand frame and says nothing of when this one shows up
+            gazePredictor.predict(System.nanoTime() + (long) (renderSeconds * 1e9) + PRESENT_LATENCY_NANOS);
+            setEyesOrientation(gazePredictor.getYaw(), gazePredictor.getPitch());
+        }
+        // the frames are rendered on demand, deltaTime is the gap between gaze samples and says nothing of the cost
+        updateLevelsOfDetail(renderSeconds);
+        long renderStart = System.nanoTime();
         super.onRender(elapsedRealtime, deltaTime);
-
-//        Quaternion orientation = new Quaternion(Vector3.X, -90*pitch);
-//        orientation.multiply(new Quaternion(Vector3.Y, -90*yaw));
-//
-//        System.out.println(orientation);
-//        leftEye.setOrientation(orientation);
-//        rightEye.setOrientation(orientation);
+        renderSeconds = (System.nanoTime() - renderStart) / 1e9;
     }
 
-    public void setEyesPosition(Double eyeCenterX, Double eyeCenterY, Double irisPointX, Double irisPointY) {
-        Double distX =  irisPointX - eyeCenterX;
-        Double distY = irisPointY - eyeCenterY;
-
-        Log.d("Renderer", "dist x: " + distX.toString() + "y: " + distY.toString());
-        Double yawMultiplier = 5.0;
-        Double pitchMultiplier = 1.0;
-
-        Double yaw = yawMultiplier * distX;
-        Double pitch = pitchMultiplier * distY;
-
-        Double prevPitch = eyesRotation.getPitch();
-        Double prevYaw = eyesRotation.getYaw();
-
-        eyesRotation.setRotation(yaw, pitch);
-
-        Double yawWithOffset = eyesRotation.getYaw() - prevYaw;
-        Double pitchWithOffset = eyesRotation.getPitch() - prevPitch;
-
-        leftEye.rotate(Vector3.Axis.X, pitchWithOffset);
-        rightEye.rotate(Vector3.Axis.X, pitchWithOffset);
-
-        leftEye.rotate(Vector3.Axis.Y, yawWithOffset);
-        rightEye.rotate(Vector3.Axis.Y, yawWithOffset);
-
-
-
-//        System.out.println("X:" + currentXRotation.toString() + "Y:" + currentYRotation.toString());
+    private void updateLevelsOfDetail(double renderSeconds) {
+        int head = headLodSelector.select(projectedSize(headObject, headRadius), renderSeconds);
+        headLevel = showLevel(headObject, headLevel, head);
+        int eyes = eyeLodSelector.select(projectedSize(leftEye, leftEye.getScaleX()), renderSeconds);
+        showLevel(leftEye, eyeLevel, eyes);
+        eyeLevel = showLevel(rightEye, eyeLevel, eyes);
+    }
 
+    /**
+     * Diameter in pixels of a sphere with the given radius around the object.
+     */
+    private double projectedSize(Object3D object, double radius) {
+        double distance = object.getPosition().distanceTo(getCurrentCamera().getPosition());
+        double halfFov = Math.toRadians(getCurrentCamera().getFieldOfView()) / 2;
+        return radius * getViewportHeight() / (distance * Math.tan(halfFov));
     }
 
-    public void setEyePosition(Double eyeCenterX, Double eyeCenterY, Double irisPointX, Double irisPointY, int whichEye) {
-        Object3D eye;
-        EyeRotation currentRotation;
-        if (whichEye == LEFT_EYE_MESSAGE_ID) {
-            eye = rightEye;
-            currentRotation = rightEyeRotation;
-        } else {
-            eye = leftEye;
-            currentRotation = leftEyeRotation;
+    private static int showLevel(Object3D container, int current, int level) {
+        if (level != current) {
+            container.getChildAt(current).setVisible(false);
+            container.getChildAt(level).setVisible(true);
         }
+        return level;
+    }
 
-//        eye.rotate(Vector3.Axis.X, -currentRotation.xRotation);
-//        eye.rotate(Vector3.Axis.Y, -currentRotation.yRotation);
-
-
-        Double distX = eyeCenterX - irisPointX;
-        Double distY = eyeCenterY - irisPointY;
-
-        Double xMultiplier = 1.0;
-        Double yMultiplier = 1.0;
-
-        Double xRotation = xMultiplier * distX;
-        Double yRotation = yMultiplier * distY;
-
-        currentRotation.setRotation(xRotation, yRotation);
-        eye.rotate(Vector3.Axis.X, xRotation);
-        eye.rotate(Vector3.Axis.Y, yRotation);
-
-
-//        eye.rotate(Vector3.Axis.X, 30);
-//        try {
-//            TimeUnit.SECONDS.sleep(2);
-//        } catch (InterruptedException e) {
-//            e.printStackTrace();
-//        }
-//        eye.rotate(Vector3.Axis.X, -30);
-
+    /**
+     * Switches the smoothing filters of both eyes, applied on the next rendered frame.
+     */
+    public void setEyeFilters(FilterType yawFilter, FilterType pitchFilter) {
+        pendingEyesRotation.set(new EyeRotation(yawFilter, pitchFilter));
+    }
 
-//        System.out.println("X:" + distX.toString() + "Y:" + distY.toString());
+    private void setEyesPosition(double eyeCenterX, double eyeCenterY, double irisPointX, double irisPointY,
+                                 long timestampNanos, double confidence) {
+        double distX = irisPointX - eyeCenterX;
+        double distY = irisPointY - eyeCenterY;
 
+        eyesRotation.setRotation(YAW_MULTIPLIER * distX, PITCH_MULTIPLIER * distY, timestampNanos);
+        gazePredictor.update(eyesRotation.getYaw(), eyesRotation.getPitch(), timestampNanos, confidence);
+    }
 
+    private void setEyesOrientation(double yaw, double pitch) {
+        // absolute orientation from the rest pose, so nothing accumulates between frames
+        eyesOrientation.setAll(restOrientation);
+        eyesOrientation.multiply(axisRotation.fromAngleAxis(Vector3.Axis.X, pitch));
+        eyesOrientation.multiply(axisRotation.fromAngleAxis(Vector3.Axis.Y, yaw));
+        leftEye.setOrientation(eyesOrientation);
+        rightEye.setOrientation(eyesOrientation);
     }
 
     @Override
@@ -1,176 +1,356 @@
 package pl.edu.agh.sm.mirroravatar;
 
-import android.os.Bundle;
-import android.os.Message;
 import android.util.Log;
-import android.util.Pair;
 
-import org.opencv.core.Core;
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
-import org.opencv.core.MatOfRect;
-import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Size;
-import org.opencv.imgproc.Imgproc;
-import org.opencv.objdetect.CascadeClassifier;
-import org.opencv.objdetect.Objdetect;
 
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import pl.edu.agh.sm.mirroravatar.camera.HardwareCamera;
+import pl.edu.agh.sm.mirroravatar.gaze.GazeChannel;
+import pl.edu.agh.sm.mirroravatar.gaze.GazeSample;
+import pl.edu.agh.sm.mirroravatar.tracking.DetectorCalibration;
+import pl.edu.agh.sm.mirroravatar.tracking.EyeResult;
+import pl.edu.agh.sm.mirroravatar.tracking.EyeTracker;
+import pl.edu.agh.sm.mirroravatar.tracking.FaceEyeDetector;
+import pl.edu.agh.sm.mirroravatar.tracking.ImagePyramid;
+import pl.edu.agh.sm.mirroravatar.tracking.MatPool;
+import pl.edu.agh.sm.mirroravatar.tracking.PipelineStage;
+import pl.edu.agh.sm.mirroravatar.tracking.ResolutionGovernor;
+import pl.edu.agh.sm.mirroravatar.trace.FrameTracer;
+import pl.edu.agh.sm.mirroravatar.tracking.StageStats;
 
-import static org.opencv.core.Core.ROTATE_90_CLOCKWISE;
-import static org.opencv.core.Core.ROTATE_90_COUNTERCLOCKWISE;
-
+/**
+ * Runs eye tracking as a pipeline of stages, each on its own thread: acquire (the {@link ImagePyramid} of the frame,
+ * on the camera vision thread), face, eyes/iris and publish. A fixed ring of {@link FrameContext}s circulates between the
+ * stages, so frame N+1 can be preprocessed while frame N is still in detection, and a frame is dropped
+ * when all contexts are busy.
+ * <p>
+ * With more than one detector the first frames are used to calibrate: the face stage collects a short run of
+ * frames, measures every detector on them and keeps the fastest one that finds the eyes often enough.
+ * Nothing is published until then.
+ * <p>
+ * The detection image size follows a {@link ResolutionGovernor} fed with the time of the face detection, the only
+ * stage working on the image it sizes: the eyes are searched on the fine level of the {@link ImagePyramid}, which
+ * only shrinks with the preview, so a slow eye stage would only degrade the face detection for nothing. When the
+ * governor settles on another size for good, the {@link PreviewSizeListener} is asked for a preview to match.
+ * Published coordinates always refer to the image scaled to {@link EyeTracker#DETECTION_SIZE}, whatever size
+ * the detection ran at. Frames on which the {@link EyeTracker} skipped the face detection because nothing moved
+ * do not count for the governor.
+ */
 public class OpenCvEyeTrackingProcessor implements HardwareCamera.CameraListener {
 
-    private final MainActivity.EyeDetectionHandler eyeDetectionHandler;
-    private final CascadeClassifier faceDetector;
-    private final CascadeClassifier leftEyeDetector;
-    private final CascadeClassifier rightEyeDetector;
+    public interface PreviewSizeListener {
+        /**
+         * Called on a pipeline thread, which a camera restart would stop, so the change has to be made elsewhere.
+         */
+        void onPreviewSizeChanged(double minSize);
+    }
+
+    private static final String TAG = "EyeTrackingProcessor";
+    private static final int STATS_INTERVAL = 300;
+    private static final int FRAME_CONTEXTS = 4;
+    private static final int CALIBRATION_FRAMES = 20;
+    private static final int MAX_CALIBRATION_ATTEMPTS = 5;
+    private static final double FRAME_BUDGET_SECONDS = 1 / 30.0;
+    private static final double MIN_DETECTION_SIZE = 240;
+
+    private final GazeChannel gazeChannel;
+    private final FrameTracer tracer;
+    private final EyeTracker eyeTracker;
+    private final List<FaceEyeDetector> detectors;
+    private final DetectorCalibration calibration;
+    private final ResolutionGovernor governor =
+            new ResolutionGovernor(FRAME_BUDGET_SECONDS, EyeTracker.DETECTION_SIZE, MIN_DETECTION_SIZE,
+                    ImagePyramid.FINE_SIZE);
+    private final List<ImagePyramid> calibrationFrames = new ArrayList<>(CALIBRATION_FRAMES);
+    private boolean calibrating;
+    private int calibrationAttempts;
 
-    private Mat imageMat, grayMat;
-    private Double imageRatio;
-    private int screenRotation = 0;
+    private final List<FrameContext> contexts = new ArrayList<>(FRAME_CONTEXTS);
+    private final BlockingQueue<FrameContext> freeContexts = new ArrayBlockingQueue<>(FRAME_CONTEXTS);
+    private final BlockingQueue<FrameContext> faceQueue = new ArrayBlockingQueue<>(FRAME_CONTEXTS);
+    private final BlockingQueue<FrameContext> eyesQueue = new ArrayBlockingQueue<>(FRAME_CONTEXTS);
+    private final BlockingQueue<FrameContext> publishQueue = new ArrayBlockingQueue<>(FRAME_CONTEXTS);
+    private final StageStats acquireStats = new StageStats("Acquire");
+    private final List<PipelineStage<FrameContext>> stages = new ArrayList<>();
+    private final GazeSample gazeSample = new GazeSample();
+    private final Size imageSize = new Size();
 
-    public OpenCvEyeTrackingProcessor(MainActivity.EyeDetectionHandler eyeDetectionHandler, CascadeClassifier faceDetector, CascadeClassifier leftEyeDetector, CascadeClassifier rightEyeDetector) {
-        this.eyeDetectionHandler = eyeDetectionHandler;
-        this.faceDetector = faceDetector;
-        this.leftEyeDetector = leftEyeDetector;
-        this.rightEyeDetector = rightEyeDetector;
+    private volatile long framesDropped;
+    private volatile boolean blockWhenBusy;
+    private long framesPublished;
+    private double imageRatio;
+    private double previewSize = ImagePyramid.FINE_SIZE;
+    private volatile PreviewSizeListener previewSizeListener;
+    private volatile int screenRotation = 0;
+
+    /**
+     * @param detectors        candidate detectors, the first one is the reference the others are calibrated against
+     *                         and is used when the calibration finds no better one
+     * @param minDetectionRate fraction of the calibration frames a detector has to find both eyes in
+     */
+    public OpenCvEyeTrackingProcessor(GazeChannel gazeChannel, FrameTracer tracer, List<FaceEyeDetector> detectors, double minDetectionRate) {
+        this.gazeChannel = gazeChannel;
+        this.tracer = tracer;
+        this.detectors = new ArrayList<>(detectors);
+        this.eyeTracker = new EyeTracker(detectors.get(0));
+        this.calibration = new DetectorCalibration(minDetectionRate);
+        this.calibrating = detectors.size() > 1;
+
+        for (int i = 0; i < FRAME_CONTEXTS; i++) {
+            FrameContext context = new FrameContext();
+            contexts.add(context);
+            freeContexts.add(context);
+        }
+        stages.add(new PipelineStage<>("Face", faceQueue, eyesQueue, this::detectFace));
+        stages.add(new PipelineStage<>("Eyes", eyesQueue, publishQueue, this::detectEyes));
+        stages.add(new PipelineStage<>("Publish", publishQueue, freeContexts, this::publish));
+    }
+
+    public void setPreviewSizeListener(PreviewSizeListener listener) {
+        this.previewSizeListener = listener;
     }
 
     public void setScreenRotation(int screenRotation) {
         this.screenRotation = screenRotation;
     }
 
+    public List<StageStats> getStageStats() {
+        List<StageStats> stats = new ArrayList<>(stages.size() + 1);
+        stats.add(acquireStats);
+        for (PipelineStage<FrameContext> stage : stages) {
+            stats.add(stage.getStats());
+        }
+        return stats;
+    }
+
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * When set, a frame arriving while every context is busy waits for one instead of being dropped.
+     * Used with replayed captures to measure the pipeline throughput.
+     */
+    public void setBlockWhenBusy(boolean blockWhenBusy) {
+        this.blockWhenBusy = blockWhenBusy;
+    }
+
     @Override
     public void onCameraStarted(int width, int height) {
-        imageMat = new Mat(width, height, CvType.CV_8UC4);
-        grayMat = new Mat(width, height, CvType.CV_8UC4);
+        framesPublished = 0;
+        eyeTracker.reset();
+        for (PipelineStage<FrameContext> stage : stages) {
+            stage.start();
+        }
     }
 
     @Override
     public void onCameraStopped() {
-        imageMat.release();
-        grayMat.release();
+        boolean stopped = true;
+        for (PipelineStage<FrameContext> stage : stages) {
+            stopped &= stage.stop();
+        }
+        if (!stopped) {
+            // a stage may still be detecting, leave its Mats and cascades alone
+            Log.w(TAG, "Interrupted while stopping the pipeline, its resources are not released");
+            return;
+        }
+        faceQueue.clear();
+        eyesQueue.clear();
+        publishQueue.clear();
+        freeContexts.clear();
+        for (FrameContext context : contexts) {
+            context.pool.release();
+            context.pyramid.release();
+            freeContexts.add(context);
+        }
+        eyeTracker.release();
+        releaseCalibrationFrames();
     }
 
+    /**
+     * Acquire stage, runs on the camera vision thread while the preview buffer is valid.
+     */
     @Override
     public void onCameraFrame(HardwareCamera.CameraFrame inputFrame) {
-        imageMat = inputFrame.rgba();
-        // downsize gray for increase efficiency
-        Mat graySrc = inputFrame.gray();
-        Size imageSize = new Size(graySrc.width(), graySrc.height());
-        imageRatio = ratioTo(600, imageSize);
+        FrameContext context;
+        try {
+            context = blockWhenBusy ? freeContexts.take() : freeContexts.poll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (context == null) {
+            framesDropped++;
+            return;
+        }
+        long start = System.nanoTime();
+        // downsize gray for increase efficiency, straight from the luminance plane
+        imageSize.width = inputFrame.width();
+        imageSize.height = inputFrame.height();
+        imageRatio = EyeTracker.ratioTo(governor.getDetectionSize(), imageSize);
         // imageRatio = 1.0;
-        grayMat = getScaledImage(graySrc, imageSize);
+        context.outputScale = EyeTracker.ratioTo(EyeTracker.DETECTION_SIZE, imageSize) / imageRatio;
+        context.rotation = screenRotation;
+        context.timestampNanos = inputFrame.timestampNanos();
+        context.frameId = inputFrame.frameId();
+        context.pool.beginFrame();
+        try {
+            // only the coarse level, the fine one is scaled when the eyes are searched
+            inputFrame.buildPyramid(context.pyramid, EyeTracker.ratioTo(ImagePyramid.FINE_SIZE, imageSize), imageRatio,
+                    context.rotation);
+        } catch (RuntimeException e) {
+            context.pool.endFrame();
+            freeContexts.add(context);
+            throw e;
+        }
+        acquireStats.record(start, System.nanoTime());
+        tracer.stamp(context.frameId, FrameTracer.ACQUIRED);
+        faceQueue.add(context);
+    }
 
+    private void detectFace(FrameContext context) {
+        context.detectionNanos = 0;
+        context.hasFace = false;
+        if (calibrating) {
+            collectCalibrationFrame(context.pyramid);
+            context.hasFace = false;
+            tracer.stamp(context.frameId, FrameTracer.FACE_DETECTED);
+            return;
+        }
+        long start = System.nanoTime();
         // detect face rectangle
-        detectFace();
-    }
-
-
-    public void detectFace() {
-        MatOfRect faceDetections = new MatOfRect();
-        faceDetector.detectMultiScale(grayMat, faceDetections);
-        for (Rect faceRect : faceDetections.toArray()) {
-            detectEyes(faceRect);
-        }
-    }
-
-    private void detectEyes(Rect rect) {
-        // compute eyes area
-        Rect eyearea_right = new Rect(rect.x + rect.width / 7,
-                (int) (rect.y + (rect.height / 4.0)),
-                (rect.width - 2 * rect.width / 7) / 2, (int) (rect.height / 4.0));
-        Rect eyearea_left = new Rect(rect.x + rect.width / 7
-                + (rect.width - 2 * rect.width / 7) / 2,
-                (int) (rect.y + (rect.height / 4.0)),
-                (rect.width - 2 * rect.width / 7) / 2, (int) (rect.height / 4.0));
-
-        detectIris(eyearea_left, leftEyeDetector).ifPresent(pointPointPair ->
-                setCenterPointAndIrisTextViews(pointPointPair, MainActivity.LEFT_EYE_MESSAGE_ID));
-        detectIris(eyearea_right, rightEyeDetector).ifPresent(pointPointPair ->
-                setCenterPointAndIrisTextViews(pointPointPair, MainActivity.RIGHT_EYE_MESSAGE_ID));
-    }
-
-    private void setCenterPointAndIrisTextViews(Pair<Point, Point> eye, int eyeMessageId) {
-        Message msg = eyeDetectionHandler.obtainMessage();
-        msg.what = eyeMessageId;
-        Bundle b = new Bundle();
-        Point pseudoEyeCenter = eye.first;
-        Point iris = eye.second;
-        b.putString(MainActivity.EYE_CENTER_POINT_X_ID, String.valueOf(pseudoEyeCenter.x));
-        b.putString(MainActivity.EYE_CENTER_POINT_Y_ID, String.valueOf(pseudoEyeCenter.y));
-        b.putString(MainActivity.IRIS_POINT_X_ID, String.valueOf(iris.x));
-        b.putString(MainActivity.IRIS_POINT_Y_ID, String.valueOf(iris.y));
-        msg.setData(b);
-        eyeDetectionHandler.sendMessage(msg);
-    }
-
-    private Optional<Pair<Point, Point>> detectIris(Rect area, CascadeClassifier classifier) {
-        Mat mROI = grayMat.submat(area);
-        MatOfRect eyes = new MatOfRect();
-        classifier.detectMultiScale(mROI, eyes, 1.15, 2,
-                Objdetect.CASCADE_FIND_BIGGEST_OBJECT
-                        | Objdetect.CASCADE_SCALE_IMAGE, new Size(30, 30),
-                new Size());
-        Rect[] eyesArray = eyes.toArray();
-        if (eyesArray.length > 0) {
-            Rect eye = eyesArray[0];
-            eye.x = area.x + eye.x;
-            eye.y = area.y + eye.y;
-            Rect eye_only_rectangle = new Rect((int) eye.tl().x, (int) (eye.tl().y + eye.height * 0.4),
-                    eye.width, (int) (eye.height * 0.6));
-            Point pseudoEyeCenter = new Point(eye_only_rectangle.x + eye_only_rectangle.width / 2.0,
-                    eye_only_rectangle.y + eye_only_rectangle.height / 2.0);
-            mROI = grayMat.submat(eye_only_rectangle);
-            Core.MinMaxLocResult mmG = Core.minMaxLoc(mROI);
-            Point iris = new Point(mmG.minLoc.x + eye_only_rectangle.x, mmG.minLoc.y + eye_only_rectangle.y);
-//            Log.d("EyesDetector", iris.toString());
-            return Optional.of(new Pair<>(pseudoEyeCenter, iris));
-        }
-        return Optional.empty();
-    }
-
-    public Mat getScaledImage(Mat src, Size imageSize) {
-        Mat dst = new Mat();
-        if (!imageRatio.equals(1.0)) {
-            Size dstSize = new Size(imageSize.width * imageRatio, imageSize.height * imageRatio);
-            Imgproc.resize(src, dst, dstSize);
-        } else {
-            dst = src.clone();
-        }
-
-        switch (screenRotation) {
-            case 0:
-                Core.rotate(dst, dst, ROTATE_90_CLOCKWISE);
-                Core.flip(dst, dst, 1);
-                break;
-            case 180:
-                Core.rotate(dst, dst, ROTATE_90_COUNTERCLOCKWISE);
-                break;
-            case 270:
-                Core.flip(dst, dst, 0);
-        }
-
-        return dst;
-    }
-
-    public static Double ratioTo(double heightMax, Size src) {
-        double w = src.width;
-        double h = src.height;
-        double ratio;
-        if (w > h) {
-            if (w < heightMax) return 1.0;
-            ratio = heightMax / w;
-        } else {
-            if (h < heightMax) return 1.0;
-            ratio = heightMax / h;
-        }
-        return ratio;
+        Rect faceRect = eyeTracker.detectFace(context.pyramid.getCoarse(), context.rotation, context.pool);
+        context.hasFace = faceRect != null;
+        if (context.hasFace) {
+            context.face.x = faceRect.x;
+            context.face.y = faceRect.y;
+            context.face.width = faceRect.width;
+            context.face.height = faceRect.height;
+        }
+        if (!eyeTracker.isFaceSkipped()) {
+            context.detectionNanos = System.nanoTime() - start;
+        }
+        tracer.stamp(context.frameId, FrameTracer.FACE_DETECTED);
+    }
+
+    private void collectCalibrationFrame(ImagePyramid pyramid) {
+        ImagePyramid copy = new ImagePyramid();
+        pyramid.copyTo(copy);
+        calibrationFrames.add(copy);
+        if (calibrationFrames.size() < CALIBRATION_FRAMES) {
+            return;
+        }
+        List<DetectorCalibration.Result> results = calibration.measure(detectors, calibrationFrames);
+        releaseCalibrationFrames();
+        if (results == null) {
+            // stopped, calibrate again on the next start
+            return;
+        }
+        Log.d(TAG, "Detector calibration: " + results);
+        DetectorCalibration.Result chosen = calibration.choose(results);
+        if (chosen == null && ++calibrationAttempts < MAX_CALIBRATION_ATTEMPTS) {
+            // no face seen yet, nothing to compare
+            return;
+        }
+        FaceEyeDetector detector = chosen != null ? chosen.detector : detectors.get(0);
+        eyeTracker.setDetector(detector);
+        for (FaceEyeDetector candidate : detectors) {
+            if (candidate != detector) {
+                candidate.shutdown();
+            }
+        }
+        calibrating = false;
+        Log.i(TAG, "Using the " + detector.getName() + " detector");
+    }
+
+    private void releaseCalibrationFrames() {
+        for (ImagePyramid frame : calibrationFrames) {
+            frame.release();
+        }
+        calibrationFrames.clear();
+    }
+
+    private void detectEyes(FrameContext context) {
+        context.leftIris.clear();
+        context.rightIris.clear();
+        context.eyesReused = false;
+        if (context.hasFace) {
+            eyeTracker.detectEyes(context.pyramid, context.face, context.leftIris, context.rightIris);
+            context.eyesReused = eyeTracker.areEyesSkipped();
+        }
+        tracer.stamp(context.frameId, FrameTracer.EYES_DETECTED);
     }
 
+    private void publish(FrameContext context) {
+        try {
+            publishGaze(context);
+        } finally {
+            // closed even when publishing failed, the next frame of the context opens it again
+            context.pool.endFrame();
+        }
+        if (BuildConfig.DEBUG && ++framesPublished % STATS_INTERVAL == 0) {
+            Log.d(TAG, String.format("%s, dropped: %s", getStageStats(), framesDropped));
+            Log.d("MatPool", String.format("live mats: %s, live bytes: %s",
+                    MatPool.getLiveMats(), MatPool.getLiveBytes()));
+        }
+    }
+
+    private void publishGaze(FrameContext context) {
+        if (context.detectionNanos > 0 && governor.record(context.detectionNanos / 1e9)) {
+            Log.d(TAG, "Detection size: " + governor.getDetectionSize());
+        }
+        PreviewSizeListener listener = previewSizeListener;
+        if (governor.getPreviewSize() != previewSize && listener != null) {
+            previewSize = governor.getPreviewSize();
+            Log.d(TAG, "Preview size: " + previewSize);
+            listener.onPreviewSizeChanged(previewSize);
+        }
+        gazeSample.clear();
+        setEye(gazeSample.left, context.leftIris, context.outputScale);
+        setEye(gazeSample.right, context.rightIris, context.outputScale);
+        if (gazeSample.left.valid || gazeSample.right.valid) {
+            gazeSample.timestampNanos = context.timestampNanos;
+            gazeSample.rateConfidence(context.eyesReused);
+            gazeSample.frameId = context.frameId;
+            tracer.stamp(context.frameId, FrameTracer.PUBLISHED);
+            gazeChannel.publish(gazeSample);
+        }
+    }
+
+    private static void setEye(GazeSample.Eye eye, EyeResult result, double scale) {
+        if (result.valid) {
+            eye.set(result.centerX * scale, result.centerY * scale, result.irisX * scale, result.irisY * scale);
+        }
+    }
+
+    private static class FrameContext {
+        final MatPool pool = new MatPool();
+        final Rect face = new Rect();
+        final ImagePyramid pyramid = new ImagePyramid();
+        int rotation;
+        long timestampNanos;
+        long frameId;
+        /**
+         * From the detection image to the published coordinates.
+         */
+        double outputScale;
+        /**
+         * Time of the face detection on this frame, 0 when it did not run.
+         */
+        long detectionNanos;
+        boolean hasFace;
+        final EyeResult leftIris = new EyeResult();
+        final EyeResult rightIris = new EyeResult();
+        /**
+         * The eyes were carried over from an earlier frame by the motion gate.
+         */
+        boolean eyesReused;
+    }
 }
@@ -0,0 +1,124 @@
+package pl.edu.agh.sm.mirroravatar.camera;
+
+import android.graphics.Bitmap;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import pl.edu.agh.sm.mirroravatar.tracking.ImagePyramid;
+
+/**
+ * Wraps the preview buffer that is currently being processed. Nothing is copied on {@link #put(byte[], long, long)} -
+ * the gray plane, RGBA image and bitmap are produced lazily, only when a consumer asks for them,
+ * and the buffer is valid only until {@link HardwareCamera.CameraListener#onCameraFrame} returns.
+ */
+class CameraAccessFrame implements HardwareCamera.CameraFrame {
+    private final Mat mYuvFrameData;
+    private final Mat mGray;
+    private final Mat mRgba;
+    private final int mWidth;
+    private final int mHeight;
+    private byte[] mData;
+    private long mTimestampNanos;
+    private long mFrameId;
+    private Bitmap mCachedBitmap;
+    private boolean mYuvCopied;
+    private boolean mGrayCopied;
+    private boolean mRgbaConverted;
+    private boolean mBitmapConverted;
+
+    @Override
+    public Mat gray() {
+        if (!mGrayCopied && !mYuvCopied) {
+            mYuvFrameData.put(0, 0, mData, 0, mWidth * mHeight);
+            mGrayCopied = true;
+        }
+        return mGray;
+    }
+
+    @Override
+    public Mat rgba() {
+        if (!mRgbaConverted) {
+            if (!mYuvCopied) {
+                mYuvFrameData.put(0, 0, mData);
+                mYuvCopied = true;
+            }
+            Imgproc.cvtColor(mYuvFrameData, mRgba,
+                    Imgproc.COLOR_YUV2BGR_NV12, 4);
+            mRgbaConverted = true;
+        }
+        return mRgba;
+    }
+
+    @Override
+    public synchronized Bitmap toBitmap() {
+        if (mBitmapConverted) {
+            return mCachedBitmap;
+        }
+        if (mCachedBitmap == null) {
+            mCachedBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        }
+        Mat rgba = this.rgba();
+        Utils.matToBitmap(rgba, mCachedBitmap);
+        mBitmapConverted = true;
+        return mCachedBitmap;
+    }
+
+    @Override
+    public int width() {
+        return mWidth;
+    }
+
+    @Override
+    public int height() {
+        return mHeight;
+    }
+
+    @Override
+    public long timestampNanos() {
+        return mTimestampNanos;
+    }
+
+    @Override
+    public long frameId() {
+        return mFrameId;
+    }
+
+    @Override
+    public void buildPyramid(ImagePyramid pyramid, double fineRatio, double coarseRatio, int rotation) {
+        pyramid.build(mData, mWidth, mHeight, fineRatio, coarseRatio, rotation);
+    }
+
+    public CameraAccessFrame(Mat Yuv420sp, int width, int height) {
+        super();
+        mWidth = width;
+        mHeight = height;
+        mYuvFrameData = Yuv420sp;
+        mGray = mYuvFrameData.submat(0, mHeight, 0, mWidth);
+        mRgba = new Mat();
+    }
+
+    public synchronized void put(byte[] frame, long timestampNanos, long frameId) {
+        mData = frame;
+        mTimestampNanos = timestampNanos;
+        mFrameId = frameId;
+        invalidate();
+    }
+
+    public void release() {
+        mGray.release();
+        mYuvFrameData.release();
+        mRgba.release();
+        if (mCachedBitmap != null) {
+            mCachedBitmap.recycle();
+        }
+    }
+
+    public void invalidate() {
+        mYuvCopied = false;
+        mGrayCopied = false;
+        mRgbaConverted = false;
+        mBitmapConverted = false;
+    }
+}
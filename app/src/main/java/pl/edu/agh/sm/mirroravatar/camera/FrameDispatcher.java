@@ -0,0 +1,153 @@
+package pl.edu.agh.sm.mirroravatar.camera;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands preview buffers from the camera thread over to a dedicated vision thread.
+ * Buffers are never copied - each one is returned to the camera through the {@link BufferRecycler}
+ * once it has been processed or dropped.
+ */
+public class FrameDispatcher {
+
+    private final static String TAG = "FrameDispatcher";
+
+    public enum DropPolicy {
+        /**
+         * When the queue is full the oldest pending frame is dropped, so the consumer always gets the freshest one.
+         */
+        LATEST_FRAME_WINS,
+        /**
+         * When the queue is full the incoming frame is dropped and pending frames are processed in order.
+         */
+        BOUNDED_QUEUE
+    }
+
+    public interface FrameConsumer {
+        void onFrame(PreviewBuffer frame);
+    }
+
+    public interface BufferRecycler {
+        void recycle(PreviewBuffer buffer);
+    }
+
+    private final DropPolicy policy;
+    private final int capacity;
+    private final BlockingQueue<PreviewBuffer> pending;
+    private final FrameConsumer consumer;
+    private final BufferRecycler recycler;
+    private final AtomicLong framesDelivered = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    /**
+     * Held by {@link #offer} and while {@link #stop} clears {@link #running}, so no frame is queued after a stop.
+     * Not the instance lock, that one is held while the worker is joined and the camera thread must not wait.
+     */
+    private final Object offerLock = new Object();
+    private Thread worker;
+    private volatile boolean running;
+
+    public FrameDispatcher(DropPolicy policy, int capacity, FrameConsumer consumer, BufferRecycler recycler) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        }
+        this.policy = policy;
+        this.capacity = capacity;
+        this.pending = new ArrayBlockingQueue<>(capacity);
+        this.consumer = consumer;
+        this.recycler = recycler;
+    }
+
+    /**
+     * Number of callback buffers the camera needs so that it never starves while
+     * one frame is being processed and the queue is full.
+     */
+    public int getRingSize() {
+        return capacity + 2;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::processLoop, "VisionThread");
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        synchronized (offerLock) {
+            running = false;
+        }
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "join was interrupted");
+                Thread.currentThread().interrupt();
+            }
+            worker = null;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Called on the camera thread, never blocks.
+     */
+    public void offer(PreviewBuffer frame) {
+        synchronized (offerLock) {
+            if (!running) {
+                recycler.recycle(frame);
+                return;
+            }
+            if (policy == DropPolicy.LATEST_FRAME_WINS) {
+                while (!pending.offer(frame)) {
+                    PreviewBuffer stale = pending.poll();
+                    if (stale != null) {
+                        framesDropped.incrementAndGet();
+                        recycler.recycle(stale);
+                    }
+                }
+            } else if (!pending.offer(frame)) {
+                framesDropped.incrementAndGet();
+                recycler.recycle(frame);
+            }
+        }
+    }
+
+    private void processLoop() {
+        while (running) {
+            PreviewBuffer frame;
+            try {
+                frame = pending.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                consumer.onFrame(frame);
+                framesDelivered.incrementAndGet();
+            } finally {
+                recycler.recycle(frame);
+            }
+        }
+    }
+
+    public long getFramesDelivered() {
+        return framesDelivered.get();
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    public DropPolicy getPolicy() {
+        return policy;
+    }
+}
@@ -0,0 +1,26 @@
+package pl.edu.agh.sm.mirroravatar.camera;
+
+import pl.edu.agh.sm.mirroravatar.trace.FrameTracer;
+
+/**
+ * Something that delivers NV21 preview frames to a {@link HardwareCamera.CameraListener} -
+ * the live camera or a recorded capture.
+ */
+public interface FrameSource {
+
+    void setCameraListener(HardwareCamera.CameraListener listener);
+
+    void setFrameTracer(FrameTracer tracer);
+
+    void connectCamera();
+
+    void disconnectCamera();
+
+    boolean isConnected();
+
+    /**
+     * Longer side the preview frames should at least have. A source that can change its preview size picks the
+     * smallest one covering it, restarting the preview when that is another size than the current one.
+     */
+    void setMinPreviewSize(double minSize);
+}
@@ -9,37 +9,60 @@ import android.os.HandlerThread;
 import android.util.Log;
 
 import org.opencv.android.CameraBridgeViewBase;
-import org.opencv.android.Utils;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.imgproc.Imgproc;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Comparator;
 import java.util.List;
 
+import pl.edu.agh.sm.mirroravatar.trace.FrameTracer;
+import pl.edu.agh.sm.mirroravatar.tracking.ImagePyramid;
+import pl.edu.agh.sm.mirroravatar.tracking.ResolutionGovernor;
+
+/**
+ * Delivers the preview frames of a Camera1 device to a {@link CameraListener} through a
+ * {@link FrameDispatcher}. The preview is the smallest size covering the minimum the {@link ResolutionGovernor}
+ * asks for, {@link ImagePyramid#FINE_SIZE} until the frame time budget says otherwise.
+ */
 @SuppressWarnings("deprecation")
-public class HardwareCamera implements Camera.PreviewCallback {
+public class HardwareCamera implements Camera.PreviewCallback, FrameSource {
 
     private final static String TAG = "HardwareCamera";
+    private volatile double minPreviewSize = ImagePyramid.FINE_SIZE;
     private final int cameraIndex;
     private HardwareCamera.CameraListener mListener;
-    private Camera mCamera;
+    private volatile Camera mCamera;
     private int mFrameWidth;
     private int mFrameHeight;
     private CameraAccessFrame mCameraFrame;
     private CameraHandlerThread mThread = null;
     private SurfaceTexture texture = new SurfaceTexture(0);
-    private byte[] mBuffer;
+    private final FrameDispatcher mDispatcher;
+    private PreviewBuffer[] mBuffers = new PreviewBuffer[0];
+    private FrameTracer mTracer;
+    private final Object mRecorderLock = new Object();
+    private FrameRecorder mRecorder;
 
     public HardwareCamera(int cameraIndex) {
+        this(cameraIndex, FrameDispatcher.DropPolicy.LATEST_FRAME_WINS, 1);
+    }
+
+    public HardwareCamera(int cameraIndex, FrameDispatcher.DropPolicy dropPolicy, int queueCapacity) {
         this.cameraIndex = cameraIndex;
+        this.mDispatcher = new FrameDispatcher(dropPolicy, queueCapacity, this::processFrame, this::recycleBuffer);
     }
 
+    @Override
     public void setCameraListener(HardwareCamera.CameraListener listener) {
         mListener = listener;
     }
 
+    @Override
+    public void setFrameTracer(FrameTracer tracer) {
+        mTracer = tracer;
+    }
+
     public static Camera getCameraInstance(int facing) {
 
         Camera camera = null;
@@ -83,13 +106,7 @@ public class HardwareCamera implements Camera.PreviewCallback {
             return;
 
         Camera.Parameters params = mCamera.getParameters();
-        List<Camera.Size> sizes = params.getSupportedPreviewSizes();
-        sizes.sort(Comparator.comparing(e -> e.width, Comparator.nullsLast(Comparator.naturalOrder())));
-        Camera.Size previewSize = sizes.get(0);
-        for (Camera.Size s : sizes) {
-            if (s == null) break;
-            previewSize = s;
-        }
+        Camera.Size previewSize = choosePreviewSize(params.getSupportedPreviewSizes());
         params.setPreviewSize(previewSize.width, previewSize.height);
         mCamera.setParameters(params);
         params = mCamera.getParameters();
@@ -99,8 +116,8 @@ public class HardwareCamera implements Camera.PreviewCallback {
         int size = mFrameWidth * mFrameHeight;
         size = size * ImageFormat.getBitsPerPixel(params.getPreviewFormat()) / 8;
 
-        this.mBuffer = new byte[size];
-        Log.d(TAG, "Created callback buffer of size (bytes): " + size);
+        int ringSize = mDispatcher.getRingSize();
+        Log.d(TAG, String.format("Creating %s callback buffers of size (bytes): %s", ringSize, size));
 
         Mat mFrame = new Mat(mFrameHeight + (mFrameHeight / 2), mFrameWidth, CvType.CV_8UC1);
         mCameraFrame = new CameraAccessFrame(mFrame, mFrameWidth, mFrameHeight);
@@ -111,7 +128,12 @@ public class HardwareCamera implements Camera.PreviewCallback {
         this.texture = new SurfaceTexture(0);
         try {
             mCamera.setPreviewTexture(texture);
-            mCamera.addCallbackBuffer(mBuffer);
+            mBuffers = new PreviewBuffer[ringSize];
+            for (int i = 0; i < ringSize; i++) {
+                mBuffers[i] = new PreviewBuffer(new byte[size]);
+                mCamera.addCallbackBuffer(mBuffers[i].data);
+            }
+            mDispatcher.start();
             mCamera.setPreviewCallbackWithBuffer(this);
             mCamera.startPreview();
 
@@ -123,12 +145,93 @@ public class HardwareCamera implements Camera.PreviewCallback {
         }
     }
 
+    /**
+     * The smallest preview that still covers {@link #minPreviewSize}, the rest would be downscaled away.
+     */
+    private Camera.Size choosePreviewSize(List<Camera.Size> sizes) {
+        int[] widths = new int[sizes.size()];
+        int[] heights = new int[sizes.size()];
+        for (int i = 0; i < sizes.size(); i++) {
+            widths[i] = sizes.get(i).width;
+            heights[i] = sizes.get(i).height;
+        }
+        return sizes.get(ResolutionGovernor.choosePreviewSize(widths, heights, minPreviewSize));
+    }
+
     @Override
-    public synchronized void onPreviewFrame(byte[] frame, Camera arg1) {
-        mCameraFrame.put(frame);
+    public void onPreviewFrame(byte[] frame, Camera arg1) {
+        long timestamp = System.nanoTime();
+        for (PreviewBuffer buffer : mBuffers) {
+            if (buffer.data == frame) {
+                buffer.timestampNanos = timestamp;
+                buffer.frameId = mTracer != null ? mTracer.newFrame(timestamp) : 0;
+                mDispatcher.offer(buffer);
+                return;
+            }
+        }
+        Log.w(TAG, "Preview frame delivered in an unknown buffer");
+    }
+
+    private void processFrame(PreviewBuffer frame) {
+        if (mTracer != null) {
+            mTracer.stamp(frame.frameId, FrameTracer.DEQUEUED);
+        }
+        synchronized (mRecorderLock) {
+            if (mRecorder != null) {
+                try {
+                    mRecorder.write(frame.data, mFrameWidth, mFrameHeight, frame.timestampNanos);
+                } catch (IOException e) {
+                    Log.e(TAG, "Recording failed, stopping it", e);
+                    stopRecording();
+                }
+            }
+        }
+        mCameraFrame.put(frame.data, frame.timestampNanos, frame.frameId);
         mListener.onCameraFrame(mCameraFrame);
-        if (mCamera != null)
-            mCamera.addCallbackBuffer(mBuffer);
+    }
+
+    private void recycleBuffer(PreviewBuffer buffer) {
+        Camera camera = mCamera;
+        if (camera != null)
+            camera.addCallbackBuffer(buffer.data);
+    }
+
+    /**
+     * Starts appending every processed preview frame to {@code captureFile}, see {@link FrameRecorder}.
+     */
+    public void startRecording(File captureFile) throws IOException {
+        synchronized (mRecorderLock) {
+            stopRecording();
+            mRecorder = new FrameRecorder(captureFile);
+        }
+    }
+
+    public void stopRecording() {
+        synchronized (mRecorderLock) {
+            if (mRecorder == null) {
+                return;
+            }
+            try {
+                mRecorder.close();
+                Log.d(TAG, String.format("Recorded frames: %s in %s file(s)", mRecorder.getFramesWritten(),
+                        mRecorder.getParts()));
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close recording", e);
+            }
+            mRecorder = null;
+        }
+    }
+
+    public long getFramesDelivered() {
+        return mDispatcher.getFramesDelivered();
+    }
+
+    public long getFramesDropped() {
+        return mDispatcher.getFramesDropped();
+    }
+
+    public int getQueueDepth() {
+        return mDispatcher.getQueueDepth();
     }
 
     @SuppressWarnings("unused")
@@ -140,66 +243,27 @@ public class HardwareCamera implements Camera.PreviewCallback {
 
         @Override
         Mat gray();
-    }
-
-    private static class CameraAccessFrame implements CameraFrame {
-        private final Mat mYuvFrameData;
-        private final Mat mRgba;
-        private final int mWidth;
-        private final int mHeight;
-        private final Bitmap mCachedBitmap;
-        private boolean mRgbaConverted;
-        private boolean mBitmapConverted;
-
-        @Override
-        public Mat gray() {
-            return mYuvFrameData.submat(0, mHeight, 0, mWidth);
-        }
-
-        @Override
-        public Mat rgba() {
-            if (!mRgbaConverted) {
-                Imgproc.cvtColor(mYuvFrameData, mRgba,
-                        Imgproc.COLOR_YUV2BGR_NV12, 4);
-                mRgbaConverted = true;
-            }
-            return mRgba;
-        }
 
-        @Override
-        public synchronized Bitmap toBitmap() {
-            if (mBitmapConverted) {
-                return mCachedBitmap;
-            }
-            Mat rgba = this.rgba();
-            Utils.matToBitmap(rgba, mCachedBitmap);
-            mBitmapConverted = true;
-            return mCachedBitmap;
-        }
+        int width();
 
-        public CameraAccessFrame(Mat Yuv420sp, int width, int height) {
-            super();
-            mWidth = width;
-            mHeight = height;
-            mYuvFrameData = Yuv420sp;
-            mRgba = new Mat();
-            this.mCachedBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        }
+        int height();
 
-        public synchronized void put(byte[] frame) {
-            mYuvFrameData.put(0, 0, frame);
-            invalidate();
-        }
+        /**
+         * {@link System#nanoTime()} at which the camera delivered the frame.
+         */
+        long timestampNanos();
 
-        public void release() {
-            mRgba.release();
-            mCachedBitmap.recycle();
-        }
+        /**
+         * Id of the frame in the {@link FrameTracer}, 0 when not traced.
+         */
+        long frameId();
 
-        public void invalidate() {
-            mRgbaConverted = false;
-            mBitmapConverted = false;
-        }
+        /**
+         * Builds {@code pyramid} straight from the luminance plane of the preview buffer without materializing the
+         * full frame, oriented for the screen rotation, see {@link ImagePyramid}. The ratios are relative to the
+         * frame size.
+         */
+        void buildPyramid(ImagePyramid pyramid, double fineRatio, double coarseRatio, int rotation);
     }
 
     private static class CameraHandlerThread extends HandlerThread {
@@ -230,16 +294,20 @@ public class HardwareCamera implements Camera.PreviewCallback {
         }
     }
 
+    @Override
     public void connectCamera() {
         connectLocalCamera();
     }
 
+    @Override
     public void disconnectCamera() {
         synchronized (this) {
             if (mThread != null) {
                 mThread.interrupt();
                 mThread = null;
             }
+            mDispatcher.stop();
+            stopRecording();
             if (mCamera != null) {
                 mCamera.stopPreview();
                 mCamera.setPreviewCallback(null);
@@ -263,10 +331,30 @@ public class HardwareCamera implements Camera.PreviewCallback {
         }
     }
 
+    @Override
     public boolean isConnected() {
         return mCamera != null;
     }
 
+    /**
+     * Restarts the camera when another preview size covers {@code minSize} better, must not be called on the
+     * camera or vision thread, which the restart stops.
+     */
+    @Override
+    public synchronized void setMinPreviewSize(double minSize) {
+        minPreviewSize = minSize;
+        Camera camera = mCamera;
+        if (camera == null) {
+            return;
+        }
+        Camera.Size wanted = choosePreviewSize(camera.getParameters().getSupportedPreviewSizes());
+        if (wanted.width != mFrameWidth || wanted.height != mFrameHeight) {
+            Log.d(TAG, String.format("Restarting the preview at %sx%s", wanted.width, wanted.height));
+            disconnectCamera();
+            connectCamera();
+        }
+    }
+
     public interface CameraListener {
 
         void onCameraStarted(int width, int height);
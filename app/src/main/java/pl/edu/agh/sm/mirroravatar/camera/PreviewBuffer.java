@@ -0,0 +1,14 @@
+package pl.edu.agh.sm.mirroravatar.camera;
+
+/**
+ * Preview callback buffer together with the time its frame was delivered by the camera.
+ */
+public class PreviewBuffer {
+    public final byte[] data;
+    public long timestampNanos;
+    public long frameId;
+
+    public PreviewBuffer(byte[] data) {
+        this.data = data;
+    }
+}
@@ -0,0 +1,190 @@
+package pl.edu.agh.sm.mirroravatar.camera;
+
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import pl.edu.agh.sm.mirroravatar.trace.FrameTracer;
+
+/**
+ * Feeds frames of a capture recorded by {@link FrameRecorder} to the listener, instead of the live camera,
+ * either at the recorded rate or as fast as the listener consumes them. A replay that is not looped stops the
+ * listener itself when the capture ends, as {@link #disconnectCamera} would.
+ */
+public class ReplayFrameSource implements FrameSource {
+
+    private final static String TAG = "ReplayFrameSource";
+
+    public enum Pacing {
+        RECORDED_RATE,
+        AS_FAST_AS_POSSIBLE
+    }
+
+    private final File captureFile;
+    private final Pacing pacing;
+    private final boolean loop;
+    private HardwareCamera.CameraListener mListener;
+    private FrameTracer mTracer;
+    private Thread mThread;
+    /**
+     * Whoever clears it, the replay reaching the end or {@link #disconnectCamera}, stops the listener.
+     */
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile long framesDelivered;
+    private volatile long replayNanos;
+
+    public ReplayFrameSource(File captureFile, Pacing pacing, boolean loop) {
+        this.captureFile = captureFile;
+        this.pacing = pacing;
+        this.loop = loop;
+    }
+
+    @Override
+    public void setCameraListener(HardwareCamera.CameraListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void setFrameTracer(FrameTracer tracer) {
+        mTracer = tracer;
+    }
+
+    @Override
+    public synchronized void connectCamera() {
+        if (running.get()) {
+            return;
+        }
+        CaptureReader reader;
+        try {
+            reader = new CaptureReader(captureFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open capture " + captureFile, e);
+            return;
+        }
+        if (!reader.next()) {
+            Log.e(TAG, "Capture is empty: " + captureFile);
+            closeQuietly(reader);
+            return;
+        }
+        mListener.onCameraStarted(reader.width(), reader.height());
+        running.set(true);
+        mThread = new Thread(() -> replay(reader), "ReplayThread");
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void disconnectCamera() {
+        boolean stopping = running.getAndSet(false);
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "join was interrupted");
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+        if (stopping) {
+            mListener.onCameraStopped();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return running.get();
+    }
+
+    /**
+     * The recorded frames are replayed at the size they were captured at.
+     */
+    @Override
+    public void setMinPreviewSize(double minSize) {
+    }
+
+    public long getFramesDelivered() {
+        return framesDelivered;
+    }
+
+    /**
+     * Frames per second the listener sustained so far.
+     */
+    public double getThroughput() {
+        long nanos = replayNanos;
+        return nanos == 0 ? 0 : framesDelivered * 1e9 / nanos;
+    }
+
+    private void replay(CaptureReader reader) {
+        byte[] data = new byte[0];
+        CameraAccessFrame frame = null;
+        long firstTimestamp = reader.timestampNanos();
+        long start = System.nanoTime();
+        long paceStart = start;
+        try {
+            while (running.get()) {
+                if (frame == null || frame.width() != reader.width() || frame.height() != reader.height()) {
+                    if (frame != null) {
+                        frame.release();
+                    }
+                    Mat yuv = new Mat(reader.height() + (reader.height() / 2), reader.width(), CvType.CV_8UC1);
+                    frame = new CameraAccessFrame(yuv, reader.width(), reader.height());
+                }
+                if (data.length != reader.length()) {
+                    data = new byte[reader.length()];
+                }
+                reader.read(data);
+                if (pacing == Pacing.RECORDED_RATE) {
+                    long wait = (reader.timestampNanos() - firstTimestamp) - (System.nanoTime() - paceStart);
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+
+                long timestamp = System.nanoTime();
+                long frameId = mTracer != null ? mTracer.newFrame(timestamp) : 0;
+                frame.put(data, timestamp, frameId);
+                mListener.onCameraFrame(frame);
+                framesDelivered++;
+                replayNanos = System.nanoTime() - start;
+
+                if (!reader.next()) {
+                    if (!loop) {
+                        break;
+                    }
+                    reader.rewind();
+                    if (!reader.next()) {
+                        break;
+                    }
+                    firstTimestamp = reader.timestampNanos();
+                    paceStart = System.nanoTime();
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } finally {
+            Log.d(TAG, String.format("Replayed %s frames, %.1f fps", framesDelivered, getThroughput()));
+            if (frame != null) {
+                frame.release();
+            }
+            closeQuietly(reader);
+            if (running.compareAndSet(true, false)) {
+                // the capture ended, nobody else is going to stop the listener
+                mListener.onCameraStopped();
+            }
+        }
+    }
+
+    private static void closeQuietly(CaptureReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close capture", e);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package pl.edu.agh.sm.mirroravatar.gaze;
+
+/**
+ * Available gaze smoothing filters with their default tuning.
+ */
+public enum FilterType {
+    MOVING_AVERAGE {
+        @Override
+        public GazeFilter create() {
+            return new MovingAverageFilter(3);
+        }
+    },
+    ONE_EURO {
+        @Override
+        public GazeFilter create() {
+            return new OneEuroFilter(1.0, 0.05, 1.0);
+        }
+    },
+    KALMAN {
+        @Override
+        public GazeFilter create() {
+            return new KalmanFilter(2000, 4);
+        }
+    };
+
+    public abstract GazeFilter create();
+}
@@ -0,0 +1,103 @@
+package pl.edu.agh.sm.mirroravatar.gaze;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Single-writer seqlock holding the latest {@link GazeSample}. The tracking pipeline publishes,
+ * readers (render thread, UI) copy the newest sample out without locks or allocation.
+ * Doubles are kept as raw long bits in an {@link AtomicLongArray} so every access is ordered
+ * with respect to the sequence counter.
+ */
+public class GazeChannel {
+
+    public interface Listener {
+        void onGazePublished();
+    }
+
+    private static final int LEFT = 0;
+    private static final int RIGHT = 5;
+    private static final int VALID = 0;
+    private static final int CENTER_X = 1;
+    private static final int CENTER_Y = 2;
+    private static final int IRIS_X = 3;
+    private static final int IRIS_Y = 4;
+    private static final int TIMESTAMP = 10;
+    private static final int CONFIDENCE = 11;
+    private static final int FRAME_ID = 12;
+    private static final int FIELDS = 13;
+
+    // odd while a write is in progress, sample number is sequence / 2
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLongArray data = new AtomicLongArray(FIELDS);
+    private volatile Listener listener;
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Must only be called from one thread at a time.
+     */
+    public void publish(GazeSample sample) {
+        long seq = sequence.get();
+        sequence.set(seq + 1);
+        writeEye(LEFT, sample.left);
+        writeEye(RIGHT, sample.right);
+        data.set(TIMESTAMP, sample.timestampNanos);
+        data.set(CONFIDENCE, Double.doubleToRawLongBits(sample.confidence));
+        data.set(FRAME_ID, sample.frameId);
+        sequence.set(seq + 2);
+        Listener current = listener;
+        if (current != null) {
+            current.onGazePublished();
+        }
+    }
+
+    /**
+     * Copies the latest sample into {@code out} if it is newer than the one {@code out} already holds.
+     *
+     * @return true if {@code out} was updated
+     */
+    public boolean readLatest(GazeSample out) {
+        while (true) {
+            long before = sequence.get();
+            if (before / 2 == out.sequence) {
+                return false;
+            }
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            readEye(LEFT, out.left);
+            readEye(RIGHT, out.right);
+            out.timestampNanos = data.get(TIMESTAMP);
+            out.confidence = Double.longBitsToDouble(data.get(CONFIDENCE));
+            out.frameId = data.get(FRAME_ID);
+            if (sequence.get() == before) {
+                out.sequence = before / 2;
+                return true;
+            }
+        }
+    }
+
+    public long getSequence() {
+        return sequence.get() / 2;
+    }
+
+    private void writeEye(int offset, GazeSample.Eye eye) {
+        data.set(offset + VALID, eye.valid ? 1 : 0);
+        data.set(offset + CENTER_X, Double.doubleToRawLongBits(eye.centerX));
+        data.set(offset + CENTER_Y, Double.doubleToRawLongBits(eye.centerY));
+        data.set(offset + IRIS_X, Double.doubleToRawLongBits(eye.irisX));
+        data.set(offset + IRIS_Y, Double.doubleToRawLongBits(eye.irisY));
+    }
+
+    private void readEye(int offset, GazeSample.Eye eye) {
+        eye.valid = data.get(offset + VALID) != 0;
+        eye.centerX = Double.longBitsToDouble(data.get(offset + CENTER_X));
+        eye.centerY = Double.longBitsToDouble(data.get(offset + CENTER_Y));
+        eye.irisX = Double.longBitsToDouble(data.get(offset + IRIS_X));
+        eye.irisY = Double.longBitsToDouble(data.get(offset + IRIS_Y));
+    }
+}
@@ -0,0 +1,16 @@
+package pl.edu.agh.sm.mirroravatar.gaze;
+
+/**
+ * Smooths one gaze axis. Implementations keep primitive state only and must not allocate in {@link #filter}.
+ */
+public interface GazeFilter {
+
+    /**
+     * @param value          new raw measurement
+     * @param timestampNanos time of the measurement, monotonic
+     * @return filtered value
+     */
+    double filter(double value, long timestampNanos);
+
+    void reset();
+}
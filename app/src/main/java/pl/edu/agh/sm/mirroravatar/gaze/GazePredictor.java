@@ -0,0 +1,94 @@
+package pl.edu.agh.sm.mirroravatar.gaze;
+
+/**
+ * Extrapolates filtered yaw/pitch from the capture time of the last sample to the time the rendered frame
+ * is expected on screen, using a smoothed constant-velocity model. Extrapolation is clamped in time, speed
+ * and distance, and turned off while tracking confidence is low.
+ */
+public class GazePredictor {
+
+    private static final double VELOCITY_SMOOTHING = 0.5;
+
+    private final long maxHorizonNanos;
+    private final double maxVelocity;
+    private final double maxOffset;
+    private final double minConfidence;
+
+    private double yaw;
+    private double pitch;
+    private double yawVelocity;
+    private double pitchVelocity;
+    private double confidence;
+    private long timestampNanos;
+    private boolean initialized;
+    private double predictedYaw;
+    private double predictedPitch;
+
+    public GazePredictor() {
+        // a single eye, or two that disagree, is not trusted
+        this(100_000_000L, 300, 15, 0.6);
+    }
+
+    /**
+     * @param maxHorizonNanos longest extrapolation, motion stops there when samples stop arriving
+     * @param maxVelocity     speed limit of the motion model, in degrees per second
+     * @param maxOffset       largest allowed distance between the predicted and the last measured angle, in degrees
+     * @param minConfidence   samples with lower confidence are not extrapolated and reset the motion model
+     */
+    public GazePredictor(long maxHorizonNanos, double maxVelocity, double maxOffset, double minConfidence) {
+        this.maxHorizonNanos = maxHorizonNanos;
+        this.maxVelocity = maxVelocity;
+        this.maxOffset = maxOffset;
+        this.minConfidence = minConfidence;
+    }
+
+    public void update(double newYaw, double newPitch, long captureNanos, double sampleConfidence) {
+        if (initialized && sampleConfidence >= minConfidence && confidence >= minConfidence
+                && captureNanos > timestampNanos) {
+            double dt = (captureNanos - timestampNanos) / 1e9;
+            yawVelocity += VELOCITY_SMOOTHING * (clamp((newYaw - yaw) / dt, maxVelocity) - yawVelocity);
+            pitchVelocity += VELOCITY_SMOOTHING * (clamp((newPitch - pitch) / dt, maxVelocity) - pitchVelocity);
+        } else {
+            yawVelocity = 0;
+            pitchVelocity = 0;
+        }
+        yaw = newYaw;
+        pitch = newPitch;
+        confidence = sampleConfidence;
+        timestampNanos = captureNanos;
+        initialized = true;
+    }
+
+    /**
+     * Computes {@link #getYaw()} and {@link #getPitch()} for the given display time.
+     */
+    public void predict(long displayNanos) {
+        long horizonNanos = Math.min(displayNanos - timestampNanos, maxHorizonNanos);
+        if (!initialized || confidence < minConfidence || horizonNanos <= 0) {
+            predictedYaw = yaw;
+            predictedPitch = pitch;
+            return;
+        }
+        double horizon = horizonNanos / 1e9;
+        predictedYaw = yaw + clamp(yawVelocity * horizon, maxOffset);
+        predictedPitch = pitch + clamp(pitchVelocity * horizon, maxOffset);
+    }
+
+    public double getYaw() {
+        return predictedYaw;
+    }
+
+    public double getPitch() {
+        return predictedPitch;
+    }
+
+    public void reset() {
+        initialized = false;
+        yawVelocity = 0;
+        pitchVelocity = 0;
+    }
+
+    private static double clamp(double value, double limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+}
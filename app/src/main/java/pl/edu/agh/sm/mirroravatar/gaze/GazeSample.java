@@ -0,0 +1,91 @@
+package pl.edu.agh.sm.mirroravatar.gaze;
+
+/**
+ * Mutable holder for one tracked frame. Instances are reused by producers and consumers,
+ * so nothing is allocated per frame.
+ */
+public class GazeSample {
+
+    /**
+     * Confidence of a sample with a single eye, which nothing can be checked against.
+     */
+    static final double ONE_EYE_CONFIDENCE = 0.4;
+    /**
+     * Difference between the iris offsets of the two eyes, relative to the distance between the eyes, at which
+     * the sample is not trusted at all. Both eyes look the same way, so their offsets should agree.
+     */
+    static final double MAX_DISAGREEMENT = 0.2;
+    /**
+     * Confidence factor of a sample whose eyes were carried over from an earlier frame rather than measured.
+     */
+    static final double REUSED_FACTOR = 0.9;
+
+    public static class Eye {
+        public boolean valid;
+        public double centerX;
+        public double centerY;
+        public double irisX;
+        public double irisY;
+
+        public void set(double centerX, double centerY, double irisX, double irisY) {
+            this.valid = true;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.irisX = irisX;
+            this.irisY = irisY;
+        }
+
+        public void clear() {
+            valid = false;
+        }
+    }
+
+    public final Eye left = new Eye();
+    public final Eye right = new Eye();
+    /**
+     * {@link System#nanoTime()} at which the camera delivered the frame the sample was tracked on.
+     */
+    public long timestampNanos;
+    /**
+     * 0..1, how much the sample can be trusted, see {@link #rateConfidence}.
+     */
+    public double confidence;
+    /**
+     * Id of the source frame in the {@link pl.edu.agh.sm.mirroravatar.trace.FrameTracer}, 0 when not traced.
+     */
+    public long frameId;
+    /**
+     * Set by {@link GazeChannel}, 0 means no sample was read yet.
+     */
+    public long sequence;
+
+    /**
+     * Sets {@link #confidence} from how well the eyes agree: 0 without eyes, {@link #ONE_EYE_CONFIDENCE} with one,
+     * and with both from 1 when their iris offsets match down to 0 at {@link #MAX_DISAGREEMENT}.
+     *
+     * @param reused true when the eyes were carried over from an earlier frame
+     */
+    public void rateConfidence(boolean reused) {
+        if (left.valid && right.valid) {
+            double distance = Math.hypot(right.centerX - left.centerX, right.centerY - left.centerY);
+            double disagreement = Math.hypot(left.irisX - left.centerX - right.irisX + right.centerX,
+                    left.irisY - left.centerY - right.irisY + right.centerY) / distance;
+            confidence = distance > 0 ? Math.max(0, 1 - disagreement / MAX_DISAGREEMENT) : 0;
+        } else if (left.valid || right.valid) {
+            confidence = ONE_EYE_CONFIDENCE;
+        } else {
+            confidence = 0;
+        }
+        if (reused) {
+            confidence *= REUSED_FACTOR;
+        }
+    }
+
+    public void clear() {
+        left.clear();
+        right.clear();
+        timestampNanos = 0;
+        confidence = 0;
+        frameId = 0;
+    }
+}
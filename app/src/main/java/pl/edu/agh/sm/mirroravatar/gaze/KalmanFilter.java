@@ -0,0 +1,75 @@
+package pl.edu.agh.sm.mirroravatar.gaze;
+
+/**
+ * Constant-velocity Kalman filter over a single axis, with the state (position, velocity)
+ * and its 2x2 covariance kept in primitive fields.
+ */
+public class KalmanFilter implements GazeFilter {
+
+    private final double processNoise;
+    private final double measurementNoise;
+    private double position;
+    private double velocity;
+    private double p00, p01, p10, p11;
+    private long lastTimestampNanos;
+    private boolean initialized;
+
+    /**
+     * @param processNoise     variance of the unmodelled acceleration, higher follows the measurements faster
+     * @param measurementNoise variance of a single measurement, higher smooths more
+     */
+    public KalmanFilter(double processNoise, double measurementNoise) {
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+    }
+
+    @Override
+    public double filter(double measurement, long timestampNanos) {
+        if (!initialized) {
+            position = measurement;
+            velocity = 0;
+            p00 = measurementNoise;
+            p01 = p10 = 0;
+            p11 = measurementNoise;
+            lastTimestampNanos = timestampNanos;
+            initialized = true;
+            return position;
+        }
+        double dt = Math.max(timestampNanos - lastTimestampNanos, 0) / 1e9;
+        lastTimestampNanos = Math.max(lastTimestampNanos, timestampNanos);
+
+        // predict
+        position += velocity * dt;
+        double dt2 = dt * dt;
+        double q = processNoise;
+        double n00 = p00 + dt * (p10 + p01) + dt2 * p11 + q * dt2 * dt2 / 4;
+        double n01 = p01 + dt * p11 + q * dt2 * dt / 2;
+        double n10 = p10 + dt * p11 + q * dt2 * dt / 2;
+        double n11 = p11 + q * dt2;
+
+        // update with the position measurement
+        double s = n00 + measurementNoise;
+        double k0 = n00 / s;
+        double k1 = n10 / s;
+        double residual = measurement - position;
+        position += k0 * residual;
+        velocity += k1 * residual;
+        p00 = (1 - k0) * n00;
+        p01 = (1 - k0) * n01;
+        p10 = n10 - k1 * n00;
+        p11 = n11 - k1 * n01;
+        return position;
+    }
+
+    /**
+     * Velocity estimated by the last update, in units per second.
+     */
+    public double getVelocity() {
+        return velocity;
+    }
+
+    @Override
+    public void reset() {
+        initialized = false;
+    }
+}
@@ -0,0 +1,39 @@
+package pl.edu.agh.sm.mirroravatar.gaze;
+
+/**
+ * Mean of the last {@code size} samples, kept in a primitive ring buffer with a running sum.
+ */
+public class MovingAverageFilter implements GazeFilter {
+
+    private final double[] samples;
+    private int next;
+    private int count;
+    private double sum;
+
+    public MovingAverageFilter(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Window size must be positive: " + size);
+        }
+        samples = new double[size];
+    }
+
+    @Override
+    public double filter(double value, long timestampNanos) {
+        if (count == samples.length) {
+            sum -= samples[next];
+        } else {
+            count++;
+        }
+        samples[next] = value;
+        sum += value;
+        next = (next + 1) % samples.length;
+        return sum / count;
+    }
+
+    @Override
+    public void reset() {
+        next = 0;
+        count = 0;
+        sum = 0;
+    }
+}
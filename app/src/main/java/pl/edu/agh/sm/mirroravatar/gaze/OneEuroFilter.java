@@ -0,0 +1,59 @@
+package pl.edu.agh.sm.mirroravatar.gaze;
+
+/**
+ * One Euro filter (Casiez et al.): a low-pass filter whose cutoff frequency grows with speed,
+ * so slow movement is smoothed heavily while fast movement passes with little lag.
+ */
+public class OneEuroFilter implements GazeFilter {
+
+    private final double minCutoff;
+    private final double beta;
+    private final double derivativeCutoff;
+    private double value;
+    private double derivative;
+    private long lastTimestampNanos;
+    private boolean initialized;
+
+    /**
+     * @param minCutoff        cutoff frequency (Hz) when the signal is not moving, lower means less jitter
+     * @param beta             how fast the cutoff grows with speed, higher means less lag
+     * @param derivativeCutoff cutoff frequency (Hz) of the speed estimate
+     */
+    public OneEuroFilter(double minCutoff, double beta, double derivativeCutoff) {
+        this.minCutoff = minCutoff;
+        this.beta = beta;
+        this.derivativeCutoff = derivativeCutoff;
+    }
+
+    @Override
+    public double filter(double newValue, long timestampNanos) {
+        if (!initialized || timestampNanos <= lastTimestampNanos) {
+            if (!initialized) {
+                value = newValue;
+                derivative = 0;
+                initialized = true;
+            }
+            lastTimestampNanos = Math.max(lastTimestampNanos, timestampNanos);
+            return value;
+        }
+        double dt = (timestampNanos - lastTimestampNanos) / 1e9;
+        lastTimestampNanos = timestampNanos;
+
+        double rawDerivative = (newValue - value) / dt;
+        derivative += alpha(derivativeCutoff, dt) * (rawDerivative - derivative);
+        double cutoff = minCutoff + beta * Math.abs(derivative);
+        value += alpha(cutoff, dt) * (newValue - value);
+        return value;
+    }
+
+    @Override
+    public void reset() {
+        initialized = false;
+        lastTimestampNanos = 0;
+    }
+
+    private static double alpha(double cutoff, double dt) {
+        double tau = 1.0 / (2 * Math.PI * cutoff);
+        return 1.0 / (1.0 + tau / dt);
+    }
+}
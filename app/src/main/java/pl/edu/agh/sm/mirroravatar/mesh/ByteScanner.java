@@ -0,0 +1,188 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Line oriented scanner over the raw bytes of a text model file. Numbers are parsed in place,
+ * nothing is allocated except for the names returned by {@link #rest()}.
+ */
+class ByteScanner {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    private final byte[] data;
+    private final int end;
+    private int next;
+    private int pos;
+    private int lineEnd;
+
+    ByteScanner(byte[] data, int start, int end) {
+        this.data = data;
+        this.end = end;
+        this.next = start;
+    }
+
+    /**
+     * Moves to the next line that is neither blank nor a comment.
+     */
+    boolean nextLine() {
+        while (next < end) {
+            pos = next;
+            int newline = pos;
+            while (newline < end && data[newline] != '\n') {
+                newline++;
+            }
+            lineEnd = newline;
+            next = newline + 1;
+            if (hasMore()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Consumes {@code keyword} if the line continues with it as a whole word.
+     */
+    boolean keyword(String keyword) {
+        int length = keyword.length();
+        if (pos + length > lineEnd) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (data[pos + i] != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        if (pos + length < lineEnd && !isBlank(data[pos + length])) {
+            return false;
+        }
+        pos += length;
+        return true;
+    }
+
+    boolean hasMore() {
+        skipBlanks();
+        return pos < lineEnd && data[pos] != '#';
+    }
+
+    /**
+     * Consumes {@code c} if it is the next byte of the line.
+     */
+    boolean consume(char c) {
+        if (pos < lineEnd && data[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    float nextFloat() throws IOException {
+        skipBlanks();
+        int start = pos;
+        boolean negative = consume('-');
+        if (!negative) {
+            consume('+');
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        int c;
+        while (pos < lineEnd && (c = data[pos] - '0') >= 0 && c <= 9) {
+            if (digits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + c;
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+            }
+            any = true;
+            pos++;
+        }
+        if (consume('.')) {
+            while (pos < lineEnd && (c = data[pos] - '0') >= 0 && c <= 9) {
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + c;
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                }
+                any = true;
+                pos++;
+            }
+        }
+        if (!any) {
+            throw error("number expected", start);
+        }
+        if (consume('e') || consume('E')) {
+            exponent += nextInt();
+        }
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POWERS_OF_TEN.length
+                    ? value / POWERS_OF_TEN[-exponent] : value / Math.pow(10, -exponent);
+        } else if (exponent > 0) {
+            value = exponent < POWERS_OF_TEN.length
+                    ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    int nextInt() throws IOException {
+        int start = pos;
+        boolean negative = consume('-');
+        if (!negative) {
+            consume('+');
+        }
+        int value = 0;
+        int c;
+        while (pos < lineEnd && (c = data[pos] - '0') >= 0 && c <= 9) {
+            value = value * 10 + c;
+            pos++;
+        }
+        if (pos == start || (pos == start + 1 && negative)) {
+            throw error("integer expected", start);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the rest of the line without surrounding blanks
+     */
+    String rest() {
+        skipBlanks();
+        int last = lineEnd;
+        while (last > pos && isBlank(data[last - 1])) {
+            last--;
+        }
+        String rest = new String(data, pos, last - pos, StandardCharsets.UTF_8);
+        pos = lineEnd;
+        return rest;
+    }
+
+    IOException error(String message, int offset) {
+        return new IOException(message + " at byte " + offset);
+    }
+
+    int position() {
+        return pos;
+    }
+
+    private void skipBlanks() {
+        while (pos < lineEnd && isBlank(data[pos])) {
+            pos++;
+        }
+    }
+
+    private static boolean isBlank(byte c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+}
@@ -0,0 +1,51 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Growable float array without boxing.
+ */
+class FloatList {
+
+    private float[] values;
+    private int size;
+
+    FloatList(int capacity) {
+        values = new float[Math.max(capacity, 16)];
+    }
+
+    void add(float value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    void addAll(FloatList other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+
+    float get(int index) {
+        return values[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    float[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+        }
+    }
+}
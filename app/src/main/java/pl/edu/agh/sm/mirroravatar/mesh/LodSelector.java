@@ -0,0 +1,97 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+/**
+ * Picks a level of detail (0 is the full mesh) from the projected size of the model and the measured render time.
+ * <p>
+ * The size picks the base level: the finest level whose minimum size in pixels the model covers.
+ * On top of that, while frames take longer than the budget to render the selector shifts to coarser levels,
+ * and it shifts back once there is headroom again. Both decisions have hysteresis so the mesh does not flicker
+ * between two levels.
+ */
+public class LodSelector {
+
+    private static final double SIZE_HYSTERESIS = 1.15;
+    private static final double RENDER_TIME_SMOOTHING = 0.05;
+    private static final double OVER_BUDGET = 1.1;
+    private static final double UNDER_BUDGET = 0.7;
+    private static final int FRAMES_TO_COARSEN = 30;
+    private static final int FRAMES_TO_REFINE = 120;
+
+    private final double[] minSizes;
+    private final double frameBudgetSeconds;
+    private double renderTime;
+    private int framesOver;
+    private int framesUnder;
+    private int sizeLevel;
+    private int bias;
+
+    /**
+     * @param minSizes           projected size in pixels from which each level is used, decreasing, one per level
+     * @param frameBudgetSeconds render time per frame the rendering should stay within
+     */
+    public LodSelector(double[] minSizes, double frameBudgetSeconds) {
+        this.minSizes = minSizes.clone();
+        this.frameBudgetSeconds = frameBudgetSeconds;
+        this.sizeLevel = minSizes.length - 1;
+    }
+
+    public int getLevelCount() {
+        return minSizes.length;
+    }
+
+    /**
+     * Called once per rendered frame.
+     *
+     * @param projectedSize size of the model on screen in pixels
+     * @param renderSeconds time the last frame took to render, not the time since the frame before it, which
+     *                      follows the input when frames are only rendered on demand
+     */
+    public int select(double projectedSize, double renderSeconds) {
+        updateSizeLevel(projectedSize);
+        updateBias(renderSeconds);
+        return Math.min(sizeLevel + bias, minSizes.length - 1);
+    }
+
+    public void reset() {
+        renderTime = 0;
+        framesOver = 0;
+        framesUnder = 0;
+        sizeLevel = minSizes.length - 1;
+        bias = 0;
+    }
+
+    private void updateSizeLevel(double projectedSize) {
+        int level = minSizes.length - 1;
+        for (int i = 0; i < minSizes.length; i++) {
+            if (projectedSize >= minSizes[i]) {
+                level = i;
+                break;
+            }
+        }
+        // coarsen right away, refine only once the size is clearly past the threshold of the finer level
+        if (level > sizeLevel || projectedSize >= minSizes[level] * SIZE_HYSTERESIS) {
+            sizeLevel = level;
+        }
+    }
+
+    private void updateBias(double renderSeconds) {
+        renderTime = renderTime == 0 ? renderSeconds
+                : renderTime + RENDER_TIME_SMOOTHING * (renderSeconds - renderTime);
+        if (renderTime > frameBudgetSeconds * OVER_BUDGET) {
+            framesUnder = 0;
+            if (++framesOver >= FRAMES_TO_COARSEN && bias < minSizes.length - 1) {
+                bias++;
+                framesOver = 0;
+            }
+        } else if (renderTime < frameBudgetSeconds * UNDER_BUDGET) {
+            framesOver = 0;
+            if (++framesUnder >= FRAMES_TO_REFINE && bias > 0) {
+                bias--;
+                framesUnder = 0;
+            }
+        } else {
+            framesOver = 0;
+            framesUnder = 0;
+        }
+    }
+}
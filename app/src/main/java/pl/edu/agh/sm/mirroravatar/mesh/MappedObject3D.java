@@ -0,0 +1,54 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+import android.opengl.GLES20;
+
+import org.rajawali3d.Geometry3D;
+import org.rajawali3d.Object3D;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An object whose geometry is uploaded straight from the {@link MeshBuffers} it is given. Rajawali's
+ * {@code setData} only takes arrays and copies them into buffers of its own, which for a mapped {@link MeshCache}
+ * would mean a round trip through the Java heap.
+ */
+public class MappedObject3D extends Object3D {
+
+    public MappedObject3D(MeshBuffers part) {
+        super(part.name);
+        BufferGeometry geometry = new BufferGeometry();
+        geometry.setBuffers(part);
+        mGeometry = geometry;
+        mIsContainerOnly = false;
+        mElementsBufferType = geometry.areOnlyShortBuffersSupported()
+                ? GLES20.GL_UNSIGNED_SHORT : GLES20.GL_UNSIGNED_INT;
+    }
+
+    /**
+     * Takes the buffers as they are, the way {@code Geometry3D.setData} fills its own.
+     */
+    private static class BufferGeometry extends Geometry3D {
+
+        void setBuffers(MeshBuffers part) {
+            mVertexBufferInfo.usage = GLES20.GL_STATIC_DRAW;
+            mNormalBufferInfo.usage = GLES20.GL_STATIC_DRAW;
+            mTexCoordBufferInfo.usage = GLES20.GL_STATIC_DRAW;
+            mColorBufferInfo.usage = GLES20.GL_STATIC_DRAW;
+            mIndexBufferInfo.usage = GLES20.GL_STATIC_DRAW;
+            mVertices = part.vertices;
+            mNumVertices = part.getVertexCount();
+            if (part.normals.capacity() > 0) {
+                mNormals = part.normals;
+                mHasNormals = true;
+            }
+            // like setData, untextured parts get zero coordinates
+            mTextureCoords = part.textureCoords.capacity() > 0 ? part.textureCoords
+                    : ByteBuffer.allocateDirect(4 * 2 * mNumVertices).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            mHasTextureCoordinates = true;
+            mIndicesInt = part.indices;
+            mNumIndices = part.indices.capacity();
+            createBuffers();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * {@link MeshData} in direct buffers, the form the geometry is uploaded from. Read from a {@link MeshCache} the
+ * buffers are views over the mapped file, so the arrays never pass through the Java heap.
+ */
+public class MeshBuffers {
+
+    public final String name;
+    public final FloatBuffer vertices;
+    public final FloatBuffer normals;
+    public final FloatBuffer textureCoords;
+    public final IntBuffer indices;
+    /**
+     * Diffuse ARGB color of the part's material.
+     */
+    public final int color;
+
+    public MeshBuffers(String name, FloatBuffer vertices, FloatBuffer normals, FloatBuffer textureCoords,
+                       IntBuffer indices, int color) {
+        this.name = name;
+        this.vertices = vertices;
+        this.normals = normals;
+        this.textureCoords = textureCoords;
+        this.indices = indices;
+        this.color = color;
+    }
+
+    /**
+     * Copies freshly parsed or simplified arrays into direct buffers.
+     */
+    public static MeshBuffers of(MeshData part) {
+        return new MeshBuffers(part.name, direct(part.vertices), direct(part.normals), direct(part.textureCoords),
+                direct(part.indices), part.color);
+    }
+
+    public int getVertexCount() {
+        return vertices.capacity() / 3;
+    }
+
+    /**
+     * Copies the buffers out into arrays, for the simplifier.
+     */
+    public MeshData toMeshData() {
+        return new MeshData(name, floats(vertices), floats(normals), floats(textureCoords), ints(indices), color);
+    }
+
+    private static FloatBuffer direct(float[] values) {
+        FloatBuffer buffer = allocate(values.length).asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+
+    private static IntBuffer direct(int[] values) {
+        IntBuffer buffer = allocate(values.length).asIntBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+
+    private static ByteBuffer allocate(int count) {
+        return ByteBuffer.allocateDirect(4 * count).order(ByteOrder.nativeOrder());
+    }
+
+    private static float[] floats(FloatBuffer buffer) {
+        float[] values = new float[buffer.capacity()];
+        buffer.duplicate().get(values);
+        return values;
+    }
+
+    private static int[] ints(IntBuffer buffer) {
+        int[] values = new int[buffer.capacity()];
+        buffer.duplicate().get(values);
+        return values;
+    }
+}
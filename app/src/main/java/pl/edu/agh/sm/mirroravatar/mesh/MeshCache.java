@@ -0,0 +1,159 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Binary form of parsed models, so that the OBJ text is parsed once and later launches only map the file.
+ * <p>
+ * Format: {@link #MAGIC}, {@link #VERSION}, {@code long sourceHash, int partCount}, then for every part
+ * {@code int nameLength, byte[nameLength] name (UTF-8, padded to 4 bytes), int color,
+ * int vertexCount, int normalCount, int textureCoordCount, int indexCount} followed by the float and int arrays.
+ * Everything is little-endian, the byte order of every Android ABI, so the arrays are read as views over the mapping
+ * and handed to GL as they are.
+ */
+public class MeshCache {
+
+    public static final int MAGIC = 0x4D41564D; // "MAVM"
+    public static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 20;
+    private static final int PART_HEADER_SIZE = 24;
+
+    private MeshCache() {
+    }
+
+    /**
+     * Content hash of the model source, stored in the cache to detect that the model changed.
+     */
+    public static long hash(byte[]... sources) {
+        CRC32 crc = new CRC32();
+        for (byte[] source : sources) {
+            crc.update(source, 0, source.length);
+        }
+        return ((long) VERSION << 32) | crc.getValue();
+    }
+
+    public static void write(File file, long sourceHash, List<MeshData> parts) throws IOException {
+        int size = FILE_HEADER_SIZE;
+        for (MeshData part : parts) {
+            size += PART_HEADER_SIZE + padded(part.name.getBytes(StandardCharsets.UTF_8).length)
+                    + 4 * (part.vertices.length + part.normals.length + part.textureCoords.length + part.indices.length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(sourceHash).putInt(parts.size());
+        for (MeshData part : parts) {
+            byte[] name = part.name.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(name.length).put(name);
+            buffer.position(buffer.position() + padded(name.length) - name.length);
+            buffer.putInt(part.color)
+                    .putInt(part.vertices.length)
+                    .putInt(part.normals.length)
+                    .putInt(part.textureCoords.length)
+                    .putInt(part.indices.length);
+            putFloats(buffer, part.vertices);
+            putFloats(buffer, part.normals);
+            putFloats(buffer, part.textureCoords);
+            buffer.asIntBuffer().put(part.indices);
+            buffer.position(buffer.position() + 4 * part.indices.length);
+        }
+        buffer.flip();
+
+        // written aside and renamed, so that an interrupted write never leaves a truncated cache behind
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = new FileOutputStream(temp).getChannel()) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not move mesh cache to " + file);
+        }
+    }
+
+    /**
+     * @return the cached parts, their buffers views over the file mapping, or null when there is no cache for this
+     * source hash
+     */
+    public static List<MeshBuffers> read(File file, long sourceHash) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        // opened for writing only to map it private, the geometry compacts its buffers, which a read only mapping
+        // refuses, the writes stay in memory
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.remaining() < FILE_HEADER_SIZE || mapped.getInt() != MAGIC || mapped.getInt() != VERSION
+                    || mapped.getLong() != sourceHash) {
+                return null;
+            }
+            int partCount = mapped.getInt();
+            List<MeshBuffers> parts = new ArrayList<>(partCount);
+            for (int i = 0; i < partCount; i++) {
+                byte[] name = new byte[mapped.getInt()];
+                mapped.get(name);
+                mapped.position(mapped.position() + padded(name.length) - name.length);
+                int color = mapped.getInt();
+                int vertexCount = mapped.getInt();
+                int normalCount = mapped.getInt();
+                int textureCoordCount = mapped.getInt();
+                int indexCount = mapped.getInt();
+                if (4L * ((long) vertexCount + normalCount + textureCoordCount + indexCount) > mapped.remaining()) {
+                    throw new IOException("Truncated mesh cache: " + file);
+                }
+                FloatBuffer vertices = floatView(mapped, vertexCount);
+                FloatBuffer normals = floatView(mapped, normalCount);
+                FloatBuffer textureCoords = floatView(mapped, textureCoordCount);
+                IntBuffer indices = intView(mapped, indexCount);
+                parts.add(new MeshBuffers(new String(name, StandardCharsets.UTF_8),
+                        vertices, normals, textureCoords, indices, color));
+            }
+            return parts;
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Corrupted mesh cache: " + file, e);
+        }
+    }
+
+    private static void putFloats(ByteBuffer buffer, float[] values) {
+        buffer.asFloatBuffer().put(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    /**
+     * The next {@code count} floats of the mapping, which moves past them.
+     */
+    private static FloatBuffer floatView(ByteBuffer mapped, int count) {
+        int end = mapped.position() + 4 * count;
+        mapped.limit(end);
+        FloatBuffer view = mapped.asFloatBuffer();
+        mapped.limit(mapped.capacity()).position(end);
+        return view;
+    }
+
+    private static IntBuffer intView(ByteBuffer mapped, int count) {
+        int end = mapped.position() + 4 * count;
+        mapped.limit(end);
+        IntBuffer view = mapped.asIntBuffer();
+        mapped.limit(mapped.capacity()).position(end);
+        return view;
+    }
+
+    private static int padded(int length) {
+        return (length + 3) & ~3;
+    }
+}
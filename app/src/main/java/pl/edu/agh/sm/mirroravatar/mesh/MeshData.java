@@ -0,0 +1,36 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+/**
+ * Indexed triangle geometry of one part of a model, in the planar layout Rajawali's {@code Geometry3D} consumes:
+ * xyz positions, xyz normals and uv texture coordinates per vertex. Normals and texture coordinates
+ * are empty when the source has none.
+ */
+public class MeshData {
+
+    public final String name;
+    public final float[] vertices;
+    public final float[] normals;
+    public final float[] textureCoords;
+    public final int[] indices;
+    /**
+     * Diffuse ARGB color of the part's material.
+     */
+    public final int color;
+
+    public MeshData(String name, float[] vertices, float[] normals, float[] textureCoords, int[] indices, int color) {
+        this.name = name;
+        this.vertices = vertices;
+        this.normals = normals;
+        this.textureCoords = textureCoords;
+        this.indices = indices;
+        this.color = color;
+    }
+
+    public int getVertexCount() {
+        return vertices.length / 3;
+    }
+
+    public int getTriangleCount() {
+        return indices.length / 3;
+    }
+}
@@ -0,0 +1,250 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import org.rajawali3d.Geometry3D;
+import org.rajawali3d.Object3D;
+import org.rajawali3d.loader.LoaderOBJ;
+import org.rajawali3d.loader.ParsingException;
+import org.rajawali3d.materials.Material;
+import org.rajawali3d.materials.methods.DiffuseMethod;
+import org.rajawali3d.materials.textures.TextureManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Loads OBJ models from raw resources through a {@link MeshCache} in the app cache directory.
+ * The OBJ is parsed only when the cache is missing or was built from a different version of the model.
+ */
+public class MeshLoader {
+
+    private final static String TAG = "MeshLoader";
+    private final static float[] NONE = new float[0];
+
+    public enum Parser {
+        /**
+         * {@link ObjParser}, the default.
+         */
+        STREAMING,
+        /**
+         * Rajawali's {@link LoaderOBJ}.
+         */
+        RAJAWALI
+    }
+
+    private final Resources resources;
+    private final String packageName;
+    private final TextureManager textureManager;
+    private final File cacheDir;
+    private Parser parser = Parser.STREAMING;
+
+    public MeshLoader(Resources resources, String packageName, TextureManager textureManager, File cacheDir) {
+        this.resources = resources;
+        this.packageName = packageName;
+        this.textureManager = textureManager;
+        this.cacheDir = cacheDir;
+    }
+
+    public void setParser(Parser parser) {
+        this.parser = parser;
+    }
+
+    public Object3D load(int objResourceId) throws ParsingException {
+        return loadLods(objResourceId, 1.0)[0];
+    }
+
+    /**
+     * Loads the model simplified to each ratio of its triangle count, every level is cached like the full mesh.
+     */
+    public Object3D[] loadLods(int objResourceId, double... ratios) throws ParsingException {
+        long start = System.nanoTime();
+        byte[] source;
+        long hash;
+        try {
+            source = readResource(objResourceId);
+            hash = sourceHash(source);
+        } catch (IOException e) {
+            throw new ParsingException(e);
+        }
+        String name = resources.getResourceEntryName(objResourceId);
+
+        List<MeshData> full = null;
+        Object3D[] levels = new Object3D[ratios.length];
+        for (int level = 0; level < ratios.length; level++) {
+            double ratio = ratios[level];
+            File cacheFile = new File(cacheDir, ratio >= 1.0 ? name + ".mesh" : name + ".lod" + level + ".mesh");
+            long levelHash = ratio >= 1.0 ? hash : levelHash(hash, ratio);
+            List<MeshBuffers> buffers = readCache(cacheFile, levelHash);
+            if (buffers == null) {
+                if (full == null) {
+                    full = loadFull(objResourceId, source, hash, name);
+                }
+                List<MeshData> parts = full;
+                if (ratio < 1.0) {
+                    parts = new ArrayList<>(full.size());
+                    for (MeshData part : full) {
+                        parts.add(MeshSimplifier.simplify(part, ratio));
+                    }
+                    writeCache(cacheFile, levelHash, parts);
+                }
+                buffers = new ArrayList<>(parts.size());
+                for (MeshData part : parts) {
+                    buffers.add(MeshBuffers.of(part));
+                }
+            }
+            levels[level] = toObject3D(buffers);
+        }
+        Log.d(TAG, String.format("%s: %s levels loaded in %.1f ms", name, ratios.length, (System.nanoTime() - start) / 1e6));
+        return levels;
+    }
+
+    private List<MeshData> loadFull(int objResourceId, byte[] source, long hash, String name) throws ParsingException {
+        File cacheFile = new File(cacheDir, name + ".mesh");
+        List<MeshBuffers> cached = readCache(cacheFile, hash);
+        if (cached == null) {
+            List<MeshData> parts = parse(objResourceId, source);
+            writeCache(cacheFile, hash, parts);
+            return parts;
+        }
+        // only when a simplified level has to be rebuilt, the simplifier works on arrays
+        List<MeshData> parts = new ArrayList<>(cached.size());
+        for (MeshBuffers part : cached) {
+            parts.add(part.toMeshData());
+        }
+        return parts;
+    }
+
+    /**
+     * Key of a simplified level, with the simplifier version so that levels an older simplifier cached are rebuilt.
+     */
+    private static long levelHash(long sourceHash, double ratio) {
+        return (sourceHash * 31 + Double.doubleToLongBits(ratio)) * 31 + MeshSimplifier.VERSION;
+    }
+
+    private long sourceHash(byte[] source) throws IOException {
+        List<byte[]> hashed = new ArrayList<>();
+        hashed.add(parser.name().getBytes(StandardCharsets.UTF_8));
+        hashed.add(source);
+        for (String library : ObjParser.materialLibraries(source)) {
+            byte[] mtl = openMaterialLibrary(library);
+            if (mtl != null) {
+                hashed.add(mtl);
+            }
+        }
+        return MeshCache.hash(hashed.toArray(new byte[0][]));
+    }
+
+    private static List<MeshBuffers> readCache(File cacheFile, long hash) {
+        try {
+            return MeshCache.read(cacheFile, hash);
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring mesh cache", e);
+            return null;
+        }
+    }
+
+    private static void writeCache(File cacheFile, long hash, List<MeshData> parts) {
+        try {
+            MeshCache.write(cacheFile, hash, parts);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write mesh cache " + cacheFile, e);
+        }
+    }
+
+    private List<MeshData> parse(int objResourceId, byte[] source) throws ParsingException {
+        if (parser == Parser.RAJAWALI) {
+            LoaderOBJ loader = new LoaderOBJ(resources, textureManager, objResourceId);
+            loader.parse();
+            List<MeshData> parts = new ArrayList<>();
+            collectParts(loader.getParsedObject(), parts);
+            return parts;
+        }
+        try {
+            return new ObjParser(this::openMaterialLibrary).parse(source);
+        } catch (IOException e) {
+            throw new ParsingException(e);
+        }
+    }
+
+    public static Object3D toObject3D(List<MeshBuffers> parts) {
+        if (parts.size() == 1) {
+            return toObject3D(parts.get(0));
+        }
+        Object3D container = new Object3D();
+        container.isContainer(true);
+        for (MeshBuffers part : parts) {
+            container.addChild(toObject3D(part));
+        }
+        return container;
+    }
+
+    private static Object3D toObject3D(MeshBuffers part) {
+        Object3D object = new MappedObject3D(part);
+        // same material LoaderOBJ gives untextured parts
+        Material material = new Material();
+        material.enableLighting(true);
+        material.setDiffuseMethod(new DiffuseMethod.Lambert());
+        material.setColor(part.color);
+        object.setMaterial(material);
+        return object;
+    }
+
+    private static void collectParts(Object3D object, List<MeshData> parts) {
+        for (int i = 0; i < object.getNumChildren(); i++) {
+            collectParts(object.getChildAt(i), parts);
+        }
+        if (object.isContainer()) {
+            return;
+        }
+        Geometry3D geometry = object.getGeometry();
+        if (geometry.getVertices() == null || geometry.getIndices() == null) {
+            return;
+        }
+        float[] normals = geometry.getNormals() != null
+                ? Geometry3D.getFloatArrayFromBuffer(geometry.getNormals()) : NONE;
+        float[] textureCoords = geometry.getTextureCoords() != null
+                ? Geometry3D.getFloatArrayFromBuffer(geometry.getTextureCoords()) : NONE;
+        int color = object.getMaterial() != null ? object.getMaterial().getColor() : 0;
+        parts.add(new MeshData(object.getName() != null ? object.getName() : "",
+                Geometry3D.getFloatArrayFromBuffer(geometry.getVertices()), normals, textureCoords,
+                Geometry3D.getIntArrayFromBuffer(geometry.getIndices()), color));
+    }
+
+    /**
+     * Material libraries are looked up among the raw resources by their file name without the extension,
+     * {@code mtllib butterfly_mtl.mtl} is {@code R.raw.butterfly_mtl}.
+     */
+    private byte[] openMaterialLibrary(String fileName) throws IOException {
+        String name = new File(fileName.replace('\\', '/')).getName();
+        int extension = name.lastIndexOf('.');
+        if (extension > 0) {
+            name = name.substring(0, extension);
+        }
+        int resourceId = resources.getIdentifier(name.toLowerCase(Locale.US), "raw", packageName);
+        if (resourceId == 0) {
+            Log.w(TAG, "Material library not found: " + fileName);
+            return null;
+        }
+        return readResource(resourceId);
+    }
+
+    private byte[] readResource(int resourceId) throws IOException {
+        try (InputStream in = resources.openRawResource(resourceId)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 8192));
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Mesh simplification by quadric error edge collapse (Garland and Heckbert).
+ * <p>
+ * Vertices are welded by position first, so uv and normal seams collapse together instead of tearing.
+ * Every corner keeps its original normal and uv, only its position moves to the collapse target.
+ * Open borders are held in place by constraint planes, and a collapse that would flip a face is skipped.
+ */
+public class MeshSimplifier {
+
+    /**
+     * Changes whenever the simplifier produces different meshes, simplified levels are cached under it.
+     */
+    public static final int VERSION = 1;
+
+    private static final double BORDER_WEIGHT = 1000;
+    private static final double MIN_NORMAL_COS = 0.2;
+
+    private final MeshData mesh;
+    private final int[] indices;
+    private final int[] positionOf;
+    private final int positionCount;
+    private final double[] positions;
+    private final double[] quadrics;
+    private final int[] parent;
+    private final int[] stamps;
+    private final IntList[] trianglesOf;
+    private final boolean[] removed;
+    private final PriorityQueue<Collapse> collapses = new PriorityQueue<>();
+    private final int[] marks;
+    private int mark;
+    private int triangleCount;
+
+    private MeshSimplifier(MeshData mesh) {
+        this.mesh = mesh;
+        this.indices = mesh.indices;
+        int vertexCount = mesh.getVertexCount();
+        positionOf = new int[vertexCount];
+        Map<Position, Integer> welded = new HashMap<>();
+        for (int v = 0; v < vertexCount; v++) {
+            Position position = new Position(mesh.vertices[v * 3], mesh.vertices[v * 3 + 1], mesh.vertices[v * 3 + 2]);
+            Integer id = welded.get(position);
+            if (id == null) {
+                id = welded.size();
+                welded.put(position, id);
+            }
+            positionOf[v] = id;
+        }
+        positionCount = welded.size();
+        positions = new double[positionCount * 3];
+        for (int v = 0; v < vertexCount; v++) {
+            int p = positionOf[v];
+            positions[p * 3] = mesh.vertices[v * 3];
+            positions[p * 3 + 1] = mesh.vertices[v * 3 + 1];
+            positions[p * 3 + 2] = mesh.vertices[v * 3 + 2];
+        }
+        quadrics = new double[positionCount * 10];
+        parent = new int[positionCount];
+        stamps = new int[positionCount];
+        marks = new int[positionCount];
+        trianglesOf = new IntList[positionCount];
+        for (int p = 0; p < positionCount; p++) {
+            parent[p] = p;
+            trianglesOf[p] = new IntList(8);
+        }
+        removed = new boolean[mesh.getTriangleCount()];
+    }
+
+    /**
+     * @return a mesh with at most {@code ratio} of the triangles, or {@code mesh} itself if nothing was removed
+     */
+    public static MeshData simplify(MeshData mesh, double ratio) {
+        return simplify(mesh, (int) (mesh.getTriangleCount() * ratio));
+    }
+
+    public static MeshData simplify(MeshData mesh, int targetTriangles) {
+        if (mesh.getTriangleCount() <= targetTriangles) {
+            return mesh;
+        }
+        MeshSimplifier simplifier = new MeshSimplifier(mesh);
+        simplifier.initialize();
+        simplifier.collapse(targetTriangles);
+        return simplifier.build();
+    }
+
+    private void initialize() {
+        LongIntHashMap edgeUses = new LongIntHashMap(indices.length);
+        for (int t = 0; t < removed.length; t++) {
+            int a = corner(t, 0), b = corner(t, 1), c = corner(t, 2);
+            if (a == b || b == c || c == a) {
+                removed[t] = true;
+                continue;
+            }
+            triangleCount++;
+            double[] plane = plane(a, b, c);
+            if (plane != null) {
+                addPlane(a, plane, 1);
+                addPlane(b, plane, 1);
+                addPlane(c, plane, 1);
+            }
+            trianglesOf[a].add(t);
+            trianglesOf[b].add(t);
+            trianglesOf[c].add(t);
+            countEdge(edgeUses, a, b);
+            countEdge(edgeUses, b, c);
+            countEdge(edgeUses, c, a);
+        }
+        for (int t = 0; t < removed.length; t++) {
+            if (removed[t]) {
+                continue;
+            }
+            for (int i = 0; i < 3; i++) {
+                int a = corner(t, i);
+                int b = corner(t, (i + 1) % 3);
+                if (edgeUses.get(edgeKey(a, b)) == 1) {
+                    addBorderPlanes(t, a, b);
+                }
+            }
+        }
+        LongIntHashMap pushed = new LongIntHashMap(indices.length);
+        for (int t = 0; t < removed.length; t++) {
+            if (removed[t]) {
+                continue;
+            }
+            for (int i = 0; i < 3; i++) {
+                int a = corner(t, i);
+                int b = corner(t, (i + 1) % 3);
+                if (pushed.putIfAbsent(edgeKey(a, b), 1) == LongIntHashMap.MISSING) {
+                    push(a, b);
+                }
+            }
+        }
+    }
+
+    private void collapse(int targetTriangles) {
+        Collapse next;
+        while (triangleCount > targetTriangles && (next = collapses.poll()) != null) {
+            int a = next.a;
+            int b = next.b;
+            if (parent[a] != a || parent[b] != b || stamps[a] != next.stampA || stamps[b] != next.stampB) {
+                continue;
+            }
+            if (flips(a, b, next) || flips(b, a, next)) {
+                continue;
+            }
+            parent[b] = a;
+            positions[a * 3] = next.x;
+            positions[a * 3 + 1] = next.y;
+            positions[a * 3 + 2] = next.z;
+            for (int i = 0; i < 10; i++) {
+                quadrics[a * 10 + i] += quadrics[b * 10 + i];
+            }
+            stamps[a]++;
+
+            IntList triangles = trianglesOf[a];
+            IntList moved = trianglesOf[b];
+            for (int i = 0; i < moved.size(); i++) {
+                triangles.add(moved.get(i));
+            }
+            moved.clear();
+            // faces that used both endpoints are now degenerate, the others are only listed once
+            int kept = 0;
+            for (int i = 0; i < triangles.size(); i++) {
+                int t = triangles.get(i);
+                if (removed[t]) {
+                    continue;
+                }
+                int p0 = corner(t, 0), p1 = corner(t, 1), p2 = corner(t, 2);
+                if (p0 == p1 || p1 == p2 || p2 == p0) {
+                    removed[t] = true;
+                    triangleCount--;
+                    continue;
+                }
+                triangles.set(kept++, t);
+            }
+            triangles.truncate(kept);
+            mark++;
+            for (int i = 0; i < triangles.size(); i++) {
+                int t = triangles.get(i);
+                for (int c = 0; c < 3; c++) {
+                    int p = corner(t, c);
+                    if (p != a && marks[p] != mark) {
+                        marks[p] = mark;
+                        push(a, p);
+                    }
+                }
+            }
+        }
+    }
+
+    private MeshData build() {
+        int vertexCount = mesh.getVertexCount();
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        IntList newIndices = new IntList(triangleCount * 3);
+        int used = 0;
+        for (int t = 0; t < removed.length; t++) {
+            if (removed[t]) {
+                continue;
+            }
+            for (int c = 0; c < 3; c++) {
+                int v = indices[t * 3 + c];
+                if (remap[v] < 0) {
+                    remap[v] = used++;
+                }
+                newIndices.add(remap[v]);
+            }
+        }
+        boolean hasNormals = mesh.normals.length > 0;
+        boolean hasTextureCoords = mesh.textureCoords.length > 0;
+        float[] vertices = new float[used * 3];
+        float[] normals = new float[hasNormals ? used * 3 : 0];
+        float[] textureCoords = new float[hasTextureCoords ? used * 2 : 0];
+        for (int v = 0; v < vertexCount; v++) {
+            int n = remap[v];
+            if (n < 0) {
+                continue;
+            }
+            int p = find(positionOf[v]);
+            vertices[n * 3] = (float) positions[p * 3];
+            vertices[n * 3 + 1] = (float) positions[p * 3 + 1];
+            vertices[n * 3 + 2] = (float) positions[p * 3 + 2];
+            if (hasNormals) {
+                System.arraycopy(mesh.normals, v * 3, normals, n * 3, 3);
+            }
+            if (hasTextureCoords) {
+                System.arraycopy(mesh.textureCoords, v * 2, textureCoords, n * 2, 2);
+            }
+        }
+        return new MeshData(mesh.name, vertices, normals, textureCoords, newIndices.toArray(), mesh.color);
+    }
+
+    private int corner(int triangle, int corner) {
+        return find(positionOf[indices[triangle * 3 + corner]]);
+    }
+
+    private int find(int p) {
+        while (parent[p] != p) {
+            parent[p] = parent[parent[p]];
+            p = parent[p];
+        }
+        return p;
+    }
+
+    /**
+     * Whether moving {@code moving} to the collapse target turns any of its faces that do not also use
+     * {@code other} (those disappear) over or squashes it.
+     */
+    private boolean flips(int moving, int other, Collapse target) {
+        IntList triangles = trianglesOf[moving];
+        for (int i = 0; i < triangles.size(); i++) {
+            int t = triangles.get(i);
+            if (removed[t]) {
+                continue;
+            }
+            int p0 = corner(t, 0), p1 = corner(t, 1), p2 = corner(t, 2);
+            if (p0 == other || p1 == other || p2 == other) {
+                continue;
+            }
+            double[] before = normal(p0, p1, p2, -1, 0, 0, 0);
+            double[] after = normal(p0, p1, p2, moving, target.x, target.y, target.z);
+            double lengths = Math.sqrt(dot(before, before) * dot(after, after));
+            if (lengths == 0 || dot(before, after) < MIN_NORMAL_COS * lengths) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private double[] normal(int p0, int p1, int p2, int moved, double x, double y, double z) {
+        double ax = p0 == moved ? x : positions[p0 * 3], ay = p0 == moved ? y : positions[p0 * 3 + 1],
+                az = p0 == moved ? z : positions[p0 * 3 + 2];
+        double bx = p1 == moved ? x : positions[p1 * 3], by = p1 == moved ? y : positions[p1 * 3 + 1],
+                bz = p1 == moved ? z : positions[p1 * 3 + 2];
+        double cx = p2 == moved ? x : positions[p2 * 3], cy = p2 == moved ? y : positions[p2 * 3 + 1],
+                cz = p2 == moved ? z : positions[p2 * 3 + 2];
+        double ux = bx - ax, uy = by - ay, uz = bz - az;
+        double vx = cx - ax, vy = cy - ay, vz = cz - az;
+        return new double[]{uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx};
+    }
+
+    /**
+     * @return unit plane {@code (a, b, c, d)} of the triangle, or null if it has no area
+     */
+    private double[] plane(int p0, int p1, int p2) {
+        double[] n = normal(p0, p1, p2, -1, 0, 0, 0);
+        double length = Math.sqrt(dot(n, n));
+        if (length == 0) {
+            return null;
+        }
+        double a = n[0] / length, b = n[1] / length, c = n[2] / length;
+        double d = -(a * positions[p0 * 3] + b * positions[p0 * 3 + 1] + c * positions[p0 * 3 + 2]);
+        return new double[]{a, b, c, d};
+    }
+
+    /**
+     * Plane through the border edge, perpendicular to its face, so sliding off the border costs a lot.
+     */
+    private void addBorderPlanes(int triangle, int a, int b) {
+        double[] face = plane(corner(triangle, 0), corner(triangle, 1), corner(triangle, 2));
+        if (face == null) {
+            return;
+        }
+        double ex = positions[b * 3] - positions[a * 3];
+        double ey = positions[b * 3 + 1] - positions[a * 3 + 1];
+        double ez = positions[b * 3 + 2] - positions[a * 3 + 2];
+        double nx = ey * face[2] - ez * face[1];
+        double ny = ez * face[0] - ex * face[2];
+        double nz = ex * face[1] - ey * face[0];
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0) {
+            return;
+        }
+        nx /= length;
+        ny /= length;
+        nz /= length;
+        double d = -(nx * positions[a * 3] + ny * positions[a * 3 + 1] + nz * positions[a * 3 + 2]);
+        double[] plane = {nx, ny, nz, d};
+        double weight = BORDER_WEIGHT * (ex * ex + ey * ey + ez * ez);
+        addPlane(a, plane, weight);
+        addPlane(b, plane, weight);
+    }
+
+    private void addPlane(int p, double[] plane, double weight) {
+        double a = plane[0], b = plane[1], c = plane[2], d = plane[3];
+        int q = p * 10;
+        quadrics[q] += weight * a * a;
+        quadrics[q + 1] += weight * a * b;
+        quadrics[q + 2] += weight * a * c;
+        quadrics[q + 3] += weight * a * d;
+        quadrics[q + 4] += weight * b * b;
+        quadrics[q + 5] += weight * b * c;
+        quadrics[q + 6] += weight * b * d;
+        quadrics[q + 7] += weight * c * c;
+        quadrics[q + 8] += weight * c * d;
+        quadrics[q + 9] += weight * d * d;
+    }
+
+    private void push(int a, int b) {
+        double[] q = new double[10];
+        for (int i = 0; i < 10; i++) {
+            q[i] = quadrics[a * 10 + i] + quadrics[b * 10 + i];
+        }
+        Collapse collapse = new Collapse(a, b, stamps[a], stamps[b]);
+        // optimal point solves the 3x3 system of the quadric, when it is well conditioned
+        double det = q[0] * (q[4] * q[7] - q[5] * q[5])
+                - q[1] * (q[1] * q[7] - q[5] * q[2])
+                + q[2] * (q[1] * q[5] - q[4] * q[2]);
+        if (Math.abs(det) > 1e-10) {
+            double x = -(q[3] * (q[4] * q[7] - q[5] * q[5]) - q[1] * (q[6] * q[7] - q[5] * q[8])
+                    + q[2] * (q[6] * q[5] - q[4] * q[8])) / det;
+            double y = -(q[0] * (q[6] * q[7] - q[8] * q[5]) - q[3] * (q[1] * q[7] - q[5] * q[2])
+                    + q[2] * (q[1] * q[8] - q[6] * q[2])) / det;
+            double z = -(q[0] * (q[4] * q[8] - q[5] * q[6]) - q[1] * (q[1] * q[8] - q[6] * q[2])
+                    + q[3] * (q[1] * q[5] - q[4] * q[2])) / det;
+            collapse.set(x, y, z, error(q, x, y, z));
+        } else {
+            collapse.set(positions[a * 3], positions[a * 3 + 1], positions[a * 3 + 2],
+                    error(q, positions[a * 3], positions[a * 3 + 1], positions[a * 3 + 2]));
+        }
+        // the endpoints and the midpoint are always candidates, the solution can be far off for nearly flat areas
+        considerEndpoint(collapse, q, positions[a * 3], positions[a * 3 + 1], positions[a * 3 + 2]);
+        considerEndpoint(collapse, q, positions[b * 3], positions[b * 3 + 1], positions[b * 3 + 2]);
+        considerEndpoint(collapse, q, (positions[a * 3] + positions[b * 3]) / 2,
+                (positions[a * 3 + 1] + positions[b * 3 + 1]) / 2, (positions[a * 3 + 2] + positions[b * 3 + 2]) / 2);
+        collapses.add(collapse);
+    }
+
+    private static void considerEndpoint(Collapse collapse, double[] q, double x, double y, double z) {
+        double error = error(q, x, y, z);
+        if (error < collapse.cost) {
+            collapse.set(x, y, z, error);
+        }
+    }
+
+    private static double error(double[] q, double x, double y, double z) {
+        return q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + 2 * q[3] * x
+                + q[4] * y * y + 2 * q[5] * y * z + 2 * q[6] * y
+                + q[7] * z * z + 2 * q[8] * z
+                + q[9];
+    }
+
+    private static double dot(double[] u, double[] v) {
+        return u[0] * v[0] + u[1] * v[1] + u[2] * v[2];
+    }
+
+    private static void countEdge(LongIntHashMap edgeUses, int a, int b) {
+        long key = edgeKey(a, b);
+        int uses = edgeUses.get(key);
+        edgeUses.put(key, uses == LongIntHashMap.MISSING ? 1 : uses + 1);
+    }
+
+    private static long edgeKey(int a, int b) {
+        return a < b ? (long) a << 32 | b : (long) b << 32 | a;
+    }
+
+    private static class Collapse implements Comparable<Collapse> {
+        final int a;
+        final int b;
+        final int stampA;
+        final int stampB;
+        double x;
+        double y;
+        double z;
+        double cost;
+
+        Collapse(int a, int b, int stampA, int stampB) {
+            this.a = a;
+            this.b = b;
+            this.stampA = stampA;
+            this.stampB = stampB;
+        }
+
+        void set(double x, double y, double z, double cost) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.cost = cost;
+        }
+
+        @Override
+        public int compareTo(Collapse other) {
+            return Double.compare(cost, other.cost);
+        }
+    }
+
+    private static class Position {
+        final float x;
+        final float y;
+        final float z;
+
+        Position(float x, float y, float z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Position)) {
+                return false;
+            }
+            Position other = (Position) o;
+            return Float.compare(x, other.x) == 0 && Float.compare(y, other.y) == 0 && Float.compare(z, other.z) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Float.floatToIntBits(x) + Float.floatToIntBits(y)) + Float.floatToIntBits(z);
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Streaming Wavefront OBJ/MTL parser, an alternative to Rajawali's {@code LoaderOBJ}.
+ * <p>
+ * The bytes are tokenized in place straight into primitive arrays. Files larger than the chunk size are split at
+ * line boundaries and the chunks are tokenized in parallel. Faces are then assembled in file order: polygons are
+ * fanned into triangles and every distinct position/uv/normal triplet becomes one indexed vertex.
+ * Parts are split on {@code o}, {@code g} and {@code usemtl} the way {@code LoaderOBJ} splits objects, and texture
+ * coordinates are flipped to {@code (u, 1 - v)} like there, so the result renders the same with fewer vertices.
+ */
+public class ObjParser {
+
+    public interface MaterialLibraryResolver {
+        /**
+         * @return the contents of the material library referenced by {@code mtllib}, or null if it is not available
+         */
+        byte[] open(String fileName) throws IOException;
+    }
+
+    /**
+     * Diffuse color of parts without a material definition, the MTL default {@code Kd 0.8 0.8 0.8}.
+     */
+    public static final int DEFAULT_COLOR = 0xFFCCCCCC;
+
+    private static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+    /**
+     * Offset of negative (relative) indices, which are resolved only once all chunks are tokenized.
+     */
+    private static final int RELATIVE = 1 << 30;
+    /**
+     * Triplets are packed into a long key with 21 bits per index.
+     */
+    private static final int MAX_ELEMENTS = (1 << 21) - 1;
+
+    private static final int EVENT_OBJECT = 0;
+    private static final int EVENT_GROUP = 1;
+    private static final int EVENT_MATERIAL = 2;
+    private static final int EVENT_LIBRARY = 3;
+
+    private final MaterialLibraryResolver resolver;
+    private final int chunkSize;
+
+    public ObjParser(MaterialLibraryResolver resolver) {
+        this(resolver, DEFAULT_CHUNK_SIZE);
+    }
+
+    ObjParser(MaterialLibraryResolver resolver, int chunkSize) {
+        this.resolver = resolver;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Names of the material libraries the model references.
+     */
+    public static List<String> materialLibraries(byte[] obj) {
+        List<String> libraries = new ArrayList<>();
+        ByteScanner scanner = new ByteScanner(obj, 0, obj.length);
+        while (scanner.nextLine()) {
+            if (scanner.keyword("mtllib")) {
+                libraries.add(scanner.rest());
+            }
+        }
+        return libraries;
+    }
+
+    public List<MeshData> parse(byte[] obj) throws IOException {
+        List<Chunk> chunks = split(obj);
+        tokenize(chunks);
+        return assemble(chunks);
+    }
+
+    private List<Chunk> split(byte[] obj) {
+        int count = Math.max(1, Math.min(obj.length / chunkSize, Runtime.getRuntime().availableProcessors()));
+        List<Chunk> chunks = new ArrayList<>(count);
+        int start = 0;
+        for (int i = 1; i <= count; i++) {
+            int end = i == count ? obj.length : (int) ((long) obj.length * i / count);
+            while (end < obj.length && obj[end - 1] != '\n') {
+                end++;
+            }
+            if (end > start) {
+                chunks.add(new Chunk(obj, start, end));
+            }
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static void tokenize(List<Chunk> chunks) throws IOException {
+        if (chunks.size() == 1) {
+            chunks.get(0).tokenize();
+            return;
+        }
+        List<Future<Chunk>> pending = new ArrayList<>(chunks.size() - 1);
+        for (Chunk chunk : chunks.subList(1, chunks.size())) {
+            pending.add(ForkJoinPool.commonPool().submit(chunk::tokenize));
+        }
+        chunks.get(0).tokenize();
+        try {
+            for (Future<Chunk> future : pending) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing", e);
+        }
+    }
+
+    private List<MeshData> assemble(List<Chunk> chunks) throws IOException {
+        int positionCount = 0;
+        int textureCoordCount = 0;
+        int normalCount = 0;
+        for (Chunk chunk : chunks) {
+            positionCount += chunk.positions.size();
+            textureCoordCount += chunk.textureCoords.size();
+            normalCount += chunk.normals.size();
+        }
+        FloatList positions = new FloatList(positionCount);
+        FloatList textureCoords = new FloatList(textureCoordCount);
+        FloatList normals = new FloatList(normalCount);
+        for (Chunk chunk : chunks) {
+            positions.addAll(chunk.positions);
+            textureCoords.addAll(chunk.textureCoords);
+            normals.addAll(chunk.normals);
+        }
+        if (positions.size() / 3 > MAX_ELEMENTS || textureCoords.size() / 2 > MAX_ELEMENTS
+                || normals.size() / 3 > MAX_ELEMENTS) {
+            throw new IOException("Model too large");
+        }
+
+        Map<String, Integer> colors = new HashMap<>();
+        List<MeshData> parts = new ArrayList<>();
+        PartBuilder part = new PartBuilder(positions, textureCoords, normals, positions.size() / 3);
+        int positionOffset = 0;
+        int textureCoordOffset = 0;
+        int normalOffset = 0;
+        for (Chunk chunk : chunks) {
+            IntList faces = chunk.faces;
+            int event = 0;
+            for (int f = 0; f < faces.size(); ) {
+                while (event < chunk.events.size() && chunk.events.get(event).faceOffset == f) {
+                    apply(chunk.events.get(event++), part, parts, colors);
+                }
+                int cornerCount = faces.get(f++);
+                int first = -1;
+                int previous = -1;
+                for (int c = 0; c < cornerCount; c++, f += 3) {
+                    int vertex = part.vertex(
+                            resolve(faces.get(f), positionOffset, positions.size() / 3),
+                            resolve(faces.get(f + 1), textureCoordOffset, textureCoords.size() / 2),
+                            resolve(faces.get(f + 2), normalOffset, normals.size() / 3));
+                    if (c == 0) {
+                        first = vertex;
+                    } else if (c >= 2) {
+                        part.triangle(first, previous, vertex);
+                    }
+                    previous = vertex;
+                }
+            }
+            while (event < chunk.events.size()) {
+                apply(chunk.events.get(event++), part, parts, colors);
+            }
+            positionOffset += chunk.positions.size() / 3;
+            textureCoordOffset += chunk.textureCoords.size() / 2;
+            normalOffset += chunk.normals.size() / 3;
+        }
+        part.finish(parts, colors);
+        return parts;
+    }
+
+    private void apply(Event event, PartBuilder part, List<MeshData> parts, Map<String, Integer> colors)
+            throws IOException {
+        switch (event.type) {
+            case EVENT_OBJECT:
+            case EVENT_GROUP:
+                part.finish(parts, colors);
+                part.name = event.name;
+                part.material = null;
+                break;
+            case EVENT_MATERIAL:
+                part.finish(parts, colors);
+                part.material = event.name;
+                break;
+            case EVENT_LIBRARY:
+                byte[] library = resolver != null ? resolver.open(event.name) : null;
+                if (library != null) {
+                    parseMaterials(library, colors);
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return 0 based index, or -1 when the element is not specified
+     */
+    private static int resolve(int index, int chunkOffset, int count) throws IOException {
+        int resolved;
+        if (index > 0) {
+            resolved = index - 1;
+        } else if (index < 0) {
+            resolved = chunkOffset + index + RELATIVE;
+        } else {
+            return -1;
+        }
+        if (resolved < 0 || resolved >= count) {
+            throw new IOException("Face index out of bounds: " + resolved + " of " + count);
+        }
+        return resolved;
+    }
+
+    static void parseMaterials(byte[] mtl, Map<String, Integer> colors) throws IOException {
+        ByteScanner scanner = new ByteScanner(mtl, 0, mtl.length);
+        String material = null;
+        int rgb = DEFAULT_COLOR & 0xFFFFFF;
+        int alpha = 0xFF;
+        while (scanner.nextLine()) {
+            if (scanner.keyword("newmtl")) {
+                material = scanner.rest();
+                rgb = DEFAULT_COLOR & 0xFFFFFF;
+                alpha = 0xFF;
+            } else if (material == null) {
+                continue;
+            } else if (scanner.keyword("Kd")) {
+                rgb = channel(scanner.nextFloat()) << 16 | channel(scanner.nextFloat()) << 8
+                        | channel(scanner.nextFloat());
+            } else if (scanner.keyword("d")) {
+                alpha = channel(scanner.nextFloat());
+            } else {
+                continue;
+            }
+            colors.put(material, alpha << 24 | rgb);
+        }
+    }
+
+    private static int channel(float value) {
+        return Math.round(Math.max(0f, Math.min(1f, value)) * 255f);
+    }
+
+    private static class Event {
+        final int faceOffset;
+        final int type;
+        final String name;
+
+        Event(int faceOffset, int type, String name) {
+            this.faceOffset = faceOffset;
+            this.type = type;
+            this.name = name;
+        }
+    }
+
+    /**
+     * A range of whole lines, tokenized independently of the other chunks.
+     * Faces are stored as {@code cornerCount} followed by a position, uv and normal index per corner.
+     */
+    private static class Chunk {
+        final ByteScanner scanner;
+        final FloatList positions;
+        final FloatList textureCoords;
+        final FloatList normals;
+        final IntList faces;
+        final List<Event> events = new ArrayList<>();
+
+        Chunk(byte[] data, int start, int end) {
+            scanner = new ByteScanner(data, start, end);
+            // a position line is ~30 bytes, a face line ~40
+            int expected = (end - start) / 32;
+            positions = new FloatList(expected);
+            textureCoords = new FloatList(expected);
+            normals = new FloatList(expected);
+            faces = new IntList(expected * 2);
+        }
+
+        Chunk tokenize() throws IOException {
+            ByteScanner s = scanner;
+            while (s.nextLine()) {
+                if (s.keyword("v")) {
+                    positions.add(s.nextFloat());
+                    positions.add(s.nextFloat());
+                    positions.add(s.nextFloat());
+                } else if (s.keyword("vt")) {
+                    textureCoords.add(s.nextFloat());
+                    textureCoords.add(s.hasMore() ? 1f - s.nextFloat() : 1f);
+                } else if (s.keyword("vn")) {
+                    normals.add(s.nextFloat());
+                    normals.add(s.nextFloat());
+                    normals.add(s.nextFloat());
+                } else if (s.keyword("f")) {
+                    face(s);
+                } else if (s.keyword("o")) {
+                    events.add(new Event(faces.size(), EVENT_OBJECT, s.rest()));
+                } else if (s.keyword("g")) {
+                    events.add(new Event(faces.size(), EVENT_GROUP, s.rest()));
+                } else if (s.keyword("usemtl")) {
+                    events.add(new Event(faces.size(), EVENT_MATERIAL, s.rest()));
+                } else if (s.keyword("mtllib")) {
+                    events.add(new Event(faces.size(), EVENT_LIBRARY, s.rest()));
+                }
+            }
+            return this;
+        }
+
+        private void face(ByteScanner s) throws IOException {
+            int header = faces.size();
+            faces.add(0);
+            int corners = 0;
+            while (s.hasMore()) {
+                int position = index(s, positions.size() / 3);
+                int textureCoord = 0;
+                int normal = 0;
+                if (s.consume('/')) {
+                    if (!s.consume('/')) {
+                        textureCoord = index(s, textureCoords.size() / 2);
+                        if (s.consume('/')) {
+                            normal = index(s, normals.size() / 3);
+                        }
+                    } else {
+                        normal = index(s, normals.size() / 3);
+                    }
+                }
+                faces.add(position);
+                faces.add(textureCoord);
+                faces.add(normal);
+                corners++;
+            }
+            if (corners < 3) {
+                throw s.error("face with less than 3 vertices", s.position());
+            }
+            faces.set(header, corners);
+        }
+
+        /**
+         * Keeps absolute (1 based) indices, relative ones are stored offset by {@link #RELATIVE}
+         * from the chunk local count, since the counts of the preceding chunks are not known yet.
+         */
+        private static int index(ByteScanner s, int localCount) throws IOException {
+            int index = s.nextInt();
+            if (index == 0) {
+                throw s.error("zero index", s.position());
+            }
+            return index > 0 ? index : localCount + index - RELATIVE;
+        }
+    }
+
+    private static class PartBuilder {
+        final FloatList positions;
+        final FloatList textureCoords;
+        final FloatList normals;
+        final LongIntHashMap vertexIndices;
+        final FloatList vertices;
+        final FloatList partTextureCoords;
+        final FloatList partNormals;
+        final IntList indices;
+        boolean hasTextureCoords;
+        boolean hasNormals;
+        String name = "default";
+        String material;
+
+        PartBuilder(FloatList positions, FloatList textureCoords, FloatList normals, int expectedVertices) {
+            this.positions = positions;
+            this.textureCoords = textureCoords;
+            this.normals = normals;
+            vertexIndices = new LongIntHashMap(expectedVertices);
+            vertices = new FloatList(expectedVertices * 3);
+            partTextureCoords = new FloatList(expectedVertices * 2);
+            partNormals = new FloatList(expectedVertices * 3);
+            indices = new IntList(expectedVertices * 6);
+        }
+
+        int vertex(int position, int textureCoord, int normal) {
+            long key = (long) position << 42 | (long) (textureCoord + 1) << 21 | (normal + 1);
+            int next = vertexIndices.size();
+            int existing = vertexIndices.putIfAbsent(key, next);
+            if (existing != LongIntHashMap.MISSING) {
+                return existing;
+            }
+            vertices.add(positions.get(position * 3));
+            vertices.add(positions.get(position * 3 + 1));
+            vertices.add(positions.get(position * 3 + 2));
+            if (textureCoord >= 0) {
+                hasTextureCoords = true;
+                partTextureCoords.add(textureCoords.get(textureCoord * 2));
+                partTextureCoords.add(textureCoords.get(textureCoord * 2 + 1));
+            } else {
+                partTextureCoords.add(0);
+                partTextureCoords.add(0);
+            }
+            if (normal >= 0) {
+                hasNormals = true;
+                partNormals.add(normals.get(normal * 3));
+                partNormals.add(normals.get(normal * 3 + 1));
+                partNormals.add(normals.get(normal * 3 + 2));
+            } else {
+                partNormals.add(0);
+                partNormals.add(0);
+                partNormals.add(0);
+            }
+            return next;
+        }
+
+        void triangle(int a, int b, int c) {
+            indices.add(a);
+            indices.add(b);
+            indices.add(c);
+        }
+
+        /**
+         * Emits the part if it has any faces and starts an empty one with the same name and material.
+         */
+        void finish(List<MeshData> parts, Map<String, Integer> colors) {
+            if (indices.size() > 0) {
+                Integer color = material != null ? colors.get(material) : null;
+                parts.add(new MeshData(name, vertices.toArray(), hasNormals ? partNormals.toArray() : new float[0],
+                        hasTextureCoords ? partTextureCoords.toArray() : new float[0], indices.toArray(),
+                        color != null ? color : DEFAULT_COLOR));
+            }
+            vertexIndices.clear();
+            vertices.clear();
+            partTextureCoords.clear();
+            partNormals.clear();
+            indices.clear();
+            hasTextureCoords = false;
+            hasNormals = false;
+        }
+    }
+}
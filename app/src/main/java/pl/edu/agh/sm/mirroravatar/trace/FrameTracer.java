@@ -0,0 +1,102 @@
+package pl.edu.agh.sm.mirroravatar.trace;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stamps every frame at each stage boundary, from the preview callback to the rendered avatar frame,
+ * and aggregates the time spent between consecutive boundaries into per-stage histograms.
+ * Stamps of the last {@value #RING} frames are kept in a ring, so tracing allocates nothing.
+ */
+public class FrameTracer {
+
+    public static final int CAPTURED = 0;
+    public static final int DEQUEUED = 1;
+    public static final int ACQUIRED = 2;
+    public static final int FACE_DETECTED = 3;
+    public static final int EYES_DETECTED = 4;
+    public static final int PUBLISHED = 5;
+    public static final int RENDERED = 6;
+    private static final int STAGES = 7;
+    private static final String[] STAGE_NAMES = {
+            "capture", "queue", "acquire", "face", "eyes", "publish", "render"
+    };
+    private static final int RING = 32;
+
+    private final AtomicLong nextFrameId = new AtomicLong(1);
+    private final AtomicLongArray frameIds = new AtomicLongArray(RING);
+    private final AtomicLongArray stamps = new AtomicLongArray(RING * STAGES);
+    private final LatencyHistogram[] stageHistograms = new LatencyHistogram[STAGES];
+    private final LatencyHistogram endToEnd = new LatencyHistogram("end-to-end");
+
+    public FrameTracer() {
+        for (int stage = DEQUEUED; stage < STAGES; stage++) {
+            stageHistograms[stage] = new LatencyHistogram(STAGE_NAMES[stage]);
+        }
+    }
+
+    /**
+     * Starts tracing a frame delivered by the camera at {@code captureNanos}.
+     *
+     * @return id to pass to {@link #stamp(long, int)}, never 0
+     */
+    public long newFrame(long captureNanos) {
+        long frameId = nextFrameId.getAndIncrement();
+        int base = slot(frameId) * STAGES;
+        frameIds.set(slot(frameId), frameId);
+        stamps.set(base + CAPTURED, captureNanos);
+        for (int stage = DEQUEUED; stage < STAGES; stage++) {
+            stamps.set(base + stage, 0);
+        }
+        return frameId;
+    }
+
+    /**
+     * Marks that {@code frameId} passed {@code stage} now. Frames no longer in the ring are ignored.
+     */
+    public void stamp(long frameId, int stage) {
+        if (frameId == 0 || frameIds.get(slot(frameId)) != frameId) {
+            return;
+        }
+        long now = System.nanoTime();
+        int base = slot(frameId) * STAGES;
+        stamps.set(base + stage, now);
+        long previous = stamps.get(base + stage - 1);
+        if (previous != 0) {
+            stageHistograms[stage].record(now - previous);
+        }
+        if (stage == RENDERED) {
+            endToEnd.record(now - stamps.get(base + CAPTURED));
+        }
+    }
+
+    public LatencyHistogram getStageHistogram(int stage) {
+        return stageHistograms[stage];
+    }
+
+    public LatencyHistogram getEndToEndHistogram() {
+        return endToEnd;
+    }
+
+    /**
+     * Multi-line report of every stage and the end-to-end latency.
+     */
+    public String report() {
+        StringBuilder builder = new StringBuilder();
+        for (int stage = DEQUEUED; stage < STAGES; stage++) {
+            builder.append(stageHistograms[stage]).append('\n');
+        }
+        return builder.append(endToEnd).toString();
+    }
+
+    public void reset() {
+        for (int stage = DEQUEUED; stage < STAGES; stage++) {
+            stageHistograms[stage].reset();
+        }
+        endToEnd.reset();
+    }
+
+    private static int slot(long frameId) {
+        return (int) (frameId % RING);
+    }
+}
@@ -0,0 +1,70 @@
+package pl.edu.agh.sm.mirroravatar.trace;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket latency histogram, 0.25 ms buckets up to 250 ms plus an overflow bucket.
+ * Recording is lock-free and allocation-free; percentiles are read from any thread.
+ */
+public class LatencyHistogram {
+
+    private static final long BUCKET_NANOS = 250_000L;
+    private static final int BUCKETS = 1000;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long nanos) {
+        int bucket = (int) Math.min(Math.max(nanos, 0) / BUCKET_NANOS, BUCKETS);
+        counts.incrementAndGet(bucket);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i <= BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile 0..100
+     * @return upper bound of the bucket holding the percentile, in milliseconds, or 0 when nothing was recorded
+     */
+    public double getPercentileMillis(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i <= BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return (i + 1) * BUCKET_NANOS / 1e6;
+            }
+        }
+        return (BUCKETS + 1) * BUCKET_NANOS / 1e6;
+    }
+
+    public void reset() {
+        for (int i = 0; i <= BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s p50 %.2f p95 %.2f p99 %.2f ms (%d)", name,
+                getPercentileMillis(50), getPercentileMillis(95), getPercentileMillis(99), getCount());
+    }
+}
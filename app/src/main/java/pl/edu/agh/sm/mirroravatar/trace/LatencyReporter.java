@@ -0,0 +1,113 @@
+package pl.edu.agh.sm.mirroravatar.trace;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Periodically dumps the {@link FrameTracer} histograms to logcat and appends them to a file,
+ * then starts a new measurement window. Runs on its own thread so file IO never touches the pipeline.
+ * The first start begins a new file, the one of the previous session is kept with a {@value #PREVIOUS_SUFFIX}
+ * suffix, so the reports do not pile up over sessions.
+ */
+public class LatencyReporter {
+
+    private static final String TAG = "Latency";
+    private static final String PREVIOUS_SUFFIX = ".1";
+
+    public interface StatsLineListener {
+        void onStatsLine(String statsLine);
+    }
+
+    private final FrameTracer tracer;
+    private final File logFile;
+    private final long intervalMs;
+    private HandlerThread thread;
+    private Handler handler;
+    private volatile StatsLineListener statsLineListener;
+    private boolean rotated;
+
+    private final Runnable rotate = this::rotate;
+    private final Runnable dump = new Runnable() {
+        @Override
+        public void run() {
+            dump();
+            handler.postDelayed(this, intervalMs);
+        }
+    };
+
+    /**
+     * @param logFile file the reports are appended to, or null to only log them
+     */
+    public LatencyReporter(FrameTracer tracer, File logFile, long intervalMs) {
+        this.tracer = tracer;
+        this.logFile = logFile;
+        this.intervalMs = intervalMs;
+    }
+
+    public void setStatsLineListener(StatsLineListener statsLineListener) {
+        this.statsLineListener = statsLineListener;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new HandlerThread("LatencyReporter");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        if (!rotated) {
+            rotated = true;
+            handler.post(rotate);
+        }
+        handler.postDelayed(dump, intervalMs);
+    }
+
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        handler.removeCallbacks(rotate);
+        handler.removeCallbacks(dump);
+        thread.quitSafely();
+        thread = null;
+        handler = null;
+    }
+
+    private void rotate() {
+        if (logFile == null || !logFile.exists()) {
+            return;
+        }
+        File previous = new File(logFile.getPath() + PREVIOUS_SUFFIX);
+        if (previous.exists() && !previous.delete() || !logFile.renameTo(previous)) {
+            Log.e(TAG, "Could not rotate " + logFile);
+        }
+    }
+
+    private void dump() {
+        String report = tracer.report();
+        LatencyHistogram endToEnd = tracer.getEndToEndHistogram();
+        String statsLine = String.format(Locale.US, "motion-to-render p50 %.1f p95 %.1f p99 %.1f ms",
+                endToEnd.getPercentileMillis(50), endToEnd.getPercentileMillis(95), endToEnd.getPercentileMillis(99));
+        tracer.reset();
+
+        Log.i(TAG, report);
+        if (logFile != null) {
+            try (Writer writer = new FileWriter(logFile, true)) {
+                writer.write(System.currentTimeMillis() + "\n" + report + "\n\n");
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write latency report to " + logFile, e);
+            }
+        }
+        StatsLineListener listener = statsLineListener;
+        if (listener != null) {
+            listener.onStatsLine(statsLine);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Loads Haar cascades from raw resources. The OpenCV Java API only builds a {@link CascadeClassifier} from a file,
+ * so each cascade is copied once into a directory that is kept across launches. The copy is named after the CRC32
+ * of the resource and reused as long as the checksum and the length match, a new APK with a changed cascade
+ * replaces it.
+ */
+public class CascadeLoader {
+
+    private static final String TAG = "CascadeLoader";
+
+    private final Resources resources;
+    private final File cacheDir;
+    private final Executor executor;
+
+    public CascadeLoader(Resources resources, File cacheDir, Executor executor) {
+        this.resources = resources;
+        this.cacheDir = cacheDir;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts loading the cascade on the executor. Completes with null when the cascade could not be loaded,
+     * like the detectors did before when {@link CascadeClassifier#empty()} was true.
+     */
+    public CompletableFuture<CascadeClassifier> load(int resourceId) {
+        return CompletableFuture.supplyAsync(() -> loadNow(resourceId), executor);
+    }
+
+    public CascadeClassifier loadNow(int resourceId) {
+        long start = System.nanoTime();
+        String name = resources.getResourceEntryName(resourceId);
+        try {
+            byte[] cascade = readResource(resourceId);
+            CRC32 crc = new CRC32();
+            crc.update(cascade, 0, cascade.length);
+            File file = new File(cacheDir, String.format("%s.%08x.xml", name, crc.getValue()));
+            boolean cached = file.length() == cascade.length;
+            if (!cached) {
+                write(file, cascade);
+                deleteStale(name, file);
+            }
+            CascadeClassifier classifier = new CascadeClassifier(file.getAbsolutePath());
+            if (classifier.empty() && cached) {
+                Log.w(TAG, "Rewriting unreadable cascade " + file);
+                write(file, cascade);
+                classifier = new CascadeClassifier(file.getAbsolutePath());
+            }
+            if (classifier.empty()) {
+                Log.e(TAG, "Could not load cascade " + name);
+                return null;
+            }
+            Log.d(TAG, String.format("%s loaded in %.1f ms%s", name, (System.nanoTime() - start) / 1e6,
+                    cached ? " from cache" : ""));
+            return classifier;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load cascade " + name, e);
+            return null;
+        }
+    }
+
+    private void write(File file, byte[] cascade) throws IOException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Could not create " + cacheDir);
+        }
+        File temp = new File(cacheDir, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(cascade);
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void deleteStale(String name, File current) {
+        File[] files = cacheDir.listFiles((dir, fileName) -> fileName.startsWith(name + ".") && fileName.endsWith(".xml"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.equals(current)) {
+                file.delete();
+            }
+        }
+    }
+
+    private byte[] readResource(int resourceId) throws IOException {
+        try (InputStream in = resources.openRawResource(resourceId)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 8192));
+            byte[] chunk = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
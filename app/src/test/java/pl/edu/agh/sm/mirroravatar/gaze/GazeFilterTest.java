@@ -0,0 +1,47 @@
+package pl.edu.agh.sm.mirroravatar.gaze;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GazeFilterTest {
+
+    private static final long FRAME_NANOS = 33_000_000L;
+
+    @Test
+    public void movingAverage_keepsMeanOfLastSamples() {
+        GazeFilter filter = new MovingAverageFilter(3);
+        assertEquals(3.0, filter.filter(3, 0), 1e-9);
+        assertEquals(4.5, filter.filter(6, 1), 1e-9);
+        assertEquals(6.0, filter.filter(9, 2), 1e-9);
+        assertEquals(9.0, filter.filter(12, 3), 1e-9);
+    }
+
+    @Test
+    public void oneEuro_convergesToConstantInput() {
+        assertConverges(new OneEuroFilter(1.0, 0.05, 1.0));
+    }
+
+    @Test
+    public void kalman_convergesToConstantInput() {
+        assertConverges(new KalmanFilter(2000, 4));
+    }
+
+    @Test
+    public void kalman_estimatesConstantVelocity() {
+        KalmanFilter filter = new KalmanFilter(2000, 4);
+        for (int i = 0; i < 100; i++) {
+            filter.filter(i, i * FRAME_NANOS);
+        }
+        assertEquals(1e9 / FRAME_NANOS, filter.getVelocity(), 1.0);
+    }
+
+    private static void assertConverges(GazeFilter filter) {
+        filter.filter(0, 0);
+        double value = 0;
+        for (int i = 1; i < 100; i++) {
+            value = filter.filter(10, i * FRAME_NANOS);
+        }
+        assertEquals(10.0, value, 0.01);
+    }
+}
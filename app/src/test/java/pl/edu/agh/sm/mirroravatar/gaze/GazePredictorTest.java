@@ -0,0 +1,74 @@
+package pl.edu.agh.sm.mirroravatar.gaze;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GazePredictorTest {
+
+    private static final long MS = 1_000_000L;
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    public void predict_extrapolatesTheSmoothedVelocity() {
+        GazePredictor predictor = new GazePredictor(100 * MS, 300, 15, 0.6);
+        predictor.update(0, 0, 0, 1);
+        // 100 deg/s, half of it after smoothing
+        predictor.update(1, -1, 10 * MS, 1);
+
+        predictor.predict(30 * MS);
+
+        assertEquals(2, predictor.getYaw(), EPSILON);
+        assertEquals(-2, predictor.getPitch(), EPSILON);
+    }
+
+    @Test
+    public void predict_stopsAtTheHorizon() {
+        GazePredictor predictor = new GazePredictor(100 * MS, 300, 15, 0.6);
+        predictor.update(0, 0, 0, 1);
+        predictor.update(1, 0, 10 * MS, 1);
+
+        predictor.predict(10 * MS + 1_000 * MS);
+
+        assertEquals(1 + 50 * 0.1, predictor.getYaw(), EPSILON);
+    }
+
+    @Test
+    public void predict_clampsTheVelocityAndTheOffset() {
+        GazePredictor predictor = new GazePredictor(100 * MS, 300, 5, 0.6);
+        predictor.update(0, 0, 0, 1);
+        // 1000 deg/s, limited to 300 and smoothed to 150
+        predictor.update(10, 0, 10 * MS, 1);
+
+        predictor.predict(10 * MS + 20 * MS);
+        assertEquals(10 + 150 * 0.02, predictor.getYaw(), EPSILON);
+        predictor.predict(10 * MS + 50 * MS);
+        assertEquals(10 + 5, predictor.getYaw(), EPSILON);
+    }
+
+    @Test
+    public void predict_fallsBackToTheLastSampleWhenConfidenceIsLow() {
+        GazePredictor predictor = new GazePredictor();
+        predictor.update(0, 0, 0, 1);
+        predictor.update(1, 0, 10 * MS, 1);
+        predictor.update(2, 0, 20 * MS, GazeSample.ONE_EYE_CONFIDENCE);
+
+        predictor.predict(40 * MS);
+        assertEquals(2, predictor.getYaw(), EPSILON);
+
+        // the motion model starts over after an untrusted sample
+        predictor.update(3, 0, 30 * MS, 1);
+        predictor.predict(50 * MS);
+        assertEquals(3, predictor.getYaw(), EPSILON);
+    }
+
+    @Test
+    public void predict_holdsWithoutSamples() {
+        GazePredictor predictor = new GazePredictor();
+
+        predictor.predict(10 * MS);
+
+        assertEquals(0, predictor.getYaw(), EPSILON);
+        assertEquals(0, predictor.getPitch(), EPSILON);
+    }
+}
@@ -0,0 +1,49 @@
+package pl.edu.agh.sm.mirroravatar.gaze;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GazeSampleTest {
+
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    public void rateConfidence_trustsEyesThatLookTheSameWay() {
+        GazeSample sample = new GazeSample();
+        sample.left.set(100, 100, 104, 101);
+        sample.right.set(200, 100, 204, 101);
+
+        sample.rateConfidence(false);
+        assertEquals(1, sample.confidence, EPSILON);
+        sample.rateConfidence(true);
+        assertEquals(GazeSample.REUSED_FACTOR, sample.confidence, EPSILON);
+    }
+
+    @Test
+    public void rateConfidence_dropsWhenTheEyesDisagree() {
+        GazeSample sample = new GazeSample();
+        sample.left.set(100, 100, 104, 100);
+        // the offsets differ by a tenth of the distance between the eyes
+        sample.right.set(200, 100, 194, 100);
+
+        sample.rateConfidence(false);
+        assertEquals(0.5, sample.confidence, EPSILON);
+
+        sample.right.set(200, 100, 180, 100);
+        sample.rateConfidence(false);
+        assertEquals(0, sample.confidence, EPSILON);
+    }
+
+    @Test
+    public void rateConfidence_trustsASingleEyeLess() {
+        GazeSample sample = new GazeSample();
+        sample.right.set(200, 100, 204, 101);
+
+        sample.rateConfidence(false);
+        assertEquals(GazeSample.ONE_EYE_CONFIDENCE, sample.confidence, EPSILON);
+        sample.right.clear();
+        sample.rateConfidence(false);
+        assertEquals(0, sample.confidence, EPSILON);
+    }
+}
@@ -0,0 +1,47 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LodSelectorTest {
+
+    private static final double BUDGET = 1.0 / 30;
+
+    @Test
+    public void level_followsProjectedSizeWithHysteresis() {
+        LodSelector selector = new LodSelector(new double[]{400, 100, 0}, BUDGET);
+        assertEquals(0, selector.select(500, BUDGET));
+        assertEquals(1, selector.select(399, BUDGET));
+        // just past the threshold is not enough to go back to the finer level
+        assertEquals(1, selector.select(410, BUDGET));
+        assertEquals(0, selector.select(480, BUDGET));
+        assertEquals(2, selector.select(50, BUDGET));
+    }
+
+    @Test
+    public void slowFrames_selectCoarserLevels() {
+        LodSelector selector = new LodSelector(new double[]{400, 100, 0}, BUDGET);
+        int level = 0;
+        for (int i = 0; i < 100; i++) {
+            level = selector.select(500, BUDGET * 2);
+        }
+        assertTrue(level > 0);
+        for (int i = 0; i < 1000; i++) {
+            level = selector.select(500, BUDGET / 2);
+        }
+        assertEquals(0, level);
+    }
+
+    @Test
+    public void slowInput_withCheapRenders_keepsTheFinestLevel() {
+        LodSelector selector = new LodSelector(new double[]{400, 100, 0}, BUDGET);
+        // a gaze sample every 100 ms, well over the budget, each rendered in 5 ms
+        double renderSeconds = 0.005;
+        int level = 0;
+        for (int frame = 0; frame < 300; frame++) {
+            level = selector.select(500, renderSeconds);
+        }
+        assertEquals(0, level);
+    }
+}
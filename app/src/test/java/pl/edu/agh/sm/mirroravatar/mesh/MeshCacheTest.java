@@ -0,0 +1,97 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class MeshCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writtenParts_areReadBack() throws IOException {
+        File cache = folder.newFile("model.mesh");
+        MeshData triangle = new MeshData("triangle",
+                new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0},
+                new float[]{0, 0, 1, 0, 0, 1, 0, 0, 1},
+                new float[]{0, 0, 1, 0, 0, 1},
+                new int[]{0, 1, 2}, 0xFFECBCB4);
+        MeshData bare = new MeshData("bare", new float[]{1, 2, 3}, new float[0], new float[0], new int[]{0, 0, 0}, 0);
+        MeshCache.write(cache, 42L, Arrays.asList(triangle, bare));
+
+        List<MeshBuffers> parts = MeshCache.read(cache, 42L);
+        assertNotNull(parts);
+        assertEquals(2, parts.size());
+        MeshData first = parts.get(0).toMeshData();
+        assertEquals("triangle", first.name);
+        assertArrayEquals(triangle.vertices, first.vertices, 0f);
+        assertArrayEquals(triangle.normals, first.normals, 0f);
+        assertArrayEquals(triangle.textureCoords, first.textureCoords, 0f);
+        assertArrayEquals(triangle.indices, first.indices);
+        assertEquals(0xFFECBCB4, first.color);
+        assertEquals(3, parts.get(0).getVertexCount());
+        MeshData second = parts.get(1).toMeshData();
+        assertEquals("bare", second.name);
+        assertEquals(0, second.normals.length);
+        assertArrayEquals(bare.vertices, second.vertices, 0f);
+        assertArrayEquals(bare.indices, second.indices);
+    }
+
+    @Test
+    public void read_mapsTheArraysWithoutCopyingThemToTheHeap() throws IOException {
+        File cache = folder.newFile("large.mesh");
+        int vertexCount = 300_000;
+        float[] vertices = new float[3 * vertexCount];
+        int[] indices = new int[3 * vertexCount];
+        for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = i;
+            indices[i] = i / 3;
+        }
+        MeshCache.write(cache, 7L, Arrays.asList(
+                new MeshData("large", vertices, vertices, new float[0], indices, 0)));
+        // the class loading and the first mapping out of the measurement
+        MeshCache.read(cache, 7L);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        List<MeshBuffers> parts = MeshCache.read(cache, 7L);
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        MeshBuffers part = parts.get(0);
+        assertTrue(part.vertices.isDirect());
+        assertFalse(part.vertices.hasArray());
+        assertFalse(part.normals.hasArray());
+        assertFalse(part.indices.hasArray());
+        assertEquals(vertexCount, part.getVertexCount());
+        assertEquals(vertices[vertices.length - 1], part.vertices.get(vertices.length - 1), 0f);
+        assertEquals(indices[indices.length - 1], part.indices.get(indices.length - 1));
+        // a copy of the vertices alone would be 3.6 MB
+        assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+    }
+
+    @Test
+    public void changedSource_missesCache() throws IOException {
+        File cache = folder.newFile("model.mesh");
+        byte[] source = "v 0 0 0".getBytes();
+        MeshCache.write(cache, MeshCache.hash(source), Arrays.asList(
+                new MeshData("p", new float[3], new float[0], new float[0], new int[3], 0)));
+
+        assertNotNull(MeshCache.read(cache, MeshCache.hash(source)));
+        assertNull(MeshCache.read(cache, MeshCache.hash("v 0 0 1".getBytes())));
+        assertNull(MeshCache.read(new File(folder.getRoot(), "missing.mesh"), MeshCache.hash(source)));
+    }
+}
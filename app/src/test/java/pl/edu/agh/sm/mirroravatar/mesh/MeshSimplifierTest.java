@@ -0,0 +1,76 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+public class MeshSimplifierTest {
+
+    @Test
+    public void flatGrid_staysFlatAndKeepsItsBorder() {
+        int size = 20;
+        float[] vertices = new float[(size + 1) * (size + 1) * 3];
+        for (int y = 0, v = 0; y <= size; y++) {
+            for (int x = 0; x <= size; x++, v += 3) {
+                vertices[v] = x;
+                vertices[v + 1] = y;
+            }
+        }
+        int[] indices = new int[size * size * 6];
+        for (int y = 0, i = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int corner = y * (size + 1) + x;
+                indices[i++] = corner;
+                indices[i++] = corner + 1;
+                indices[i++] = corner + size + 1;
+                indices[i++] = corner + 1;
+                indices[i++] = corner + size + 2;
+                indices[i++] = corner + size + 1;
+            }
+        }
+        MeshData grid = new MeshData("grid", vertices, new float[0], new float[0], indices, 0);
+
+        MeshData simplified = MeshSimplifier.simplify(grid, 0.1);
+
+        assertTrue(simplified.getTriangleCount() <= grid.getTriangleCount() / 10);
+        assertTrue(simplified.getTriangleCount() >= 2);
+        float minX = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int v = 0; v < simplified.vertices.length; v += 3) {
+            assertEquals(0f, simplified.vertices[v + 2], 1e-4f);
+            minX = Math.min(minX, simplified.vertices[v]);
+            maxX = Math.max(maxX, simplified.vertices[v]);
+            minY = Math.min(minY, simplified.vertices[v + 1]);
+            maxY = Math.max(maxY, simplified.vertices[v + 1]);
+        }
+        assertEquals(0f, minX, 1e-3f);
+        assertEquals(size, maxX, 1e-3f);
+        assertEquals(0f, minY, 1e-3f);
+        assertEquals(size, maxY, 1e-3f);
+    }
+
+    @Test
+    public void head_isReducedWithoutDegenerateFaces() throws IOException {
+        byte[] head = Files.readAllBytes(Paths.get("src/main/res/raw/head_obj.obj"));
+        MeshData full = new ObjParser(null).parse(head).get(0);
+
+        MeshData simplified = MeshSimplifier.simplify(full, 0.25);
+
+        assertTrue(simplified.getTriangleCount() <= full.getTriangleCount() / 4);
+        assertEquals(simplified.getVertexCount() * 3, simplified.normals.length);
+        assertEquals(simplified.getVertexCount() * 2, simplified.textureCoords.length);
+        for (int t = 0; t < simplified.indices.length; t += 3) {
+            int a = simplified.indices[t], b = simplified.indices[t + 1], c = simplified.indices[t + 2];
+            assertFalse(samePosition(simplified, a, b) || samePosition(simplified, b, c) || samePosition(simplified, a, c));
+        }
+    }
+
+    private static boolean samePosition(MeshData mesh, int a, int b) {
+        return mesh.vertices[a * 3] == mesh.vertices[b * 3]
+                && mesh.vertices[a * 3 + 1] == mesh.vertices[b * 3 + 1]
+                && mesh.vertices[a * 3 + 2] == mesh.vertices[b * 3 + 2];
+    }
+}
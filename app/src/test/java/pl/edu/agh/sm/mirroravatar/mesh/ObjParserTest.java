@@ -0,0 +1,91 @@
+package pl.edu.agh.sm.mirroravatar.mesh;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ObjParserTest {
+
+    private static final String QUAD =
+            "# quad and a triangle sharing an edge\n" +
+                    "mtllib quad.mtl\n" +
+                    "o quad\n" +
+                    "v 0 0 0\n" +
+                    "v 1.0 0 0\n" +
+                    "v 1 1 0\n" +
+                    "v 0 1.5e0 -0\n" +
+                    "vt 0 0\n" +
+                    "vt 1 0.25\n" +
+                    "vn 0 0 1\n" +
+                    "usemtl red\n" +
+                    "f 1/1/1 2/2/1 3/1/1 4/1/1\r\n" +
+                    "f -4/1/1 -2/1/1 -1/1/1\n" +
+                    "g plain\n" +
+                    "f 1//1 2//1 3//1\n";
+
+    private static final String MTL =
+            "newmtl red\n" +
+                    "Kd 1.0 0.0 0.0\n" +
+                    "d 0.5\n";
+
+    @Test
+    public void faces_areTriangulatedAndIndexed() throws IOException {
+        ObjParser parser = new ObjParser(name -> name.equals("quad.mtl") ? MTL.getBytes(StandardCharsets.UTF_8) : null);
+        List<MeshData> parts = parser.parse(QUAD.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(2, parts.size());
+        MeshData quad = parts.get(0);
+        assertEquals("quad", quad.name);
+        assertEquals(3, quad.getTriangleCount());
+        // 1/1/1 is shared by both faces
+        assertEquals(4, quad.getVertexCount());
+        assertArrayEquals(new int[]{0, 1, 2, 0, 2, 3, 0, 2, 3}, quad.indices);
+        assertEquals(1.5f, quad.vertices[10], 0f);
+        // v is flipped like LoaderOBJ does
+        assertEquals(0.75f, quad.textureCoords[3], 0f);
+        assertEquals(0x80FF0000, quad.color);
+
+        MeshData plain = parts.get(1);
+        assertEquals("plain", plain.name);
+        assertEquals(1, plain.getTriangleCount());
+        assertEquals(0, plain.textureCoords.length);
+        assertEquals(9, plain.normals.length);
+        assertEquals(ObjParser.DEFAULT_COLOR, plain.color);
+    }
+
+    @Test
+    public void parallelChunks_matchSequentialParse() throws IOException {
+        byte[] head = Files.readAllBytes(Paths.get("src/main/res/raw/head_obj.obj"));
+        List<MeshData> sequential = new ObjParser(null, Integer.MAX_VALUE).parse(head);
+        List<MeshData> parallel = new ObjParser(null, 4096).parse(head);
+
+        assertEquals(sequential.size(), parallel.size());
+        for (int i = 0; i < sequential.size(); i++) {
+            assertArrayEquals(sequential.get(i).vertices, parallel.get(i).vertices, 0f);
+            assertArrayEquals(sequential.get(i).normals, parallel.get(i).normals, 0f);
+            assertArrayEquals(sequential.get(i).textureCoords, parallel.get(i).textureCoords, 0f);
+            assertArrayEquals(sequential.get(i).indices, parallel.get(i).indices);
+        }
+    }
+
+    @Test
+    public void numbers_matchJavaParsing() throws IOException {
+        String[] numbers = {"0", "-0.5", "3.14159265", "1e-3", "-2.5E+2", "123456.789012", "0.000001234"};
+        StringBuilder obj = new StringBuilder();
+        for (String number : numbers) {
+            obj.append("v ").append(number).append(' ').append(number).append(' ').append(number).append('\n');
+        }
+        obj.append("f 1 2 3 4 5 6 7\n");
+        MeshData mesh = new ObjParser(null).parse(obj.toString().getBytes(StandardCharsets.UTF_8)).get(0);
+
+        for (int i = 0; i < numbers.length; i++) {
+            assertEquals(numbers[i], Float.parseFloat(numbers[i]), mesh.vertices[i * 3], 0f);
+        }
+    }
+}
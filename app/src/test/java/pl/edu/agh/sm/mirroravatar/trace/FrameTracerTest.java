@@ -0,0 +1,60 @@
+package pl.edu.agh.sm.mirroravatar.trace;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameTracerTest {
+
+    @Test
+    public void stamp_recordsTheTimeSinceThePreviousStage() {
+        FrameTracer tracer = new FrameTracer();
+        long frameId = tracer.newFrame(System.nanoTime());
+        tracer.stamp(frameId, FrameTracer.DEQUEUED);
+        tracer.stamp(frameId, FrameTracer.ACQUIRED);
+
+        assertEquals(1, tracer.getStageHistogram(FrameTracer.DEQUEUED).getCount());
+        assertEquals(1, tracer.getStageHistogram(FrameTracer.ACQUIRED).getCount());
+        assertEquals(0, tracer.getEndToEndHistogram().getCount());
+    }
+
+    @Test
+    public void skippedStage_isNotRecordedByTheNextOne() {
+        FrameTracer tracer = new FrameTracer();
+        long frameId = tracer.newFrame(System.nanoTime());
+        tracer.stamp(frameId, FrameTracer.PUBLISHED);
+        tracer.stamp(frameId, FrameTracer.RENDERED);
+
+        assertEquals(0, tracer.getStageHistogram(FrameTracer.PUBLISHED).getCount());
+        assertEquals(1, tracer.getStageHistogram(FrameTracer.RENDERED).getCount());
+        assertEquals(1, tracer.getEndToEndHistogram().getCount());
+    }
+
+    @Test
+    public void ringWrap_ignoresTheOverwrittenFrames() {
+        FrameTracer tracer = new FrameTracer();
+        long first = tracer.newFrame(System.nanoTime());
+        long second = tracer.newFrame(System.nanoTime());
+        long last = second;
+        // 32 slots, the 33rd frame takes the slot of the first one
+        for (int i = 2; i <= 32; i++) {
+            last = tracer.newFrame(System.nanoTime());
+        }
+        assertEquals(first + 32, last);
+
+        tracer.stamp(first, FrameTracer.DEQUEUED);
+        assertEquals(0, tracer.getStageHistogram(FrameTracer.DEQUEUED).getCount());
+        tracer.stamp(second, FrameTracer.DEQUEUED);
+        tracer.stamp(last, FrameTracer.DEQUEUED);
+        assertEquals(2, tracer.getStageHistogram(FrameTracer.DEQUEUED).getCount());
+    }
+
+    @Test
+    public void untracedFrame_isIgnored() {
+        FrameTracer tracer = new FrameTracer();
+        tracer.newFrame(System.nanoTime());
+        tracer.stamp(0, FrameTracer.DEQUEUED);
+
+        assertEquals(0, tracer.getStageHistogram(FrameTracer.DEQUEUED).getCount());
+    }
+}
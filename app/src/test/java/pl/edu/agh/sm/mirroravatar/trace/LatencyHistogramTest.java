@@ -0,0 +1,54 @@
+package pl.edu.agh.sm.mirroravatar.trace;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    private static final long MILLIS = 1_000_000L;
+
+    @Test
+    public void percentiles_areTheUpperBoundsOfTheirBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 0; i < 100; i++) {
+            histogram.record(i * MILLIS);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(49.25, histogram.getPercentileMillis(50), 1e-9);
+        assertEquals(94.25, histogram.getPercentileMillis(95), 1e-9);
+        assertEquals(98.25, histogram.getPercentileMillis(99), 1e-9);
+        assertEquals(99.25, histogram.getPercentileMillis(100), 1e-9);
+    }
+
+    @Test
+    public void record_bucketsByAQuarterMillisecond() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(249_999);
+        assertEquals(0.25, histogram.getPercentileMillis(100), 1e-9);
+        histogram.record(250_000);
+        assertEquals(0.5, histogram.getPercentileMillis(100), 1e-9);
+    }
+
+    @Test
+    public void record_clampsToTheFirstAndTheOverflowBucket() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(-5 * MILLIS);
+        assertEquals(0.25, histogram.getPercentileMillis(100), 1e-9);
+        histogram.record(10_000 * MILLIS);
+        assertEquals(250.25, histogram.getPercentileMillis(100), 1e-9);
+        assertEquals(2, histogram.getCount());
+    }
+
+    @Test
+    public void reset_empties() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        assertEquals(0, histogram.getPercentileMillis(50), 0);
+        histogram.record(3 * MILLIS);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMillis(50), 0);
+    }
+}
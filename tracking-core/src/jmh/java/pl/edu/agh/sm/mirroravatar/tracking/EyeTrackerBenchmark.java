@@ -0,0 +1,243 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import pl.edu.agh.sm.mirroravatar.camera.CaptureReader;
+
+/**
+ * Per stage and full frame cost of the eye tracking over a corpus of recorded preview frames.
+ * Every invocation processes the next frame of the corpus, so the scores read as ns/frame.
+ * <p>
+ * The detection benchmarks call the {@link FaceEyeDetector} directly. Through the {@link EyeTracker} the motion
+ * gates would skip most of the consecutive frames of the corpus and the scores would read as the skip path,
+ * {@link #frameGated()} keeps that path to show what the gates save.
+ * <p>
+ * Expects {@code -Dcapture=<file written by FrameRecorder>} and {@code -Dcascades=<dir with the haar xml files>}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EyeTrackerBenchmark {
+
+    private static final int MAX_FRAMES = 300;
+
+    @Param({"0", "90"})
+    public int rotation;
+
+    @Param({"haar", "haar-flow", "tracking"})
+    public String detector;
+
+    private final List<byte[]> frames = new ArrayList<>();
+    private final List<Mat> scaledFrames = new ArrayList<>();
+    private final List<ImagePyramid> pyramids = new ArrayList<>();
+    private final List<Rect> faces = new ArrayList<>();
+    private final LumaScaler scaler = new LumaScaler();
+    private final MatPool pool = new MatPool();
+    private final ImagePyramid framePyramid = new ImagePyramid();
+    private final EyeResult left = new EyeResult();
+    private final EyeResult right = new EyeResult();
+    private EyeTracker tracker;
+    private FaceEyeDetector faceEyeDetector;
+    private int width;
+    private int height;
+    private double ratio;
+    private double fineRatio;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        nu.pattern.OpenCV.loadLocally();
+        File cascades = new File(System.getProperty("cascades", ""));
+        CascadeClassifier faceDetector = classifier(new File(cascades, "haarcascade_frontalface_alt2.xml"));
+        if (detector.equals("tracking")) {
+            tracker = new EyeTracker(new TrackingOnlyDetector(faceDetector));
+        } else {
+            CascadeDetector haar = CascadeDetector.haar(faceDetector,
+                    classifier(new File(cascades, "haarcascade_lefteye_2splits.xml")),
+                    classifier(new File(cascades, "haarcascade_righteye_2splits.xml")));
+            tracker = new EyeTracker(detector.equals("haar-flow") ? haar.withEyeFlow(15) : haar);
+        }
+        faceEyeDetector = tracker.getDetector();
+        loadCorpus(new File(System.getProperty("capture", "")));
+        ratio = EyeTracker.ratioTo(EyeTracker.DETECTION_SIZE, new Size(width, height));
+        fineRatio = EyeTracker.ratioTo(ImagePyramid.FINE_SIZE, new Size(width, height));
+
+        // stage inputs, so that each stage is measured on its own
+        for (byte[] frame : frames) {
+            Mat scaled = new Mat();
+            scaler.scale(frame, width, height, ratio, scaled);
+            scaledFrames.add(scaled);
+            ImagePyramid pyramid = new ImagePyramid();
+            scaler.scale(frame, width, height, fineRatio, rotation, pyramid.getFine());
+            pyramid.build(ratio / fineRatio);
+            pool.beginFrame();
+            Rect face = faceEyeDetector.detectFace(pyramid.getCoarse(), pool);
+            pool.endFrame();
+            pyramids.add(pyramid);
+            faces.add(face == null ? null : face.clone());
+        }
+        tracker.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tracker.shutdown();
+        pool.release();
+        for (Mat mat : scaledFrames) {
+            mat.release();
+        }
+        for (ImagePyramid pyramid : pyramids) {
+            pyramid.release();
+        }
+        framePyramid.release();
+    }
+
+    private static CascadeClassifier classifier(File file) throws IOException {
+        CascadeClassifier classifier = new CascadeClassifier(file.getAbsolutePath());
+        if (classifier.empty()) {
+            throw new IOException("Could not load cascade " + file + ", set -Dcascades");
+        }
+        return classifier;
+    }
+
+    private void loadCorpus(File captureFile) throws IOException {
+        try (CaptureReader reader = new CaptureReader(captureFile)) {
+            while (frames.size() < MAX_FRAMES && reader.next()) {
+                if (frames.isEmpty()) {
+                    width = reader.width();
+                    height = reader.height();
+                } else if (reader.width() != width || reader.height() != height) {
+                    break;
+                }
+                byte[] data = new byte[reader.length()];
+                reader.read(data);
+                frames.add(data);
+            }
+        }
+        if (frames.isEmpty()) {
+            throw new IOException("Capture is empty: " + captureFile);
+        }
+    }
+
+    private int nextFrame() {
+        int frame = next;
+        next = (next + 1) % frames.size();
+        return frame;
+    }
+
+    @Benchmark
+    public Mat scale() {
+        pool.beginFrame();
+        Mat scaled = pool.acquire();
+        scaler.scale(frames.get(nextFrame()), width, height, ratio, scaled);
+        pool.endFrame();
+        return scaled;
+    }
+
+    /**
+     * Downscale and rotation in a single pass, what the pipeline runs instead of {@link #scale()} + {@link #rotate()}.
+     */
+    @Benchmark
+    public Mat scaleOriented() {
+        pool.beginFrame();
+        Mat gray = pool.acquire();
+        scaler.scale(frames.get(nextFrame()), width, height, ratio, rotation, gray);
+        pool.endFrame();
+        return gray;
+    }
+
+    /**
+     * The coarse level and the copy of the plane for the fine one, what the acquire stage does per frame.
+     */
+    @Benchmark
+    public Mat pyramid() {
+        framePyramid.build(frames.get(nextFrame()), width, height, fineRatio, ratio, rotation);
+        return framePyramid.getCoarse();
+    }
+
+    @Benchmark
+    public Mat rotate() {
+        pool.beginFrame();
+        Mat gray = tracker.rotate(scaledFrames.get(nextFrame()), rotation, pool);
+        pool.endFrame();
+        return gray;
+    }
+
+    @Benchmark
+    public Rect face() {
+        pool.beginFrame();
+        int frame = nextFrame();
+        Rect face = faceEyeDetector.detectFace(pyramids.get(frame).getCoarse(), pool);
+        pool.endFrame();
+        return face;
+    }
+
+    @Benchmark
+    public EyeResult eyes() {
+        int frame = nextFrame();
+        Rect face = faces.get(frame);
+        left.clear();
+        right.clear();
+        if (face != null) {
+            faceEyeDetector.detectEyes(pyramids.get(frame), face, left, right);
+        }
+        return left;
+    }
+
+    @Benchmark
+    public EyeResult frame() {
+        pool.beginFrame();
+        framePyramid.build(frames.get(nextFrame()), width, height, fineRatio, ratio, rotation);
+        Rect face = faceEyeDetector.detectFace(framePyramid.getCoarse(), pool);
+        left.clear();
+        right.clear();
+        if (face != null) {
+            faceEyeDetector.detectEyes(framePyramid, face, left, right);
+        }
+        pool.endFrame();
+        return left;
+    }
+
+    /**
+     * {@link #frame()} through the motion gates, the way the pipeline runs it. Mostly the skip path on a still
+     * corpus, compare with {@link #frame()} rather than read it as the detection cost.
+     */
+    @Benchmark
+    public EyeResult frameGated() {
+        pool.beginFrame();
+        framePyramid.build(frames.get(nextFrame()), width, height, fineRatio, ratio, rotation);
+        Rect face = tracker.detectFace(framePyramid.getCoarse(), rotation, pool);
+        left.clear();
+        right.clear();
+        if (face != null) {
+            tracker.detectEyes(framePyramid, face, left, right);
+        }
+        pool.endFrame();
+        return left;
+    }
+}
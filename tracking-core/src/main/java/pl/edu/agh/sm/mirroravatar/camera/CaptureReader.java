@@ -0,0 +1,104 @@
+package pl.edu.agh.sm.mirroravatar.camera;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a capture written by {@link FrameRecorder} through a read-only memory mapping.
+ */
+public class CaptureReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private long timestampNanos;
+    private int width;
+    private int height;
+    private int length;
+    private int dataPosition;
+
+    public CaptureReader(File captureFile) throws IOException {
+        file = new RandomAccessFile(captureFile, "r");
+        FileChannel channel = file.getChannel();
+        if (channel.size() > Integer.MAX_VALUE) {
+            file.close();
+            throw new IOException("Capture file too large to map: " + captureFile);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (buffer.remaining() < FrameRecorder.FILE_HEADER_SIZE || buffer.getInt() != FrameRecorder.MAGIC) {
+            file.close();
+            throw new IOException("Not a capture file: " + captureFile);
+        }
+        int version = buffer.getInt();
+        if (version != FrameRecorder.VERSION) {
+            file.close();
+            throw new IOException("Unsupported capture version " + version + ": " + captureFile);
+        }
+    }
+
+    /**
+     * Moves to the next frame.
+     *
+     * @return false at the end of the capture (a truncated last record counts as the end)
+     */
+    public boolean next() {
+        if (dataPosition > 0) {
+            buffer.position(dataPosition + length);
+        }
+        if (buffer.remaining() < FrameRecorder.RECORD_HEADER_SIZE) {
+            return false;
+        }
+        try {
+            timestampNanos = buffer.getLong();
+            width = buffer.getInt();
+            height = buffer.getInt();
+            length = buffer.getInt();
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+        if (length < 0 || buffer.remaining() < length) {
+            return false;
+        }
+        dataPosition = buffer.position();
+        return true;
+    }
+
+    /**
+     * Copies the current frame into {@code dst}, which must hold at least {@link #length()} bytes.
+     */
+    public void read(byte[] dst) {
+        buffer.position(dataPosition);
+        buffer.get(dst, 0, length);
+    }
+
+    public void rewind() {
+        buffer.position(FrameRecorder.FILE_HEADER_SIZE);
+        dataPosition = 0;
+        length = 0;
+    }
+
+    public long timestampNanos() {
+        return timestampNanos;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,98 @@
+package pl.edu.agh.sm.mirroravatar.camera;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends raw NV21 preview frames to a capture file.
+ * <p>
+ * Format: the file header ({@link #MAGIC}, {@link #VERSION}) followed by records of
+ * {@code long timestampNanos, int width, int height, int length, byte[length] data}, all big-endian.
+ * <p>
+ * {@link CaptureReader} maps a whole file, so a file stops before {@link #MAX_FILE_SIZE}. The recording goes on in
+ * the next part, {@link #partFile}, each part a capture file of its own.
+ */
+public class FrameRecorder implements Closeable {
+
+    public static final int MAGIC = 0x4D415643; // "MAVC"
+    public static final int VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 8;
+    public static final int RECORD_HEADER_SIZE = 20;
+    /**
+     * Largest capture file, the most a single mapping covers.
+     */
+    public static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    private final File file;
+    private final long maxFileSize;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(RECORD_HEADER_SIZE);
+    private FileChannel channel;
+    private long fileSize;
+    private int part;
+    private long framesWritten;
+
+    public FrameRecorder(File file) throws IOException {
+        this(file, MAX_FILE_SIZE);
+    }
+
+    FrameRecorder(File file, long maxFileSize) throws IOException {
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        open(file);
+    }
+
+    /**
+     * @param part 0 for the file the recording was started with
+     * @return the file the recording continues in once the previous part is full
+     */
+    public static File partFile(File file, int part) {
+        return part == 0 ? file : new File(file.getPath() + "." + part);
+    }
+
+    public void write(byte[] data, int width, int height, long timestampNanos) throws IOException {
+        if (fileSize > FILE_HEADER_SIZE && fileSize + RECORD_HEADER_SIZE + data.length > maxFileSize) {
+            channel.close();
+            open(partFile(file, ++part));
+        }
+        header.clear();
+        header.putLong(timestampNanos).putInt(width).putInt(height).putInt(data.length).flip();
+        writeFully(header);
+        writeFully(ByteBuffer.wrap(data));
+        fileSize += RECORD_HEADER_SIZE + data.length;
+        framesWritten++;
+    }
+
+    /**
+     * Parts written so far, the file the recording was started with included.
+     */
+    public int getParts() {
+        return part + 1;
+    }
+
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void open(File partFile) throws IOException {
+        channel = new FileOutputStream(partFile).getChannel();
+        ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        fileHeader.putInt(MAGIC).putInt(VERSION).flip();
+        writeFully(fileHeader);
+        fileSize = FILE_HEADER_SIZE;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
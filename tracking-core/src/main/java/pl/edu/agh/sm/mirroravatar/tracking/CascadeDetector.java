@@ -0,0 +1,273 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+import org.opencv.objdetect.Objdetect;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the face with a cascade (tracked between frames by {@link FaceTracker}) and each eye with its own
+ * cascade inside the expected eye area, the iris is located in the lower part of the eye by {@link IrisLocator}.
+ * The eyes are searched on the fine level of the {@link ImagePyramid}, in the area mapped from the face,
+ * both concurrently, the left one on a worker thread.
+ * <p>
+ * With {@link #withEyeFlow} the eyes found by the cascades are followed by an {@link EyeFlowTracker} on the next
+ * frames, the eye cascades only run again when the flow loses an eye or at the refresh interval.
+ */
+public class CascadeDetector implements FaceEyeDetector {
+
+    private static final Logger LOG = Logger.getLogger("CascadeDetector");
+    /**
+     * Smallest eye searched for, in pixels of an image {@link EyeTracker#DETECTION_SIZE} long. It follows the fine
+     * level, which only shrinks with the preview, not with the coarse one.
+     */
+    private static final double MIN_EYE_SIZE = 30;
+
+    private final String name;
+    private final CascadeClassifier faceDetector;
+    private final CascadeClassifier leftEyeDetector;
+    private final CascadeClassifier rightEyeDetector;
+    private final FaceTracker faceTracker;
+    private final EyeSearch leftEye;
+    private final EyeSearch rightEye;
+    private final Size minEyeSize = new Size();
+    private final Size maxEyeSize = new Size();
+    private final TaskThread leftEyeThread;
+    /**
+     * Bumped by {@link #reset}, which may come from the face thread, the eye flows are stopped on the eye threads.
+     */
+    private volatile int resets;
+    private int eyeResets;
+
+    public CascadeDetector(String name, CascadeClassifier faceDetector, CascadeClassifier leftEyeDetector, CascadeClassifier rightEyeDetector) {
+        this(name, faceDetector, leftEyeDetector, rightEyeDetector, 0);
+    }
+
+    /**
+     * @param eyeRefreshInterval most frames the eyes are followed by optical flow between two eye detections,
+     *                           0 runs the eye cascades on every frame
+     */
+    public CascadeDetector(String name, CascadeClassifier faceDetector, CascadeClassifier leftEyeDetector, CascadeClassifier rightEyeDetector,
+                           int eyeRefreshInterval) {
+        this.name = name;
+        this.faceDetector = faceDetector;
+        this.leftEyeDetector = leftEyeDetector;
+        this.rightEyeDetector = rightEyeDetector;
+        this.faceTracker = new FaceTracker(faceDetector);
+        this.leftEye = new EyeSearch(leftEyeDetector, eyeRefreshInterval);
+        this.rightEye = new EyeSearch(rightEyeDetector, eyeRefreshInterval);
+        this.leftEyeThread = new TaskThread("EyeDetectorThread", leftEye);
+    }
+
+    /**
+     * The original detector, Haar cascades for the face and the eyes.
+     */
+    public static CascadeDetector haar(CascadeClassifier faceDetector, CascadeClassifier leftEyeDetector, CascadeClassifier rightEyeDetector) {
+        return new CascadeDetector("Haar", faceDetector, leftEyeDetector, rightEyeDetector);
+    }
+
+    /**
+     * An LBP face cascade, several times faster than Haar on the full frame. OpenCV ships no LBP eye cascades,
+     * so the eyes still use Haar ones, they only run on the small eye areas.
+     */
+    public static CascadeDetector lbp(CascadeClassifier lbpFaceDetector, CascadeClassifier leftEyeDetector, CascadeClassifier rightEyeDetector) {
+        return new CascadeDetector("LBP", lbpFaceDetector, leftEyeDetector, rightEyeDetector);
+    }
+
+    /**
+     * The same cascades with the eyes followed by optical flow between detections.
+     *
+     * @param eyeRefreshInterval most frames between two eye detections
+     */
+    public CascadeDetector withEyeFlow(int eyeRefreshInterval) {
+        return new CascadeDetector(name + "+flow", faceDetector, leftEyeDetector, rightEyeDetector, eyeRefreshInterval);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Rect detectFace(Mat gray, MatPool pool) {
+        return faceTracker.detect(gray, pool);
+    }
+
+    @Override
+    public void detectEyes(ImagePyramid pyramid, Rect face, EyeResult left, EyeResult right) {
+        EyeAreas.right(face, rightEye.area);
+        pyramid.toFine(rightEye.area, rightEye.area);
+        EyeAreas.left(face, leftEye.area);
+        pyramid.toFine(leftEye.area, leftEye.area);
+        Mat fine = pyramid.getFine();
+        minEyeSize.width = MIN_EYE_SIZE * Math.max(fine.cols(), fine.rows()) / EyeTracker.DETECTION_SIZE;
+        minEyeSize.height = minEyeSize.width;
+        maxEyeSize.width = rightEye.area.width;
+        maxEyeSize.height = rightEye.area.height;
+        int currentResets = resets;
+        boolean stopFlow = eyeResets != currentResets;
+        eyeResets = currentResets;
+        leftEye.prepare(pyramid.getFine(), stopFlow, left);
+        rightEye.prepare(pyramid.getFine(), stopFlow, right);
+
+        try {
+            leftEyeThread.fork();
+        } catch (InterruptedException e) {
+            left.clear();
+            right.clear();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        rightEye.run();
+        awaitLeftEye(left);
+        pyramid.toCoarse(left);
+        pyramid.toCoarse(right);
+    }
+
+    @Override
+    public void reset() {
+        faceTracker.reset();
+        resets++;
+    }
+
+    @Override
+    public void release() {
+        leftEye.release();
+        rightEye.release();
+    }
+
+    @Override
+    public void shutdown() {
+        leftEyeThread.shutdown();
+        release();
+    }
+
+    private void awaitLeftEye(EyeResult result) {
+        try {
+            RuntimeException failure = leftEyeThread.join();
+            if (failure != null) {
+                LOG.log(Level.WARNING, "Eye detection failed", failure);
+                result.clear();
+            }
+        } catch (InterruptedException e) {
+            result.clear();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean containsCentre(Rect area, Rect eye) {
+        int x = eye.x + eye.width / 2;
+        int y = eye.y + eye.height / 2;
+        return x >= area.x && x < area.x + area.width && y >= area.y && y < area.y + area.height;
+    }
+
+    /**
+     * Everything one eye keeps from frame to frame. The inputs of a run are set by {@link #prepare},
+     * so that the left eye can run on its own thread without a new task per frame.
+     */
+    private final class EyeSearch implements Runnable {
+        final Rect area = new Rect();
+        private final CascadeClassifier classifier;
+        private final EyeFlowTracker flow;
+        private final MatPool pool = new MatPool();
+        private final IrisLocator irisLocator = new IrisLocator();
+        private final Rect eye = new Rect();
+        private final Rect irisArea = new Rect();
+        private final int[] found = new int[4];
+        private Mat gray;
+        private boolean stopFlow;
+        private EyeResult result;
+
+        EyeSearch(CascadeClassifier classifier, int refreshInterval) {
+            this.classifier = classifier;
+            this.flow = refreshInterval > 0 ? new EyeFlowTracker(refreshInterval) : null;
+        }
+
+        void prepare(Mat gray, boolean stopFlow, EyeResult result) {
+            this.gray = gray;
+            this.stopFlow = stopFlow;
+            this.result = result;
+        }
+
+        /**
+         * Follows the eye by optical flow while the track holds and stays inside the eye area, otherwise detects it
+         * and starts a new track.
+         */
+        @Override
+        public void run() {
+            result.clear();
+            if (flow == null) {
+                detectIris();
+                return;
+            }
+            if (stopFlow) {
+                flow.stop();
+            }
+            if (flow.track(gray, eye) && containsCentre(area, eye) && locateIris()) {
+                return;
+            }
+            flow.stop();
+            if (detectIris()) {
+                flow.start(gray, eye, irisLocator.getX(), irisLocator.getY());
+            }
+        }
+
+        void release() {
+            pool.release();
+            irisLocator.release();
+            if (flow != null) {
+                flow.release();
+            }
+        }
+
+        private boolean detectIris() {
+            pool.beginFrame();
+            try {
+                return detectEye() && locateIris();
+            } finally {
+                pool.endFrame();
+            }
+        }
+
+        private boolean detectEye() {
+            Mat mROI = pool.crop(gray, area);
+            MatOfRect eyes = pool.acquireRects();
+            classifier.detectMultiScale(mROI, eyes, 1.15, 2,
+                    Objdetect.CASCADE_FIND_BIGGEST_OBJECT
+                            | Objdetect.CASCADE_SCALE_IMAGE, minEyeSize,
+                    maxEyeSize);
+            if (eyes.empty()) {
+                return false;
+            }
+            // read in place, toArray() would allocate the rects
+            eyes.get(0, 0, found);
+            eye.x = area.x + found[0];
+            eye.y = area.y + found[1];
+            eye.width = found[2];
+            eye.height = found[3];
+            return true;
+        }
+
+        /**
+         * Locates the iris in the lower part of the eye, where it is not confused with the eyebrow.
+         */
+        private boolean locateIris() {
+            irisArea.x = eye.x;
+            irisArea.y = (int) (eye.y + eye.height * 0.4);
+            irisArea.width = eye.width;
+            irisArea.height = (int) (eye.height * 0.6);
+            double pseudoEyeCenterX = irisArea.x + irisArea.width / 2.0;
+            double pseudoEyeCenterY = irisArea.y + irisArea.height / 2.0;
+            if (!irisLocator.locate(gray, irisArea)) {
+                return false;
+            }
+            result.set(pseudoEyeCenterX, pseudoEyeCenterY, irisLocator.getX(), irisLocator.getY());
+            return true;
+        }
+    }
+}
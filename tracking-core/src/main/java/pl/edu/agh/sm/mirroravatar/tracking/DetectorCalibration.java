@@ -0,0 +1,135 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs each candidate detector over the same short run of frames and picks the fastest one whose detection rate
+ * reaches the threshold. No single detector is the best choice on every device, so this is done on the device at
+ * startup.
+ * <p>
+ * The first candidate is the reference (the Haar backend), a frame counts for it when it finds the face and both
+ * eyes. Any detector finds eyes where it places them, so a frame only counts for the other candidates when both
+ * irises they found agree with the reference ones on that frame, within a part of the reference eye distance.
+ */
+public class DetectorCalibration {
+
+    /**
+     * Largest distance between an iris and the reference one, relative to the distance between the reference eyes.
+     */
+    private static final double MAX_IRIS_ERROR = 0.25;
+
+    public static class Result {
+        public final FaceEyeDetector detector;
+        public final double detectionRate;
+        public final double nanosPerFrame;
+
+        public Result(FaceEyeDetector detector, double detectionRate, double nanosPerFrame) {
+            this.detector = detector;
+            this.detectionRate = detectionRate;
+            this.nanosPerFrame = nanosPerFrame;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.0f%% detected, %.2f ms/frame",
+                    detector.getName(), detectionRate * 100, nanosPerFrame / 1e6);
+        }
+    }
+
+    private final double minDetectionRate;
+
+    /**
+     * @param minDetectionRate fraction of the frames a detector has to find the face and both eyes in, where the
+     *                         reference does
+     */
+    public DetectorCalibration(double minDetectionRate) {
+        this.minDetectionRate = minDetectionRate;
+    }
+
+    /**
+     * Measures every candidate on the frames, the candidates are reset before and after their run.
+     *
+     * @param candidates the reference detector first
+     * @return one result per candidate, or null when the calling thread was interrupted
+     */
+    public List<Result> measure(List<? extends FaceEyeDetector> candidates, List<ImagePyramid> frames) {
+        List<Result> results = new ArrayList<>(candidates.size());
+        MatPool pool = new MatPool();
+        EyeResult left = new EyeResult();
+        EyeResult right = new EyeResult();
+        // both irises the reference found on each frame, NaN where it did not find them
+        double[] reference = new double[4 * frames.size()];
+        try {
+            for (int c = 0; c < candidates.size(); c++) {
+                FaceEyeDetector candidate = candidates.get(c);
+                candidate.reset();
+                int detected = 0;
+                long start = System.nanoTime();
+                for (int f = 0; f < frames.size(); f++) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return null;
+                    }
+                    ImagePyramid frame = frames.get(f);
+                    pool.beginFrame();
+                    left.clear();
+                    right.clear();
+                    Rect face = candidate.detectFace(frame.getCoarse(), pool);
+                    if (face != null) {
+                        candidate.detectEyes(frame, face, left, right);
+                    }
+                    pool.endFrame();
+                    boolean found = left.valid && right.valid;
+                    if (c == 0) {
+                        reference[4 * f] = found ? left.irisX : Double.NaN;
+                        reference[4 * f + 1] = left.irisY;
+                        reference[4 * f + 2] = right.irisX;
+                        reference[4 * f + 3] = right.irisY;
+                    }
+                    if (found && agrees(reference, 4 * f, left, right)) {
+                        detected++;
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                candidate.reset();
+                results.add(new Result(candidate, detected / (double) frames.size(), elapsed / (double) frames.size()));
+            }
+        } finally {
+            pool.release();
+        }
+        return results;
+    }
+
+    private static boolean agrees(double[] reference, int i, EyeResult left, EyeResult right) {
+        if (Double.isNaN(reference[i])) {
+            return false;
+        }
+        double maxError = MAX_IRIS_ERROR * Math.hypot(reference[i + 2] - reference[i], reference[i + 3] - reference[i + 1]);
+        return Math.hypot(left.irisX - reference[i], left.irisY - reference[i + 1]) <= maxError
+                && Math.hypot(right.irisX - reference[i + 2], right.irisY - reference[i + 3]) <= maxError;
+    }
+
+    /**
+     * @return the fastest detector reaching the detection rate, otherwise the one detecting the most,
+     * or null when none of them detected anything (e.g. nobody was in front of the camera)
+     */
+    public Result choose(List<Result> results) {
+        Result fastest = null;
+        Result mostDetecting = null;
+        for (Result result : results) {
+            if (result.detectionRate >= minDetectionRate
+                    && (fastest == null || result.nanosPerFrame < fastest.nanosPerFrame)) {
+                fastest = result;
+            }
+            if (mostDetecting == null || result.detectionRate > mostDetecting.detectionRate) {
+                mostDetecting = result;
+            }
+        }
+        if (fastest != null) {
+            return fastest;
+        }
+        return mostDetecting != null && mostDetecting.detectionRate > 0 ? mostDetecting : null;
+    }
+}
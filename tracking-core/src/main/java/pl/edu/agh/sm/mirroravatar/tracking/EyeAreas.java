@@ -0,0 +1,35 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Rect;
+
+/**
+ * Where the eyes are expected inside a face rect, the second quarter of its height split in two halves
+ * without the outer sevenths.
+ */
+final class EyeAreas {
+
+    private EyeAreas() {
+    }
+
+    static void right(Rect face, Rect dst) {
+        dst.x = face.x + face.width / 7;
+        dst.y = (int) (face.y + (face.height / 4.0));
+        dst.width = (face.width - 2 * face.width / 7) / 2;
+        dst.height = (int) (face.height / 4.0);
+    }
+
+    static void left(Rect face, Rect dst) {
+        right(face, dst);
+        dst.x += dst.width;
+    }
+
+    /**
+     * The band covering both eye areas.
+     */
+    static void both(Rect face, Rect dst) {
+        dst.x = face.x + face.width / 7;
+        dst.y = (int) (face.y + (face.height / 4.0));
+        dst.width = 2 * ((face.width - 2 * face.width / 7) / 2);
+        dst.height = (int) (face.height / 4.0);
+    }
+}
@@ -0,0 +1,293 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
+
+import java.util.Arrays;
+
+/**
+ * Follows one eye rect from frame to frame with sparse pyramidal Lucas-Kanade optical flow, so that the eye cascade
+ * only has to run now and then. {@link #start} seeds corners inside the rect the cascade found, {@link #track} moves
+ * the rect by the median motion of the corners that were followed well, that is found again where they started when
+ * the flow is run backwards. The track is given up when too few corners survive, and after {@code refreshInterval}
+ * frames, so that the cascade corrects the drift.
+ * <p>
+ * The rect centre is the reference the gaze is measured from, so it must follow the head and not the gaze: no
+ * corners are seeded around the iris, which moves inside the eye. The rect position is kept with its fraction, so
+ * that slow movement adds up instead of being rounded away on every frame.
+ * <p>
+ * Only a window around the eye is kept from the previous frame, copied rather than viewed so that no Java objects
+ * are allocated per frame. An instance is not thread safe, use one per eye.
+ */
+public class EyeFlowTracker {
+
+    private static final int MAX_CORNERS = 16;
+    private static final int MIN_CORNERS = 4;
+    private static final double CORNER_QUALITY = 0.01;
+    private static final double MIN_CORNER_DISTANCE = 2;
+    /**
+     * Part of the seeded corners that has to survive.
+     */
+    private static final double MIN_SURVIVING = 0.5;
+    /**
+     * Largest squared distance, in pixels, between a corner and where the backward flow brings it back to.
+     */
+    private static final float MAX_ROUND_TRIP_ERROR = 1;
+    /**
+     * The window searched around the eye, relative to its size on each side.
+     */
+    private static final double WINDOW_MARGIN = 0.5;
+    private static final int FLOW_LEVELS = 2;
+    /**
+     * Half size of the area around the iris no corners are seeded in, relative to the eye width. The iris is about
+     * 0.4 of the eye wide and moves sideways with the gaze, so the area is wider than high.
+     */
+    private static final double IRIS_MASK_HALF_WIDTH = 0.4;
+    private static final double IRIS_MASK_HALF_HEIGHT = 0.25;
+
+    private final int refreshInterval;
+    private final Size flowWindow = new Size(15, 15);
+    private final Mat previous = new Mat();
+    private final Mat current = new Mat();
+    private final Mat eyePatch = new Mat();
+    private final Mat mask = new Mat();
+    private final Scalar maskIn = new Scalar(255);
+    private final Scalar maskOut = new Scalar(0);
+    private final Point maskFrom = new Point();
+    private final Point maskTo = new Point();
+    private final Size patchSize = new Size();
+    private final Point patchCentre = new Point();
+    private final MatOfPoint corners = new MatOfPoint();
+    private final MatOfPoint2f previousPoints = new MatOfPoint2f();
+    private final MatOfPoint2f nextPoints = new MatOfPoint2f();
+    private final MatOfPoint2f backPoints = new MatOfPoint2f();
+    private final MatOfByte status = new MatOfByte();
+    private final MatOfByte backStatus = new MatOfByte();
+    private final MatOfFloat errors = new MatOfFloat();
+    private final Rect eye = new Rect();
+    private final Rect window = new Rect();
+    private final int[] cornerCoordinates = new int[2 * MAX_CORNERS];
+    private final float[] points = new float[2 * MAX_CORNERS];
+    private final float[] start = new float[2 * MAX_CORNERS];
+    private final float[] next = new float[2 * MAX_CORNERS];
+    private final float[] back = new float[2 * MAX_CORNERS];
+    private final byte[] found = new byte[MAX_CORNERS];
+    private final byte[] foundBack = new byte[MAX_CORNERS];
+    private final float[] dx = new float[MAX_CORNERS];
+    private final float[] dy = new float[MAX_CORNERS];
+    private double eyeX;
+    private double eyeY;
+    private int count;
+    private int seeded;
+    private int framesTracked;
+    private boolean tracking;
+
+    /**
+     * @param refreshInterval most frames tracked before the eye has to be detected again
+     */
+    public EyeFlowTracker(int refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Seeds the corners inside an eye found on {@code gray}, where the iris is not known.
+     *
+     * @return false when the rect has too little texture to be tracked
+     */
+    public boolean start(Mat gray, Rect eyeRect) {
+        return start(gray, eyeRect, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * Seeds the corners inside an eye found on {@code gray}, away from the iris.
+     *
+     * @param irisX iris centre in {@code gray} coordinates
+     * @return false when the rect has too little texture to be tracked
+     */
+    public boolean start(Mat gray, Rect eyeRect, double irisX, double irisY) {
+        tracking = false;
+        copy(eyeRect, eye);
+        if (!windowAround(eye, gray)) {
+            return false;
+        }
+        crop(gray, eye, eyePatch);
+        mask.create(eye.height, eye.width, CvType.CV_8UC1);
+        // drawn rather than set, Mat.setTo returns a new Mat on every call
+        maskFrom.x = 0;
+        maskFrom.y = 0;
+        maskTo.x = eye.width;
+        maskTo.y = eye.height;
+        Imgproc.rectangle(mask, maskFrom, maskTo, maskIn, -1);
+        if (!Double.isNaN(irisX)) {
+            maskFrom.x = irisX - eye.x - eye.width * IRIS_MASK_HALF_WIDTH;
+            maskFrom.y = irisY - eye.y - eye.width * IRIS_MASK_HALF_HEIGHT;
+            maskTo.x = irisX - eye.x + eye.width * IRIS_MASK_HALF_WIDTH;
+            maskTo.y = irisY - eye.y + eye.width * IRIS_MASK_HALF_HEIGHT;
+            Imgproc.rectangle(mask, maskFrom, maskTo, maskOut, -1);
+        }
+        Imgproc.goodFeaturesToTrack(eyePatch, corners, MAX_CORNERS, CORNER_QUALITY, MIN_CORNER_DISTANCE,
+                mask, 3, false, 0.04);
+        count = Math.min((int) corners.total(), MAX_CORNERS);
+        if (count < MIN_CORNERS) {
+            return false;
+        }
+        corners.get(0, 0, cornerCoordinates);
+        for (int i = 0; i < 2 * count; i += 2) {
+            points[i] = eye.x + cornerCoordinates[i];
+            points[i + 1] = eye.y + cornerCoordinates[i + 1];
+        }
+        keepWindow(gray);
+        eyeX = eye.x;
+        eyeY = eye.y;
+        seeded = count;
+        framesTracked = 0;
+        tracking = true;
+        return true;
+    }
+
+    /**
+     * Moves the eye rect to {@code gray}, the frame following the previous {@link #start} or {@link #track}.
+     *
+     * @param dst receives the moved eye rect
+     * @return false when there is no track or the flow got unreliable, the eye has to be detected again
+     */
+    public boolean track(Mat gray, Rect dst) {
+        if (!tracking || framesTracked >= refreshInterval
+                || window.x + window.width > gray.cols() || window.y + window.height > gray.rows()) {
+            tracking = false;
+            return false;
+        }
+        framesTracked++;
+        for (int i = 0; i < 2 * count; i += 2) {
+            start[i] = points[i] - window.x;
+            start[i + 1] = points[i + 1] - window.y;
+        }
+        previousPoints.alloc(count);
+        // only the first count points are copied
+        previousPoints.put(0, 0, start);
+        crop(gray, window, current);
+        Video.calcOpticalFlowPyrLK(previous, current, previousPoints, nextPoints, status, errors,
+                flowWindow, FLOW_LEVELS);
+        Video.calcOpticalFlowPyrLK(current, previous, nextPoints, backPoints, backStatus, errors,
+                flowWindow, FLOW_LEVELS);
+        nextPoints.get(0, 0, next);
+        backPoints.get(0, 0, back);
+        status.get(0, 0, found);
+        backStatus.get(0, 0, foundBack);
+
+        // keep the corners followed well, in image coordinates
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            float backX = back[2 * i] - start[2 * i];
+            float backY = back[2 * i + 1] - start[2 * i + 1];
+            if (found[i] == 0 || foundBack[i] == 0 || backX * backX + backY * backY > MAX_ROUND_TRIP_ERROR) {
+                continue;
+            }
+            float x = next[2 * i] + window.x;
+            float y = next[2 * i + 1] + window.y;
+            dx[kept] = x - points[2 * i];
+            dy[kept] = y - points[2 * i + 1];
+            points[2 * kept] = x;
+            points[2 * kept + 1] = y;
+            kept++;
+        }
+        count = kept;
+        if (count < MIN_CORNERS || count < seeded * MIN_SURVIVING) {
+            tracking = false;
+            return false;
+        }
+        eyeX += median(dx, count);
+        eyeY += median(dy, count);
+        eye.x = (int) Math.round(eyeX);
+        eye.y = (int) Math.round(eyeY);
+        if (!windowAround(eye, gray)) {
+            tracking = false;
+            return false;
+        }
+        keepWindow(gray);
+        copy(eye, dst);
+        return true;
+    }
+
+    public boolean isTracking() {
+        return tracking;
+    }
+
+    public void stop() {
+        tracking = false;
+    }
+
+    public void release() {
+        previous.release();
+        current.release();
+        eyePatch.release();
+        mask.release();
+        corners.release();
+        previousPoints.release();
+        nextPoints.release();
+        backPoints.release();
+        status.release();
+        backStatus.release();
+        errors.release();
+        tracking = false;
+    }
+
+    /**
+     * The eye with a margin, clipped to the image.
+     *
+     * @return false when the eye itself is not inside the image
+     */
+    private boolean windowAround(Rect rect, Mat gray) {
+        if (rect.x < 0 || rect.y < 0 || rect.width <= 0 || rect.height <= 0
+                || rect.x + rect.width > gray.cols() || rect.y + rect.height > gray.rows()) {
+            return false;
+        }
+        int marginX = (int) (rect.width * WINDOW_MARGIN);
+        int marginY = (int) (rect.height * WINDOW_MARGIN);
+        window.x = Math.max(rect.x - marginX, 0);
+        window.y = Math.max(rect.y - marginY, 0);
+        window.width = Math.min(rect.x + rect.width + marginX, gray.cols()) - window.x;
+        window.height = Math.min(rect.y + rect.height + marginY, gray.rows()) - window.y;
+        return true;
+    }
+
+    private void keepWindow(Mat gray) {
+        crop(gray, window, previous);
+    }
+
+    /**
+     * Copies a rect inside the image, like {@link MatPool#crop}.
+     */
+    private void crop(Mat gray, Rect area, Mat dst) {
+        patchSize.width = area.width;
+        patchSize.height = area.height;
+        patchCentre.x = area.x + (area.width - 1) / 2.0;
+        patchCentre.y = area.y + (area.height - 1) / 2.0;
+        Imgproc.getRectSubPix(gray, patchSize, patchCentre, dst);
+    }
+
+    /**
+     * Sorts the first {@code length} values in place.
+     */
+    private static float median(float[] values, int length) {
+        Arrays.sort(values, 0, length);
+        return length % 2 == 1 ? values[length / 2] : (values[length / 2 - 1] + values[length / 2]) / 2;
+    }
+
+    private static void copy(Rect src, Rect dst) {
+        dst.x = src.x;
+        dst.y = src.y;
+        dst.width = src.width;
+        dst.height = src.height;
+    }
+}
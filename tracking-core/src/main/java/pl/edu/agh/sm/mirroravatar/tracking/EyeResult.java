@@ -0,0 +1,24 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+/**
+ * Mutable result of the iris search for one eye, reused from frame to frame.
+ */
+public class EyeResult {
+    public boolean valid;
+    public double centerX;
+    public double centerY;
+    public double irisX;
+    public double irisY;
+
+    public void set(double centerX, double centerY, double irisX, double irisY) {
+        this.valid = true;
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.irisX = irisX;
+        this.irisY = irisY;
+    }
+
+    public void clear() {
+        valid = false;
+    }
+}
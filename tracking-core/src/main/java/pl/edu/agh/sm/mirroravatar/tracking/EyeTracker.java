@@ -0,0 +1,215 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+
+import static org.opencv.core.Core.ROTATE_90_CLOCKWISE;
+import static org.opencv.core.Core.ROTATE_90_COUNTERCLOCKWISE;
+
+/**
+ * Platform independent eye tracking steps: orienting the downscaled gray image, finding the face
+ * and finding both irises inside it, the last two with a {@link FaceEyeDetector}. Each step can be called
+ * from a different thread, but a step must not be called concurrently with itself.
+ * <p>
+ * Each detection step sits behind a {@link MotionGate}: while the face, or the band of both eyes, looks the same
+ * as when it was last detected, the previous result is reused and the detector is not run at all.
+ */
+public class EyeTracker {
+
+    /**
+     * Longer side of the largest image the detection runs on, the {@link ResolutionGovernor} may lower it at runtime.
+     */
+    public static final double DETECTION_SIZE = 600;
+    /**
+     * Most frames in a row a detection is skipped for, so that a slow drift still gets picked up.
+     */
+    private static final int MAX_SKIPS = 10;
+
+    private volatile FaceEyeDetector detector;
+    private int trackedRotation = 0;
+    private int trackedCols;
+    private int trackedRows;
+
+    // face step
+    private final MotionGate faceGate = new MotionGate(8, 8, 4, MAX_SKIPS);
+    private final Rect lastFace = new Rect();
+    private boolean hasLastFace;
+    private boolean faceSkipped;
+    /**
+     * Bumped whenever the previous results become meaningless, read by the eyes step on its own thread.
+     */
+    private volatile int resets;
+
+    // eyes step, a wide grid compared cell by cell so that an iris moving by a pixel or two counts as motion
+    private final MotionGate eyeGate = new MotionGate(24, 6, 4, MAX_SKIPS, MotionGate.Difference.PEAK);
+    private final Rect eyesFace = new Rect();
+    private final Rect eyesBand = new Rect();
+    private final EyeResult lastLeft = new EyeResult();
+    private final EyeResult lastRight = new EyeResult();
+    private int eyesResets = -1;
+    private boolean eyesSkipped;
+
+    public EyeTracker(FaceEyeDetector detector) {
+        this.detector = detector;
+    }
+
+    public EyeTracker(CascadeClassifier faceDetector, CascadeClassifier leftEyeDetector, CascadeClassifier rightEyeDetector) {
+        this(CascadeDetector.haar(faceDetector, leftEyeDetector, rightEyeDetector));
+    }
+
+    public FaceEyeDetector getDetector() {
+        return detector;
+    }
+
+    /**
+     * Switches to another detector, the caller has to make sure the current one is not in use.
+     */
+    public void setDetector(FaceEyeDetector detector) {
+        this.detector = detector;
+        reset();
+    }
+
+    public void reset() {
+        detector.reset();
+        faceGate.reset();
+        hasLastFace = false;
+        resets++;
+    }
+
+    /**
+     * Releases the native buffers of the detector. The tracker can still be used afterwards.
+     */
+    public void release() {
+        detector.release();
+        faceGate.release();
+        eyeGate.release();
+    }
+
+    public void shutdown() {
+        detector.shutdown();
+        faceGate.release();
+        eyeGate.release();
+    }
+
+    /**
+     * Turns the downscaled sensor image to match the screen rotation. The pipeline gets the oriented image
+     * straight from {@link LumaScaler}, this is the reference for it.
+     *
+     * @return {@code scaled} itself or a rotated copy taken from {@code pool}
+     */
+    public Mat rotate(Mat scaled, int rotation, MatPool pool) {
+        Mat dst = pool.acquire();
+        switch (rotation) {
+            case 0:
+                Core.rotate(scaled, dst, ROTATE_90_CLOCKWISE);
+                Core.flip(dst, dst, 1);
+                break;
+            case 180:
+                Core.rotate(scaled, dst, ROTATE_90_COUNTERCLOCKWISE);
+                break;
+            case 270:
+                Core.flip(scaled, dst, 0);
+                break;
+            default:
+                return scaled;
+        }
+
+        return dst;
+    }
+
+    /**
+     * @return the tracked face rect (valid until the next call) or null if there is no face
+     */
+    public Rect detectFace(Mat gray, int rotation, MatPool pool) {
+        if (trackedRotation != rotation || trackedCols != gray.cols() || trackedRows != gray.rows()) {
+            // face coordinates from the previous orientation or detection size are meaningless now
+            trackedRotation = rotation;
+            trackedCols = gray.cols();
+            trackedRows = gray.rows();
+            reset();
+        }
+        faceSkipped = hasLastFace && faceGate.isStill(gray);
+        if (faceSkipped) {
+            return lastFace;
+        }
+        Rect face = detector.detectFace(gray, pool);
+        faceGate.update(gray, face);
+        hasLastFace = face != null;
+        if (hasLastFace) {
+            copy(face, lastFace);
+        }
+        return face;
+    }
+
+    /**
+     * @return true when the last {@link #detectFace} reused the previous face instead of detecting it
+     */
+    public boolean isFaceSkipped() {
+        return faceSkipped;
+    }
+
+    public void detectEyes(ImagePyramid pyramid, Rect face, EyeResult left, EyeResult right) {
+        int currentResets = resets;
+        if (eyesResets != currentResets) {
+            eyesResets = currentResets;
+            eyeGate.reset();
+        }
+        Mat coarse = pyramid.getCoarse();
+        eyesSkipped = face.equals(eyesFace) && eyeGate.isStill(coarse);
+        if (eyesSkipped) {
+            copy(lastLeft, left);
+            copy(lastRight, right);
+            return;
+        }
+        detector.detectEyes(pyramid, face, left, right);
+        copy(face, eyesFace);
+        copy(left, lastLeft);
+        copy(right, lastRight);
+        if (left.valid && right.valid) {
+            EyeAreas.both(face, eyesBand);
+            eyeGate.update(coarse, eyesBand);
+        } else {
+            // keep searching until both eyes are found
+            eyeGate.update(coarse, null);
+        }
+    }
+
+    /**
+     * @return true when the last {@link #detectEyes} reused the previous results instead of detecting them
+     */
+    public boolean areEyesSkipped() {
+        return eyesSkipped;
+    }
+
+    private static void copy(Rect src, Rect dst) {
+        dst.x = src.x;
+        dst.y = src.y;
+        dst.width = src.width;
+        dst.height = src.height;
+    }
+
+    private static void copy(EyeResult src, EyeResult dst) {
+        if (src.valid) {
+            dst.set(src.centerX, src.centerY, src.irisX, src.irisY);
+        } else {
+            dst.clear();
+        }
+    }
+
+    public static double ratioTo(double heightMax, Size src) {
+        double w = src.width;
+        double h = src.height;
+        double ratio;
+        if (w > h) {
+            if (w < heightMax) return 1.0;
+            ratio = heightMax / w;
+        } else {
+            if (h < heightMax) return 1.0;
+            ratio = heightMax / h;
+        }
+        return ratio;
+    }
+}
@@ -0,0 +1,36 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * A way of finding the face and both eyes in the oriented gray image, see {@link ImagePyramid} for the levels. {@link #detectFace} and {@link #detectEyes}
+ * may be called from different threads, but each of them must not be called concurrently with itself.
+ */
+public interface FaceEyeDetector {
+
+    String getName();
+
+    /**
+     * @return the face rect (owned by the detector, valid until the next call) or null if there is no face
+     */
+    Rect detectFace(Mat gray, MatPool pool);
+
+    /**
+     * @param face rect on the coarse level, the eyes may be searched on the fine one
+     * @param left receives the left eye in coarse level coordinates
+     */
+    void detectEyes(ImagePyramid pyramid, Rect face, EyeResult left, EyeResult right);
+
+    /**
+     * Forgets everything tracked between frames.
+     */
+    void reset();
+
+    /**
+     * Releases native buffers, the detector can still be used afterwards.
+     */
+    void release();
+
+    void shutdown();
+}
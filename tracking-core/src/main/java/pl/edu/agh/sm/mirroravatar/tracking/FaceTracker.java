@@ -0,0 +1,135 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Keeps track of a single face between frames. While a face is tracked only a window around the previous
+ * face rect is searched, with the cascade size range derived from the previous detection. The whole frame
+ * is searched every {@code fullSearchInterval} frames and whenever the track is lost.
+ */
+public class FaceTracker {
+
+    public enum State {
+        SEARCHING,
+        TRACKING
+    }
+
+    private static final double SCALE_FACTOR = 1.1;
+    private static final int MIN_NEIGHBORS = 3;
+
+    private final CascadeClassifier detector;
+    private final int fullSearchInterval;
+    private final double windowMargin;
+    private final double minSizeRatio;
+    private final double maxSizeRatio;
+
+    private final Rect face = new Rect();
+    private final Rect window = new Rect();
+    private final Size minSize = new Size();
+    private final Size maxSize = new Size();
+    private final int[] candidate = new int[4];
+    private State state = State.SEARCHING;
+    private int framesSinceFullSearch;
+
+    public FaceTracker(CascadeClassifier detector) {
+        this(detector, 15, 0.5, 0.75, 1.33);
+    }
+
+    /**
+     * @param fullSearchInterval max number of frames between full frame searches
+     * @param windowMargin       how much the previous face rect is expanded on each side, relative to its size
+     * @param minSizeRatio       smallest face searched for in the window, relative to the previous face size
+     * @param maxSizeRatio       biggest face searched for in the window, relative to the previous face size
+     */
+    public FaceTracker(CascadeClassifier detector, int fullSearchInterval, double windowMargin,
+                       double minSizeRatio, double maxSizeRatio) {
+        this.detector = detector;
+        this.fullSearchInterval = fullSearchInterval;
+        this.windowMargin = windowMargin;
+        this.minSizeRatio = minSizeRatio;
+        this.maxSizeRatio = maxSizeRatio;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void reset() {
+        state = State.SEARCHING;
+        framesSinceFullSearch = 0;
+    }
+
+    /**
+     * @return the tracked face rect (owned by the tracker, valid until the next call) or null if there is no face
+     */
+    public Rect detect(Mat gray, MatPool pool) {
+        if (state == State.TRACKING && framesSinceFullSearch < fullSearchInterval) {
+            framesSinceFullSearch++;
+            if (searchWindow(gray, pool)) {
+                return face;
+            }
+        }
+        framesSinceFullSearch = 0;
+        if (searchFullFrame(gray, pool)) {
+            state = State.TRACKING;
+            return face;
+        }
+        state = State.SEARCHING;
+        return null;
+    }
+
+    private boolean searchFullFrame(Mat gray, MatPool pool) {
+        MatOfRect faces = pool.acquireRects();
+        detector.detectMultiScale(gray, faces);
+        return pickLargest(faces, 0, 0);
+    }
+
+    private boolean searchWindow(Mat gray, MatPool pool) {
+        int marginX = (int) (face.width * windowMargin);
+        int marginY = (int) (face.height * windowMargin);
+        int x1 = Math.max(face.x - marginX, 0);
+        int y1 = Math.max(face.y - marginY, 0);
+        int x2 = Math.min(face.x + face.width + marginX, gray.cols());
+        int y2 = Math.min(face.y + face.height + marginY, gray.rows());
+        if (x2 <= x1 || y2 <= y1) {
+            return false;
+        }
+        window.x = x1;
+        window.y = y1;
+        window.width = x2 - x1;
+        window.height = y2 - y1;
+
+        minSize.width = face.width * minSizeRatio;
+        minSize.height = face.height * minSizeRatio;
+        maxSize.width = Math.min(face.width * maxSizeRatio, window.width);
+        maxSize.height = Math.min(face.height * maxSizeRatio, window.height);
+
+        Mat roi = pool.crop(gray, window);
+        MatOfRect faces = pool.acquireRects();
+        detector.detectMultiScale(roi, faces, SCALE_FACTOR, MIN_NEIGHBORS, 0, minSize, maxSize);
+        return pickLargest(faces, window.x, window.y);
+    }
+
+    private boolean pickLargest(MatOfRect faces, int offsetX, int offsetY) {
+        if (faces.empty()) {
+            return false;
+        }
+        // read in place, toArray() would allocate the rects
+        int bestArea = -1;
+        for (int i = 0; i < faces.rows(); i++) {
+            faces.get(i, 0, candidate);
+            if (candidate[2] * candidate[3] > bestArea) {
+                bestArea = candidate[2] * candidate[3];
+                face.x = candidate[0] + offsetX;
+                face.y = candidate[1] + offsetY;
+                face.width = candidate[2];
+                face.height = candidate[3];
+            }
+        }
+        return true;
+    }
+}
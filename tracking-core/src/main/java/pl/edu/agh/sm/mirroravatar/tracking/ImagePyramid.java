@@ -0,0 +1,154 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The oriented luminance of one frame at two resolutions, built once per frame and shared by the stages.
+ * The face is searched on the coarse level, which is all a face needs, while the eye cascades and the iris
+ * locator get the same region from the fine level, at up to {@link #FINE_SIZE} instead of the face detection size.
+ * <p>
+ * Everything the pipeline publishes stays in coarse level coordinates, {@link #toFine} and {@link #toCoarse}
+ * map between the levels.
+ * <p>
+ * Built from a luminance plane, only the coarse level is scaled up front. The fine level is scaled from a copy of
+ * the plane when {@link #getFine} first asks for it, so the frames whose eyes are skipped or that have no face
+ * never pay for it.
+ */
+public class ImagePyramid {
+
+    /**
+     * Longer side of the fine level when the camera delivers that much.
+     */
+    public static final double FINE_SIZE = 2 * EyeTracker.DETECTION_SIZE;
+
+    private final Mat fine = new Mat();
+    private final Mat coarse = new Mat();
+    private final Size coarseSize = new Size();
+    private final LumaScaler scaler = new LumaScaler();
+    private byte[] luma = new byte[0];
+    private int lumaWidth;
+    private int lumaHeight;
+    private double fineRatio;
+    private int rotation;
+    private boolean fineStale;
+    private int fineCols;
+    private int fineRows;
+    private double scaleX = 1;
+    private double scaleY = 1;
+
+    /**
+     * The fine level, filled by the caller before {@link #build(double)}, or scaled on the first call after
+     * {@link #build(byte[], int, int, double, double, int)}.
+     */
+    public Mat getFine() {
+        if (fineStale) {
+            scaler.scale(luma, lumaWidth, lumaHeight, fineRatio, rotation, fine);
+            fineStale = false;
+        }
+        return fine;
+    }
+
+    boolean isFineBuilt() {
+        return !fineStale;
+    }
+
+    public Mat getCoarse() {
+        return coarse;
+    }
+
+    /**
+     * Averages the fine level down into the coarse one.
+     *
+     * @param ratio coarse level size relative to the fine one, at most 1
+     */
+    public void build(double ratio) {
+        coarseSize.width = Math.max(Math.round(fine.cols() * Math.min(ratio, 1)), 1);
+        coarseSize.height = Math.max(Math.round(fine.rows() * Math.min(ratio, 1)), 1);
+        Imgproc.resize(fine, coarse, coarseSize, 0, 0, Imgproc.INTER_AREA);
+        fineStale = false;
+        fineCols = fine.cols();
+        fineRows = fine.rows();
+        scaleX = fineCols / (double) coarse.cols();
+        scaleY = fineRows / (double) coarse.rows();
+    }
+
+    /**
+     * Scales the coarse level straight from the luminance plane of an NV21 buffer and keeps a copy of the plane
+     * for the fine level, see {@link LumaScaler} for the orientation.
+     *
+     * @param fineRatio   fine level size relative to the plane
+     * @param coarseRatio coarse level size relative to the plane, at most {@code fineRatio}
+     */
+    public void build(byte[] yPlane, int width, int height, double fineRatio, double coarseRatio, int rotation) {
+        int size = width * height;
+        if (luma.length < size) {
+            luma = new byte[size];
+        }
+        System.arraycopy(yPlane, 0, luma, 0, size);
+        lumaWidth = width;
+        lumaHeight = height;
+        this.fineRatio = fineRatio;
+        this.rotation = rotation;
+        fineStale = true;
+        scaler.scale(yPlane, width, height, Math.min(coarseRatio, fineRatio), rotation, coarse);
+        // the size LumaScaler gives the fine level, turned like the coarse one
+        boolean turned = rotation == 0 || rotation == 180;
+        fineCols = (int) ((turned ? height : width) * fineRatio);
+        fineRows = (int) ((turned ? width : height) * fineRatio);
+        scaleX = fineCols / (double) coarse.cols();
+        scaleY = fineRows / (double) coarse.rows();
+    }
+
+    /**
+     * Fine level pixels per coarse level pixel, horizontally.
+     */
+    public double getScaleX() {
+        return scaleX;
+    }
+
+    public double getScaleY() {
+        return scaleY;
+    }
+
+    /**
+     * The fine level area covering {@code coarseRect}, clipped to the image.
+     */
+    public void toFine(Rect coarseRect, Rect dst) {
+        int x1 = Math.max((int) (coarseRect.x * scaleX), 0);
+        int y1 = Math.max((int) (coarseRect.y * scaleY), 0);
+        int x2 = Math.min((int) Math.ceil((coarseRect.x + coarseRect.width) * scaleX), fineCols);
+        int y2 = Math.min((int) Math.ceil((coarseRect.y + coarseRect.height) * scaleY), fineRows);
+        dst.x = x1;
+        dst.y = y1;
+        dst.width = Math.max(x2 - x1, 0);
+        dst.height = Math.max(y2 - y1, 0);
+    }
+
+    /**
+     * Moves a result found on the fine level to coarse level coordinates, pixel centres map onto each other.
+     */
+    public void toCoarse(EyeResult result) {
+        if (result.valid) {
+            result.set((result.centerX + 0.5) / scaleX - 0.5, (result.centerY + 0.5) / scaleY - 0.5,
+                    (result.irisX + 0.5) / scaleX - 0.5, (result.irisY + 0.5) / scaleY - 0.5);
+        }
+    }
+
+    public void copyTo(ImagePyramid dst) {
+        getFine().copyTo(dst.fine);
+        coarse.copyTo(dst.coarse);
+        dst.fineStale = false;
+        dst.fineCols = fineCols;
+        dst.fineRows = fineRows;
+        dst.scaleX = scaleX;
+        dst.scaleY = scaleY;
+    }
+
+    public void release() {
+        fine.release();
+        coarse.release();
+    }
+}
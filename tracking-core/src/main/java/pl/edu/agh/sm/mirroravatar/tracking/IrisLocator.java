@@ -0,0 +1,200 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Finds the iris centre inside an eye rect from the image gradients (Timm and Barth, "Accurate eye centre
+ * localisation by means of gradients"): the centre is the point most of the strong gradients point away from,
+ * weighted by how dark it is. Unlike the darkest pixel it is not thrown off by a single dark pixel or noise,
+ * and the peak is refined to sub-pixel precision.
+ * <p>
+ * The eye rect is averaged down to a grid at most {@value #GRID_SIZE} cells wide and high, so the cost per eye is
+ * bounded whatever the face size. The pixels are copied out of the gray image with a single read, everything else
+ * works on primitive arrays kept between calls, and the unit displacement vectors between any two grid cells come
+ * from a table built once. An instance is not thread safe, use one per eye.
+ */
+public class IrisLocator {
+
+    private static final int GRID_SIZE = 40;
+    private static final int MIN_GRID_SIZE = 5;
+    /**
+     * Gradients weaker than mean + this * standard deviation are ignored.
+     */
+    private static final double GRADIENT_THRESHOLD = 0.3;
+    private static final int TABLE_WIDTH = 2 * GRID_SIZE - 1;
+
+    private final float[] unitX = new float[TABLE_WIDTH * TABLE_WIDTH];
+    private final float[] unitY = new float[TABLE_WIDTH * TABLE_WIDTH];
+    private final RoiSampler sampler = new RoiSampler(GRID_SIZE * GRID_SIZE);
+    private final int[] grid = new int[GRID_SIZE * GRID_SIZE];
+    private final int[] weights = new int[GRID_SIZE * GRID_SIZE];
+    private final float[] magnitudes = new float[GRID_SIZE * GRID_SIZE];
+    private final int[] gradientCells = new int[GRID_SIZE * GRID_SIZE];
+    private final float[] gradientX = new float[GRID_SIZE * GRID_SIZE];
+    private final float[] gradientY = new float[GRID_SIZE * GRID_SIZE];
+    private final float[] objective = new float[GRID_SIZE * GRID_SIZE];
+    private double x;
+    private double y;
+
+    public IrisLocator() {
+        for (int dy = -(GRID_SIZE - 1); dy < GRID_SIZE; dy++) {
+            for (int dx = -(GRID_SIZE - 1); dx < GRID_SIZE; dx++) {
+                double length = Math.sqrt(dx * dx + dy * dy);
+                int i = displacement(dx, dy);
+                unitX[i] = length > 0 ? (float) (dx / length) : 0;
+                unitY[i] = length > 0 ? (float) (dy / length) : 0;
+            }
+        }
+    }
+
+    /**
+     * X of the last located iris centre in the gray image coordinates.
+     */
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public void release() {
+        sampler.release();
+    }
+
+    /**
+     * @param gray CV_8UC1 image
+     * @param area eye rect inside {@code gray}
+     * @return false when the area is too small or has no usable gradients
+     */
+    public boolean locate(Mat gray, Rect area) {
+        int gridWidth = Math.min(area.width, GRID_SIZE);
+        int gridHeight = Math.min(area.height, GRID_SIZE);
+        if (gridWidth < MIN_GRID_SIZE || gridHeight < MIN_GRID_SIZE) {
+            return false;
+        }
+        sampler.sample(gray, area, gridWidth, gridHeight, grid);
+        int gradients = collectGradients(gridWidth, gridHeight);
+        if (gradients == 0) {
+            return false;
+        }
+        weigh(gridWidth, gridHeight);
+        int best = vote(gridWidth, gridHeight, gradients);
+
+        int bestX = best % gridWidth;
+        int bestY = best / gridWidth;
+        double cellX = bestX + peakOffset(bestX > 0 ? objective[best - 1] : Float.NaN, objective[best],
+                bestX < gridWidth - 1 ? objective[best + 1] : Float.NaN);
+        double cellY = bestY + peakOffset(bestY > 0 ? objective[best - gridWidth] : Float.NaN, objective[best],
+                bestY < gridHeight - 1 ? objective[best + gridWidth] : Float.NaN);
+        // cell centres back to pixel coordinates
+        x = area.x + (cellX + 0.5) * area.width / gridWidth - 0.5;
+        y = area.y + (cellY + 0.5) * area.height / gridHeight - 0.5;
+        return true;
+    }
+
+    /**
+     * Keeps the unit vectors of the strong gradients, central differences inside the grid.
+     *
+     * @return number of gradients kept
+     */
+    private int collectGradients(int gridWidth, int gridHeight) {
+        int count = 0;
+        double sum = 0;
+        double sumSquares = 0;
+        for (int gy = 1; gy < gridHeight - 1; gy++) {
+            for (int gx = 1; gx < gridWidth - 1; gx++) {
+                int i = gy * gridWidth + gx;
+                int dx = grid[i + 1] - grid[i - 1];
+                int dy = grid[i + gridWidth] - grid[i - gridWidth];
+                float magnitude = (float) Math.sqrt(dx * dx + dy * dy);
+                magnitudes[i] = magnitude;
+                sum += magnitude;
+                sumSquares += magnitude * magnitude;
+                count++;
+            }
+        }
+        double mean = sum / count;
+        double threshold = mean + GRADIENT_THRESHOLD * Math.sqrt(Math.max(sumSquares / count - mean * mean, 0));
+        int gradients = 0;
+        for (int gy = 1; gy < gridHeight - 1; gy++) {
+            for (int gx = 1; gx < gridWidth - 1; gx++) {
+                int i = gy * gridWidth + gx;
+                float magnitude = magnitudes[i];
+                if (magnitude > threshold && magnitude > 0) {
+                    gradientCells[gradients] = i;
+                    gradientX[gradients] = (grid[i + 1] - grid[i - 1]) / magnitude;
+                    gradientY[gradients] = (grid[i + gridWidth] - grid[i - gridWidth]) / magnitude;
+                    gradients++;
+                }
+            }
+        }
+        return gradients;
+    }
+
+    /**
+     * Dark cells are more likely iris centres, the weight is the inverted 3x3 mean.
+     */
+    private void weigh(int gridWidth, int gridHeight) {
+        for (int gy = 0; gy < gridHeight; gy++) {
+            for (int gx = 0; gx < gridWidth; gx++) {
+                int sum = 0;
+                int n = 0;
+                for (int y = Math.max(gy - 1, 0); y <= Math.min(gy + 1, gridHeight - 1); y++) {
+                    for (int x = Math.max(gx - 1, 0); x <= Math.min(gx + 1, gridWidth - 1); x++) {
+                        sum += grid[y * gridWidth + x];
+                        n++;
+                    }
+                }
+                weights[gy * gridWidth + gx] = 255 - sum / n;
+            }
+        }
+    }
+
+    /**
+     * @return the cell with the highest objective
+     */
+    private int vote(int gridWidth, int gridHeight, int gradients) {
+        int best = 0;
+        float bestValue = -1;
+        for (int cy = 0; cy < gridHeight; cy++) {
+            for (int cx = 0; cx < gridWidth; cx++) {
+                float sum = 0;
+                for (int k = 0; k < gradients; k++) {
+                    int cell = gradientCells[k];
+                    int d = displacement(cell % gridWidth - cx, cell / gridWidth - cy);
+                    float dot = unitX[d] * gradientX[k] + unitY[d] * gradientY[k];
+                    if (dot > 0) {
+                        sum += dot * dot;
+                    }
+                }
+                int c = cy * gridWidth + cx;
+                objective[c] = sum * weights[c];
+                if (objective[c] > bestValue) {
+                    bestValue = objective[c];
+                    best = c;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static int displacement(int dx, int dy) {
+        return (dy + GRID_SIZE - 1) * TABLE_WIDTH + dx + GRID_SIZE - 1;
+    }
+
+    /**
+     * Vertex of the parabola through three samples around a peak, relative to the middle one.
+     */
+    private static double peakOffset(float before, float peak, float after) {
+        if (Float.isNaN(before) || Float.isNaN(after)) {
+            return 0;
+        }
+        double curvature = before - 2.0 * peak + after;
+        if (curvature >= 0) {
+            return 0;
+        }
+        return Math.max(-0.5, Math.min(0.5, 0.5 * (before - after) / curvature));
+    }
+}
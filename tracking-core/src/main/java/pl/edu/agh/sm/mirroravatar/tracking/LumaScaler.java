@@ -0,0 +1,94 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Downsamples the luminance (Y) plane of an NV21 buffer straight into a CV_8UC1 Mat in one pass,
+ * averaging a 2x2 block of source pixels for every output pixel. Keeps its scratch buffer between calls.
+ * <p>
+ * The same pass can also orient the image for the screen rotation, every output pixel is written straight to
+ * its rotated position, so there is no second full image pass and no temporary image. The result is the same as
+ * scaling and then calling {@link EyeTracker#rotate}.
+ */
+public class LumaScaler {
+
+    private byte[] scaled = new byte[0];
+
+    public void scale(byte[] yPlane, int width, int height, double ratio, Mat dst) {
+        scale(yPlane, width, height, ratio, 90, dst);
+    }
+
+    /**
+     * @param rotation screen rotation with the meaning {@link EyeTracker#rotate} gives it, 90 keeps the sensor
+     *                 orientation
+     */
+    public void scale(byte[] yPlane, int width, int height, double ratio, int rotation, Mat dst) {
+        int dstWidth = (int) (width * ratio);
+        int dstHeight = (int) (height * ratio);
+        // where the scaled pixel (x, y) lands in the oriented output: base + x * strideX + y * strideY
+        int base;
+        int strideX;
+        int strideY;
+        switch (rotation) {
+            case 0:
+                // transpose (90 clockwise, then mirrored)
+                dst.create(dstWidth, dstHeight, CvType.CV_8UC1);
+                base = 0;
+                strideX = dstHeight;
+                strideY = 1;
+                break;
+            case 180:
+                // 90 counterclockwise
+                dst.create(dstWidth, dstHeight, CvType.CV_8UC1);
+                base = (dstWidth - 1) * dstHeight;
+                strideX = -dstHeight;
+                strideY = 1;
+                break;
+            case 270:
+                // upside down
+                dst.create(dstHeight, dstWidth, CvType.CV_8UC1);
+                base = (dstHeight - 1) * dstWidth;
+                strideX = 1;
+                strideY = -dstWidth;
+                break;
+            default:
+                dst.create(dstHeight, dstWidth, CvType.CV_8UC1);
+                base = 0;
+                strideX = 1;
+                strideY = dstWidth;
+                break;
+        }
+        boolean unscaled = dstWidth == width && dstHeight == height;
+        if (unscaled && strideX == 1 && strideY == dstWidth) {
+            dst.put(0, 0, yPlane, 0, width * height);
+            return;
+        }
+        int dstSize = dstWidth * dstHeight;
+        if (scaled.length < dstSize) {
+            scaled = new byte[dstSize];
+        }
+        byte[] out = scaled;
+        if (unscaled) {
+            for (int y = 0, i = 0; y < height; y++) {
+                for (int x = 0, o = base + y * strideY; x < width; x++, o += strideX) {
+                    out[o] = yPlane[i++];
+                }
+            }
+        } else {
+            // 16.16 fixed point source step
+            int stepX = (width << 16) / dstWidth;
+            int stepY = (height << 16) / dstHeight;
+            for (int y = 0, sy = 0; y < dstHeight; y++, sy += stepY) {
+                int row = Math.min(sy >> 16, height - 2) * width;
+                for (int x = 0, sx = 0, o = base + y * strideY; x < dstWidth; x++, sx += stepX, o += strideX) {
+                    int i = row + Math.min(sx >> 16, width - 2);
+                    int sum = (yPlane[i] & 0xFF) + (yPlane[i + 1] & 0xFF)
+                            + (yPlane[i + width] & 0xFF) + (yPlane[i + width + 1] & 0xFF);
+                    out[o] = (byte) ((sum + 2) >> 2);
+                }
+            }
+        }
+        dst.put(0, 0, out, 0, dstSize);
+    }
+}
@@ -0,0 +1,153 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-pipeline pool of native Mats. Everything acquired between {@link #beginFrame()} and {@link #endFrame()}
+ * goes back to the pool at the end of the frame, so the same native buffers are reused frame after frame.
+ * Submat headers registered with {@link #track(Mat)} are released at the end of the frame, {@link #crop} avoids
+ * them altogether.
+ * Not thread safe - a pool belongs to a single pipeline thread.
+ */
+public class MatPool {
+
+    private static final AtomicInteger LIVE_MATS = new AtomicInteger();
+    private static final AtomicLong LIVE_BYTES = new AtomicLong();
+
+    // the n-th acquire of every frame gets the n-th Mat, so that each buffer keeps its role (and size);
+    // indexed lists rather than deques and iterators, so that a frame allocates nothing once the pool has grown
+    private final List<Mat> mats = new ArrayList<>();
+    private final List<MatOfRect> rects = new ArrayList<>();
+    private final List<Mat> headers = new ArrayList<>();
+    private final Size cropSize = new Size();
+    private final Point cropCentre = new Point();
+    private int usedMats;
+    private int usedRects;
+    private long ownedBytes;
+    private boolean inFrame;
+
+    public void beginFrame() {
+        if (inFrame) {
+            throw new IllegalStateException("Previous frame scope was not closed");
+        }
+        inFrame = true;
+    }
+
+    public Mat acquire() {
+        checkInFrame();
+        if (usedMats == mats.size()) {
+            mats.add(new Mat());
+            LIVE_MATS.incrementAndGet();
+        }
+        return mats.get(usedMats++);
+    }
+
+    public MatOfRect acquireRects() {
+        checkInFrame();
+        if (usedRects == rects.size()) {
+            rects.add(new MatOfRect());
+            LIVE_MATS.incrementAndGet();
+        }
+        return rects.get(usedRects++);
+    }
+
+    /**
+     * Registers a header (e.g. a submat) which does not own its data; it is released at the end of the frame.
+     */
+    public Mat track(Mat header) {
+        checkInFrame();
+        LIVE_MATS.incrementAndGet();
+        headers.add(header);
+        return header;
+    }
+
+    /**
+     * Copies {@code area} of {@code src} into a Mat from the pool. A submat would be a new Java object on every
+     * frame, copying the few pixels of a detection window is cheaper than collecting those.
+     */
+    public Mat crop(Mat src, Rect area) {
+        Mat dst = acquire();
+        cropSize.width = area.width;
+        cropSize.height = area.height;
+        // pixel aligned, so the pixels are copied as they are
+        cropCentre.x = area.x + (area.width - 1) / 2.0;
+        cropCentre.y = area.y + (area.height - 1) / 2.0;
+        Imgproc.getRectSubPix(src, cropSize, cropCentre, dst);
+        return dst;
+    }
+
+    public void endFrame() {
+        checkInFrame();
+        for (int i = 0; i < headers.size(); i++) {
+            headers.get(i).release();
+        }
+        LIVE_MATS.addAndGet(-headers.size());
+        headers.clear();
+        usedMats = 0;
+        usedRects = 0;
+        updateOwnedBytes();
+        inFrame = false;
+    }
+
+    /**
+     * Releases every pooled native buffer. The pool can still be used afterwards.
+     */
+    public void release() {
+        if (inFrame) {
+            endFrame();
+        }
+        for (int i = 0; i < mats.size(); i++) {
+            mats.get(i).release();
+        }
+        for (int i = 0; i < rects.size(); i++) {
+            rects.get(i).release();
+        }
+        LIVE_MATS.addAndGet(-(mats.size() + rects.size()));
+        mats.clear();
+        rects.clear();
+        LIVE_BYTES.addAndGet(-ownedBytes);
+        ownedBytes = 0;
+    }
+
+    private void updateOwnedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < mats.size(); i++) {
+            bytes += mats.get(i).total() * mats.get(i).elemSize();
+        }
+        for (int i = 0; i < rects.size(); i++) {
+            bytes += rects.get(i).total() * rects.get(i).elemSize();
+        }
+        LIVE_BYTES.addAndGet(bytes - ownedBytes);
+        ownedBytes = bytes;
+    }
+
+    private void checkInFrame() {
+        if (!inFrame) {
+            throw new IllegalStateException("Mat pool used outside of a frame scope");
+        }
+    }
+
+    /**
+     * Debug counter: native Mats currently owned by all pools.
+     */
+    public static int getLiveMats() {
+        return LIVE_MATS.get();
+    }
+
+    /**
+     * Debug counter: bytes of pixel data held by all pools, updated at the end of every frame.
+     */
+    public static long getLiveBytes() {
+        return LIVE_BYTES.get();
+    }
+}
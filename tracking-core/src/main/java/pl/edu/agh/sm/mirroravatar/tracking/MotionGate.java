@@ -0,0 +1,119 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Tells whether a region of the image is still the same as when it was last detected on, so that detection can be
+ * skipped and its previous result reused. The region is averaged down to a thumbnail and compared with the one
+ * taken at the last detection, by the mean or the largest absolute difference per cell. Comparing with the last
+ * detected frame rather than the previous one keeps slow movement from creeping past the threshold, and after
+ * {@code maxSkips} skipped frames in a row the detection runs anyway.
+ */
+public class MotionGate {
+
+    /**
+     * How the cell differences are summed up.
+     */
+    public enum Difference {
+        /**
+         * The mean over all cells, for motion of the whole region.
+         */
+        MEAN,
+        /**
+         * The largest one, for a small part moving inside the region, which the mean would average away.
+         */
+        PEAK
+    }
+
+    private final int gridWidth;
+    private final int gridHeight;
+    private final double threshold;
+    private final Difference difference;
+    private final int maxSkips;
+    private final RoiSampler sampler;
+    private final int[] reference;
+    private final int[] current;
+    private final Rect area = new Rect();
+    private boolean hasReference;
+    private int skipped;
+    private double lastDifference;
+
+    /**
+     * @param threshold mean absolute difference per thumbnail cell, in gray levels, below which the region is still
+     * @param maxSkips  most frames skipped in a row
+     */
+    public MotionGate(int gridWidth, int gridHeight, double threshold, int maxSkips) {
+        this(gridWidth, gridHeight, threshold, maxSkips, Difference.MEAN);
+    }
+
+    /**
+     * @param threshold absolute difference per thumbnail cell, in gray levels, below which the region is still
+     * @param maxSkips  most frames skipped in a row
+     */
+    public MotionGate(int gridWidth, int gridHeight, double threshold, int maxSkips, Difference difference) {
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.threshold = threshold;
+        this.difference = difference;
+        this.maxSkips = maxSkips;
+        this.reference = new int[gridWidth * gridHeight];
+        this.current = new int[gridWidth * gridHeight];
+        this.sampler = new RoiSampler(gridWidth * gridHeight);
+    }
+
+    /**
+     * @return true when the region of the last detection has not changed and the detection can be skipped
+     */
+    public boolean isStill(Mat gray) {
+        if (!hasReference || skipped >= maxSkips
+                || area.x + area.width > gray.cols() || area.y + area.height > gray.rows()) {
+            return false;
+        }
+        sampler.sample(gray, area, gridWidth, gridHeight, current);
+        long sum = 0;
+        int peak = 0;
+        for (int i = 0; i < current.length; i++) {
+            int cell = Math.abs(current[i] - reference[i]);
+            sum += cell;
+            peak = Math.max(peak, cell);
+        }
+        lastDifference = difference == Difference.PEAK ? peak : sum / (double) current.length;
+        if (lastDifference < threshold) {
+            skipped++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called after a detection ran, with the region it found or null when it found nothing.
+     */
+    public void update(Mat gray, Rect region) {
+        skipped = 0;
+        hasReference = region != null && region.width >= gridWidth && region.height >= gridHeight;
+        if (hasReference) {
+            area.x = region.x;
+            area.y = region.y;
+            area.width = region.width;
+            area.height = region.height;
+            sampler.sample(gray, area, gridWidth, gridHeight, reference);
+        }
+    }
+
+    /**
+     * Difference found by the last {@link #isStill} that got to compare.
+     */
+    public double getLastDifference() {
+        return lastDifference;
+    }
+
+    public void reset() {
+        hasReference = false;
+        skipped = 0;
+    }
+
+    public void release() {
+        sampler.release();
+    }
+}
@@ -0,0 +1,85 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One step of the vision pipeline running on its own thread. Items are taken from the input queue,
+ * processed and put on the output queue, which is the input of the next stage. Queues are bounded,
+ * so a slow stage applies back-pressure to the ones before it.
+ * <p>
+ * An item the worker fails on is logged and still passed on, so that it finds its way back to the first queue
+ * and the stage keeps running.
+ */
+public class PipelineStage<T> {
+
+    private static final Logger LOG = Logger.getLogger("PipelineStage");
+
+    public interface Worker<T> {
+        void process(T item);
+    }
+
+    private final StageStats stats;
+    private final BlockingQueue<T> input;
+    private final BlockingQueue<T> output;
+    private final Worker<T> worker;
+    private Thread thread;
+    private volatile boolean running;
+
+    public PipelineStage(String name, BlockingQueue<T> input, BlockingQueue<T> output, Worker<T> worker) {
+        this.stats = new StageStats(name);
+        this.input = input;
+        this.output = output;
+        this.worker = worker;
+    }
+
+    public StageStats getStats() {
+        return stats;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::loop, stats.getName() + "Stage");
+        thread.start();
+    }
+
+    /**
+     * @return false when interrupted before the stage thread ended, the worker may then still be using what it holds
+     */
+    public synchronized boolean stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            thread = null;
+        }
+        return true;
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                T item = input.take();
+                long start = System.nanoTime();
+                try {
+                    worker.process(item);
+                    stats.record(start, System.nanoTime());
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, stats.getName() + " stage failed on an item", e);
+                }
+                output.put(item);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+/**
+ * Picks the camera preview size and the resolution the detection works at from a frame time budget.
+ * <p>
+ * The preview only has to be as large as the biggest image the detection uses, everything above that is captured,
+ * copied and thrown away by the downscale. At runtime the detection size steps down a level while the detection
+ * working at that size stays over the budget (e.g. when the device throttles) and back up once there is clear headroom again.
+ * Both directions need a run of frames, so the size does not oscillate between two levels.
+ * <p>
+ * The preview size follows the detection level in proportion, from {@code maxPreviewSize} down, but only once the
+ * detection has kept to another level for {@link #FRAMES_TO_RESIZE_PREVIEW} frames: changing it restarts the
+ * camera, which costs far more than a step of the detection size.
+ */
+public class ResolutionGovernor {
+
+    private static final double LEVEL_STEP = 0.85;
+    private static final double LATENCY_SMOOTHING = 0.1;
+    private static final double OVER_BUDGET = 1.1;
+    private static final double UNDER_BUDGET = 0.6;
+    private static final int FRAMES_TO_STEP_DOWN = 15;
+    private static final int FRAMES_TO_STEP_UP = 90;
+    private static final int FRAMES_TO_RESIZE_PREVIEW = 300;
+
+    private final double frameBudgetSeconds;
+    private final double[] sizes;
+    private final double maxPreviewSize;
+    private volatile int level;
+    private volatile int previewLevel;
+    private int framesOffPreview;
+    private double latency;
+    private int framesOver;
+    private int framesUnder;
+
+    /**
+     * @param frameBudgetSeconds time a detection stage may take per frame, one frame period at the wanted rate
+     * @param maxDetectionSize   longer side of the detection image when there is time for it
+     * @param minDetectionSize   the detection image is never made smaller than this
+     */
+    public ResolutionGovernor(double frameBudgetSeconds, double maxDetectionSize, double minDetectionSize) {
+        this(frameBudgetSeconds, maxDetectionSize, minDetectionSize, maxDetectionSize);
+    }
+
+    /**
+     * @param maxPreviewSize longer side of the smallest preview wanted at {@code maxDetectionSize}
+     */
+    public ResolutionGovernor(double frameBudgetSeconds, double maxDetectionSize, double minDetectionSize,
+                              double maxPreviewSize) {
+        this.frameBudgetSeconds = frameBudgetSeconds;
+        this.maxPreviewSize = maxPreviewSize;
+        int levels = 1;
+        while (maxDetectionSize * Math.pow(LEVEL_STEP, levels) >= minDetectionSize) {
+            levels++;
+        }
+        sizes = new double[levels];
+        for (int i = 0; i < levels; i++) {
+            sizes[i] = Math.round(maxDetectionSize * Math.pow(LEVEL_STEP, i));
+        }
+    }
+
+    /**
+     * @return index of the smallest size whose longer side is at least {@code minSize}, or of the largest size
+     * when none is big enough
+     */
+    public static int choosePreviewSize(int[] widths, int[] heights, double minSize) {
+        int best = -1;
+        int largest = 0;
+        for (int i = 0; i < widths.length; i++) {
+            long area = (long) widths[i] * heights[i];
+            if (area > (long) widths[largest] * heights[largest]) {
+                largest = i;
+            }
+            if (Math.max(widths[i], heights[i]) >= minSize
+                    && (best == -1 || area < (long) widths[best] * heights[best])) {
+                best = i;
+            }
+        }
+        return best != -1 ? best : largest;
+    }
+
+    public double getMaxDetectionSize() {
+        return sizes[0];
+    }
+
+    /**
+     * Longer side of the image the detection should run on, may be read from any thread.
+     */
+    public double getDetectionSize() {
+        return sizes[level];
+    }
+
+    /**
+     * Longer side the camera preview should at least have, may be read from any thread.
+     */
+    public double getPreviewSize() {
+        return Math.round(maxPreviewSize * sizes[previewLevel] / sizes[0]);
+    }
+
+    /**
+     * Called once per detected frame with the time of the detection working at the governed size.
+     *
+     * @return true when the detection size changed, the preview size may change on its own
+     */
+    public boolean record(double stageSeconds) {
+        boolean changed = false;
+        latency = latency == 0 ? stageSeconds : latency + LATENCY_SMOOTHING * (stageSeconds - latency);
+        if (latency > frameBudgetSeconds * OVER_BUDGET) {
+            framesUnder = 0;
+            if (++framesOver >= FRAMES_TO_STEP_DOWN && level < sizes.length - 1) {
+                changed = setLevel(level + 1);
+            }
+        } else if (latency < frameBudgetSeconds * UNDER_BUDGET) {
+            framesOver = 0;
+            if (++framesUnder >= FRAMES_TO_STEP_UP && level > 0) {
+                changed = setLevel(level - 1);
+            }
+        } else {
+            framesOver = 0;
+            framesUnder = 0;
+        }
+        updatePreviewLevel();
+        return changed;
+    }
+
+    private void updatePreviewLevel() {
+        if (previewLevel == level) {
+            framesOffPreview = 0;
+        } else if (++framesOffPreview >= FRAMES_TO_RESIZE_PREVIEW) {
+            previewLevel = level;
+            framesOffPreview = 0;
+        }
+    }
+
+    private boolean setLevel(int level) {
+        this.level = level;
+        // the smoothed latency was measured at the old size
+        latency = 0;
+        framesOver = 0;
+        framesUnder = 0;
+        return true;
+    }
+}
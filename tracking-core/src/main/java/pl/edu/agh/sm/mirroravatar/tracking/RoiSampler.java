@@ -0,0 +1,74 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/**
+ * Averages a rect of a CV_8UC1 image down to a small grid of ints. The area is copied into a Mat of its own, like
+ * {@link MatPool#crop}, and read out of it with a single call. The pixel buffer is sized for the whole image, as the
+ * read stops at the end of the copy, so it only grows when the image does and not whenever a larger area comes.
+ */
+final class RoiSampler {
+
+    private final Mat patch = new Mat();
+    private final Size patchSize = new Size();
+    private final Point patchCentre = new Point();
+    private final int[] counts;
+    private byte[] pixels = new byte[0];
+
+    /**
+     * @param maxCells largest grid sampled to
+     */
+    RoiSampler(int maxCells) {
+        this.counts = new int[maxCells];
+    }
+
+    /**
+     * @param grid receives {@code gridWidth * gridHeight} cell means row by row, the grid must not be
+     *             larger than the area
+     */
+    void sample(Mat gray, Rect area, int gridWidth, int gridHeight, int[] grid) {
+        read(gray, area);
+        int cells = gridWidth * gridHeight;
+        Arrays.fill(grid, 0, cells, 0);
+        Arrays.fill(counts, 0, cells, 0);
+        for (int r = 0; r < area.height; r++) {
+            int cellRow = r * gridHeight / area.height * gridWidth;
+            int p = r * area.width;
+            for (int c = 0; c < area.width; c++) {
+                int cell = cellRow + c * gridWidth / area.width;
+                grid[cell] += pixels[p + c] & 0xFF;
+                counts[cell]++;
+            }
+        }
+        for (int i = 0; i < cells; i++) {
+            grid[i] /= counts[i];
+        }
+    }
+
+    void release() {
+        patch.release();
+    }
+
+    /**
+     * Copies the area out of the image, row after row into {@link #pixels}.
+     */
+    private void read(Mat gray, Rect area) {
+        patchSize.width = area.width;
+        patchSize.height = area.height;
+        // pixel aligned, so the pixels are copied as they are
+        patchCentre.x = area.x + (area.width - 1) / 2.0;
+        patchCentre.y = area.y + (area.height - 1) / 2.0;
+        Imgproc.getRectSubPix(gray, patchSize, patchCentre, patch);
+        int size = (int) gray.total();
+        if (pixels.length < size) {
+            pixels = new byte[size];
+        }
+        patch.get(0, 0, pixels);
+    }
+}
@@ -0,0 +1,60 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import java.util.Locale;
+
+/**
+ * Latency and throughput of a single pipeline stage. Written by the stage thread only,
+ * readable from any thread.
+ */
+public class StageStats {
+
+    private static final double SMOOTHING = 0.1;
+
+    private final String name;
+    private volatile long frames;
+    private volatile long lastLatencyNanos;
+    private volatile double meanLatencyNanos;
+    private volatile double framesPerSecond;
+    private long lastEndNanos;
+
+    public StageStats(String name) {
+        this.name = name;
+    }
+
+    public void record(long startNanos, long endNanos) {
+        long latency = endNanos - startNanos;
+        lastLatencyNanos = latency;
+        meanLatencyNanos = frames == 0 ? latency : meanLatencyNanos + SMOOTHING * (latency - meanLatencyNanos);
+        if (lastEndNanos != 0 && endNanos > lastEndNanos) {
+            double fps = 1e9 / (endNanos - lastEndNanos);
+            framesPerSecond = framesPerSecond == 0 ? fps : framesPerSecond + SMOOTHING * (fps - framesPerSecond);
+        }
+        lastEndNanos = endNanos;
+        frames++;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getLastLatencyNanos() {
+        return lastLatencyNanos;
+    }
+
+    public double getMeanLatencyMillis() {
+        return meanLatencyNanos / 1e6;
+    }
+
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: %.2f ms, %.1f fps", name, getMeanLatencyMillis(), framesPerSecond);
+    }
+}
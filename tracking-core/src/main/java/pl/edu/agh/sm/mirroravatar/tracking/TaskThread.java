@@ -0,0 +1,89 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+/**
+ * Runs the same task on a dedicated daemon thread whenever {@link #fork} is called and lets the caller
+ * {@link #join} it. Unlike submitting to an executor nothing is allocated per run, the task reads its
+ * inputs from fields set before the fork. One caller at a time.
+ */
+final class TaskThread {
+
+    private final String name;
+    private final Runnable task;
+    private Thread thread;
+    private boolean pending;
+    private boolean stopped;
+    private RuntimeException failure;
+
+    TaskThread(String name, Runnable task) {
+        this.name = name;
+        this.task = task;
+    }
+
+    /**
+     * Starts a run, after the previous one finished if it was abandoned by an interrupted {@link #join}.
+     */
+    synchronized void fork() throws InterruptedException {
+        while (pending) {
+            wait();
+        }
+        if (stopped) {
+            throw new IllegalStateException(name + " was shut down");
+        }
+        if (thread == null) {
+            thread = new Thread(this::loop, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        failure = null;
+        pending = true;
+        notifyAll();
+    }
+
+    /**
+     * @return what the task threw, or null when it completed
+     */
+    synchronized RuntimeException join() throws InterruptedException {
+        while (pending) {
+            wait();
+        }
+        return failure;
+    }
+
+    synchronized void shutdown() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void loop() {
+        while (awaitRun()) {
+            RuntimeException error = null;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            synchronized (this) {
+                failure = error;
+                pending = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized boolean awaitRun() {
+        try {
+            while (!pending && !stopped) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            // shut down
+        }
+        if (stopped) {
+            pending = false;
+            notifyAll();
+        }
+        return !stopped;
+    }
+}
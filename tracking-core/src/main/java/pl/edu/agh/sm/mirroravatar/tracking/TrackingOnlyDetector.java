@@ -0,0 +1,182 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * The cheapest detector: the face cascade only (re)acquires the face, every {@code reacquireInterval} frames
+ * or when the track is lost. In between the face is followed by matching a small template of it around its previous
+ * position. No eye cascades run, the eyes are placed by the face geometry and the irises located by
+ * {@link IrisLocator}.
+ */
+public class TrackingOnlyDetector implements FaceEyeDetector {
+
+    private static final int TEMPLATE_SIZE = 48;
+    private static final double WINDOW_MARGIN = 0.25;
+    private static final double MIN_SCORE = 0.7;
+    /**
+     * Most match positions along a side when following a square face, the scaled window exceeds the template by
+     * twice the margin (and a pixel of rounding).
+     */
+    private static final int SCORES_SIDE = (int) Math.ceil(2 * WINDOW_MARGIN * TEMPLATE_SIZE) + 2;
+
+    private final FaceTracker faceTracker;
+    private final int reacquireInterval;
+    private final IrisLocator leftIrisLocator = new IrisLocator();
+    private final IrisLocator rightIrisLocator = new IrisLocator();
+    private final Mat template = new Mat();
+    private final Mat windowScaled = new Mat();
+    private final Mat scores = new Mat();
+    private final Rect face = new Rect();
+    private final Rect window = new Rect();
+    private final Rect eyeArea = new Rect();
+    private final Rect irisArea = new Rect();
+    private float[] scoreValues = new float[SCORES_SIDE * SCORES_SIDE];
+    private final Size scaledSize = new Size();
+    private double templateScale;
+    private boolean tracking;
+    private int framesSinceAcquire;
+
+    public TrackingOnlyDetector(CascadeClassifier faceDetector) {
+        this(faceDetector, 60);
+    }
+
+    public TrackingOnlyDetector(CascadeClassifier faceDetector, int reacquireInterval) {
+        this.faceTracker = new FaceTracker(faceDetector);
+        this.reacquireInterval = reacquireInterval;
+    }
+
+    @Override
+    public String getName() {
+        return "Tracking";
+    }
+
+    @Override
+    public Rect detectFace(Mat gray, MatPool pool) {
+        if (tracking && framesSinceAcquire < reacquireInterval) {
+            framesSinceAcquire++;
+            if (follow(gray, pool)) {
+                return face;
+            }
+        }
+        return acquire(gray, pool);
+    }
+
+    @Override
+    public void detectEyes(ImagePyramid pyramid, Rect face, EyeResult left, EyeResult right) {
+        EyeAreas.left(face, eyeArea);
+        pyramid.toFine(eyeArea, eyeArea);
+        locateIris(pyramid.getFine(), eyeArea, leftIrisLocator, left);
+        EyeAreas.right(face, eyeArea);
+        pyramid.toFine(eyeArea, eyeArea);
+        locateIris(pyramid.getFine(), eyeArea, rightIrisLocator, right);
+        pyramid.toCoarse(left);
+        pyramid.toCoarse(right);
+    }
+
+    @Override
+    public void reset() {
+        tracking = false;
+        faceTracker.reset();
+    }
+
+    @Override
+    public void release() {
+        template.release();
+        windowScaled.release();
+        scores.release();
+        leftIrisLocator.release();
+        rightIrisLocator.release();
+        tracking = false;
+    }
+
+    @Override
+    public void shutdown() {
+        release();
+    }
+
+    private Rect acquire(Mat gray, MatPool pool) {
+        Rect found = faceTracker.detect(gray, pool);
+        tracking = found != null;
+        if (!tracking) {
+            return null;
+        }
+        face.x = found.x;
+        face.y = found.y;
+        face.width = found.width;
+        face.height = found.height;
+        templateScale = TEMPLATE_SIZE / (double) face.width;
+        Imgproc.resize(pool.crop(gray, face), template, scaled(face), 0, 0, Imgproc.INTER_AREA);
+        framesSinceAcquire = 0;
+        return face;
+    }
+
+    private boolean follow(Mat gray, MatPool pool) {
+        int marginX = (int) (face.width * WINDOW_MARGIN);
+        int marginY = (int) (face.height * WINDOW_MARGIN);
+        int x1 = Math.max(face.x - marginX, 0);
+        int y1 = Math.max(face.y - marginY, 0);
+        int x2 = Math.min(face.x + face.width + marginX, gray.cols());
+        int y2 = Math.min(face.y + face.height + marginY, gray.rows());
+        if (x2 - x1 < face.width || y2 - y1 < face.height) {
+            return false;
+        }
+        window.x = x1;
+        window.y = y1;
+        window.width = x2 - x1;
+        window.height = y2 - y1;
+
+        Imgproc.resize(pool.crop(gray, window), windowScaled, scaled(window), 0, 0, Imgproc.INTER_AREA);
+        if (windowScaled.cols() < template.cols() || windowScaled.rows() < template.rows()) {
+            return false;
+        }
+        Imgproc.matchTemplate(windowScaled, template, scores, Imgproc.TM_CCOEFF_NORMED);
+        int best = bestScore();
+        if (scoreValues[best] < MIN_SCORE) {
+            return false;
+        }
+        face.x = window.x + (int) Math.round(best % scores.cols() / templateScale);
+        face.y = window.y + (int) Math.round(best / scores.cols() / templateScale);
+        return true;
+    }
+
+    /**
+     * Index of the highest score, found here because {@code Core.minMaxLoc} allocates its result.
+     */
+    private int bestScore() {
+        int count = (int) scores.total();
+        if (scoreValues.length < count) {
+            scoreValues = new float[count];
+        }
+        scores.get(0, 0, scoreValues);
+        int best = 0;
+        for (int i = 1; i < count; i++) {
+            if (scoreValues[i] > scoreValues[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private Size scaled(Rect rect) {
+        scaledSize.width = Math.max(Math.round(rect.width * templateScale), 1);
+        scaledSize.height = Math.max(Math.round(rect.height * templateScale), 1);
+        return scaledSize;
+    }
+
+    private void locateIris(Mat gray, Rect area, IrisLocator irisLocator, EyeResult result) {
+        result.clear();
+        // the lower part of the area, like the cascade detector does with the eye it found
+        irisArea.x = area.x;
+        irisArea.y = (int) (area.y + area.height * 0.4);
+        irisArea.width = area.width;
+        irisArea.height = (int) (area.height * 0.6);
+        if (irisLocator.locate(gray, irisArea)) {
+            result.set(irisArea.x + irisArea.width / 2.0, irisArea.y + irisArea.height / 2.0,
+                    irisLocator.getX(), irisLocator.getY());
+        }
+    }
+}
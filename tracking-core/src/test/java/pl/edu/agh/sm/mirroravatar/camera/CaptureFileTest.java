@@ -0,0 +1,82 @@
+package pl.edu.agh.sm.mirroravatar.camera;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class CaptureFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordedFrames_areReadBackInOrder() throws IOException {
+        File capture = folder.newFile("capture.bin");
+        try (FrameRecorder recorder = new FrameRecorder(capture)) {
+            recorder.write(new byte[]{1, 2, 3, 4, 5, 6}, 2, 2, 100L);
+            recorder.write(new byte[]{7, 8, 9, 10, 11, 12}, 2, 2, 133L);
+        }
+
+        try (CaptureReader reader = new CaptureReader(capture)) {
+            byte[] data = new byte[6];
+            assertTrue(reader.next());
+            assertEquals(100L, reader.timestampNanos());
+            assertEquals(2, reader.width());
+            assertEquals(2, reader.height());
+            reader.read(data);
+            assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, data);
+
+            assertTrue(reader.next());
+            assertEquals(133L, reader.timestampNanos());
+            reader.read(data);
+            assertArrayEquals(new byte[]{7, 8, 9, 10, 11, 12}, data);
+            assertFalse(reader.next());
+
+            reader.rewind();
+            assertTrue(reader.next());
+            assertEquals(100L, reader.timestampNanos());
+        }
+    }
+
+    @Test
+    public void fullFile_rollsOverToTheNextPart() throws IOException {
+        File capture = folder.newFile("capture.bin");
+        long twoFrames = FrameRecorder.FILE_HEADER_SIZE + 2 * (FrameRecorder.RECORD_HEADER_SIZE + 6);
+        try (FrameRecorder recorder = new FrameRecorder(capture, twoFrames)) {
+            for (int frame = 0; frame < 3; frame++) {
+                recorder.write(new byte[]{(byte) frame, 0, 0, 0, 0, 0}, 2, 2, 100L + frame);
+            }
+            assertEquals(2, recorder.getParts());
+            assertEquals(3, recorder.getFramesWritten());
+        }
+        assertEquals(twoFrames, capture.length());
+
+        byte[] data = new byte[6];
+        try (CaptureReader reader = new CaptureReader(capture)) {
+            assertTrue(reader.next());
+            assertTrue(reader.next());
+            assertEquals(101L, reader.timestampNanos());
+            assertFalse(reader.next());
+        }
+        try (CaptureReader reader = new CaptureReader(FrameRecorder.partFile(capture, 1))) {
+            assertTrue(reader.next());
+            assertEquals(102L, reader.timestampNanos());
+            reader.read(data);
+            assertEquals(2, data[0]);
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFiles_areRejected() throws IOException {
+        File capture = folder.newFile("other.bin");
+        Files.write(capture.toPath(), new byte[]{0, 1, 2, 3, 4, 5, 6, 7});
+        new CaptureReader(capture).close();
+    }
+}
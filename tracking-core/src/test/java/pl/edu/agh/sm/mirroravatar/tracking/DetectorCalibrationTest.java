@@ -0,0 +1,130 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DetectorCalibrationTest {
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Test
+    public void choose_prefersTheFastestDetectorReachingTheRate() {
+        DetectorCalibration calibration = new DetectorCalibration(0.8);
+        DetectorCalibration.Result haar = new DetectorCalibration.Result(new FakeDetector("Haar", 1), 1.0, 40e6);
+        DetectorCalibration.Result lbp = new DetectorCalibration.Result(new FakeDetector("LBP", 1), 0.85, 12e6);
+        DetectorCalibration.Result tracking = new DetectorCalibration.Result(new FakeDetector("Tracking", 1), 0.5, 3e6);
+
+        assertSame(lbp, calibration.choose(Arrays.asList(haar, lbp, tracking)));
+        // nothing reaches the rate, the most reliable one wins
+        assertSame(tracking, new DetectorCalibration(0.9).choose(Arrays.asList(
+                new DetectorCalibration.Result(new FakeDetector("LBP", 1), 0.2, 12e6), tracking)));
+        // nobody in front of the camera
+        assertNull(calibration.choose(Collections.singletonList(
+                new DetectorCalibration.Result(new FakeDetector("Haar", 1), 0, 40e6))));
+    }
+
+    @Test
+    public void measure_countsFramesWithBothEyes() {
+        FakeDetector everyOther = new FakeDetector("EveryOther", 2);
+        List<ImagePyramid> frames = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            frames.add(new ImagePyramid());
+        }
+
+        List<DetectorCalibration.Result> results = new DetectorCalibration(0.8)
+                .measure(Collections.singletonList(everyOther), frames);
+
+        assertEquals(1, results.size());
+        assertEquals(0.5, results.get(0).detectionRate, 1e-9);
+        assertEquals(2, everyOther.resets);
+    }
+
+    @Test
+    public void measure_doesNotCountEyesTheReferenceDoesNotSee() {
+        List<ImagePyramid> frames = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            frames.add(new ImagePyramid());
+        }
+        FakeDetector haar = new FakeDetector("Haar", 1, 0, 0);
+        // a little off, as another backend would find the same iris
+        FakeDetector lbp = new FakeDetector("LBP", 1, 1, 1);
+        // eyes placed from the face geometry alone, below the real ones
+        FakeDetector geometry = new FakeDetector("Geometry", 1, 0, 12);
+
+        DetectorCalibration calibration = new DetectorCalibration(0.8);
+        List<DetectorCalibration.Result> results = calibration.measure(Arrays.asList(haar, lbp, geometry), frames);
+
+        assertEquals(1.0, results.get(0).detectionRate, 1e-9);
+        assertEquals(1.0, results.get(1).detectionRate, 1e-9);
+        assertEquals(0.0, results.get(2).detectionRate, 1e-9);
+        // the geometric placement is the cheapest, but it does not get chosen
+        DetectorCalibration.Result geometryResult = new DetectorCalibration.Result(geometry, 0.0, 3e6);
+        DetectorCalibration.Result lbpResult = new DetectorCalibration.Result(lbp, 1.0, 12e6);
+        assertSame(lbpResult, calibration.choose(Arrays.asList(geometryResult, lbpResult)));
+    }
+
+    private static class FakeDetector implements FaceEyeDetector {
+        private final String name;
+        private final int period;
+        private final double offsetX;
+        private final double offsetY;
+        private final Rect face = new Rect(0, 0, 10, 10);
+        private int frame;
+        int resets;
+
+        FakeDetector(String name, int period) {
+            this(name, period, 0, 0);
+        }
+
+        /**
+         * Finds the irises moved by the offset from (10, 20) and (50, 20).
+         */
+        FakeDetector(String name, int period, double offsetX, double offsetY) {
+            this.name = name;
+            this.period = period;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Rect detectFace(Mat gray, MatPool pool) {
+            return frame++ % period == 0 ? face : null;
+        }
+
+        @Override
+        public void detectEyes(ImagePyramid pyramid, Rect face, EyeResult left, EyeResult right) {
+            left.set(10, 20, 10 + offsetX, 20 + offsetY);
+            right.set(50, 20, 50 + offsetX, 20 + offsetY);
+        }
+
+        @Override
+        public void reset() {
+            resets++;
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
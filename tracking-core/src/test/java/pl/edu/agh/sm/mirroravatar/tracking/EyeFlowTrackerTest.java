@@ -0,0 +1,173 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class EyeFlowTrackerTest {
+
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 120;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Test
+    public void track_followsTheMovingEye() {
+        byte[] texture = texture(new Random(11));
+        EyeFlowTracker tracker = new EyeFlowTracker(10);
+        Rect eye = new Rect(70, 40, 40, 30);
+        Mat frame = shifted(texture, 0, 0);
+        assertTrue(tracker.start(frame, eye));
+
+        Rect tracked = new Rect();
+        for (int i = 1; i <= 5; i++) {
+            frame.release();
+            frame = shifted(texture, 2 * i, i);
+            assertTrue(tracker.track(frame, tracked));
+            assertEquals(eye.x + 2 * i, tracked.x, 1);
+            assertEquals(eye.y + i, tracked.y, 1);
+            assertEquals(eye.width, tracked.width);
+        }
+        frame.release();
+        tracker.release();
+    }
+
+    @Test
+    public void track_followsMotionSlowerThanAPixelPerFrame() {
+        byte[] texture = texture(new Random(23));
+        EyeFlowTracker tracker = new EyeFlowTracker(20);
+        Rect eye = new Rect(70, 40, 40, 30);
+        Mat frame = shifted(texture, 0, 0);
+        assertTrue(tracker.start(frame, eye));
+
+        Rect tracked = new Rect();
+        for (int i = 1; i <= 10; i++) {
+            frame.release();
+            frame = shifted(texture, 0.3 * i, 0);
+            assertTrue(tracker.track(frame, tracked));
+        }
+        assertEquals(eye.x + 3, tracked.x, 1);
+        assertEquals(eye.y, tracked.y);
+        frame.release();
+        tracker.release();
+    }
+
+    @Test
+    public void track_doesNotFollowTheIrisInsideAStillEye() {
+        byte[] skin = texture(new Random(29));
+        byte[] iris = texture(new Random(31));
+        EyeFlowTracker tracker = new EyeFlowTracker(10);
+        Rect eye = new Rect(70, 40, 40, 30);
+        Mat frame = withIris(skin, iris, 90, 55);
+        assertTrue(tracker.start(frame, eye, 90, 55));
+
+        Rect tracked = new Rect();
+        for (int i = 1; i <= 4; i++) {
+            frame.release();
+            frame = withIris(skin, iris, 90 + i, 55);
+            assertTrue(tracker.track(frame, tracked));
+            assertEquals(eye.x, tracked.x);
+            assertEquals(eye.y, tracked.y);
+        }
+        frame.release();
+        tracker.release();
+    }
+
+    @Test
+    public void track_givesUpAtTheRefreshInterval() {
+        byte[] texture = texture(new Random(13));
+        EyeFlowTracker tracker = new EyeFlowTracker(2);
+        Mat frame = shifted(texture, 0, 0);
+        Rect tracked = new Rect();
+        assertTrue(tracker.start(frame, new Rect(70, 40, 40, 30)));
+
+        assertTrue(tracker.track(frame, tracked));
+        assertTrue(tracker.track(frame, tracked));
+        assertFalse(tracker.track(frame, tracked));
+        assertFalse(tracker.isTracking());
+        frame.release();
+        tracker.release();
+    }
+
+    @Test
+    public void track_givesUpWhenTheContentChanges() {
+        EyeFlowTracker tracker = new EyeFlowTracker(10);
+        Mat frame = shifted(texture(new Random(17)), 0, 0);
+        Mat other = shifted(texture(new Random(19)), 0, 0);
+        assertTrue(tracker.start(frame, new Rect(70, 40, 40, 30)));
+
+        assertFalse(tracker.track(other, new Rect()));
+        frame.release();
+        other.release();
+        tracker.release();
+    }
+
+    @Test
+    public void start_rejectsAFlatEye() {
+        Mat flat = new Mat(HEIGHT, WIDTH, CvType.CV_8UC1, new Scalar(128));
+        EyeFlowTracker tracker = new EyeFlowTracker(10);
+
+        assertFalse(tracker.start(flat, new Rect(70, 40, 40, 30)));
+        assertFalse(tracker.track(flat, new Rect()));
+        flat.release();
+        tracker.release();
+    }
+
+    /**
+     * Random blobs, smoothed so that the flow has gradients to work with, twice the frame size.
+     */
+    private static byte[] texture(Random random) {
+        byte[] data = new byte[4 * WIDTH * HEIGHT];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) random.nextInt(256);
+        }
+        Mat noise = new Mat(2 * HEIGHT, 2 * WIDTH, CvType.CV_8UC1);
+        noise.put(0, 0, data);
+        Imgproc.GaussianBlur(noise, noise, new Size(0, 0), 2);
+        noise.get(0, 0, data);
+        noise.release();
+        return data;
+    }
+
+    /**
+     * A frame of the texture with its content moved right by {@code dx} and down by {@code dy}.
+     */
+    private static Mat shifted(byte[] texture, double dx, double dy) {
+        Mat source = new Mat(2 * HEIGHT, 2 * WIDTH, CvType.CV_8UC1);
+        source.put(0, 0, texture);
+        Mat mat = new Mat();
+        Imgproc.getRectSubPix(source, new Size(WIDTH, HEIGHT),
+                new Point(WIDTH + (WIDTH - 1) / 2.0 - WIDTH / 2 - dx, HEIGHT + (HEIGHT - 1) / 2.0 - HEIGHT / 2 - dy), mat);
+        source.release();
+        return mat;
+    }
+
+    /**
+     * A still, faint frame of {@code skin} with a contrasted disk of {@code iris} centred on ({@code x}, {@code y}),
+     * its texture moving along with it.
+     */
+    private static Mat withIris(byte[] skin, byte[] iris, int x, int y) {
+        Mat frame = shifted(skin, 0, 0);
+        frame.convertTo(frame, -1, 0.3, 90);
+        Mat disk = shifted(iris, x - WIDTH / 2, y - HEIGHT / 2);
+        Mat mask = Mat.zeros(HEIGHT, WIDTH, CvType.CV_8UC1);
+        Imgproc.circle(mask, new Point(x, y), 8, new Scalar(255), -1);
+        disk.copyTo(frame, mask);
+        disk.release();
+        mask.release();
+        return frame;
+    }
+}
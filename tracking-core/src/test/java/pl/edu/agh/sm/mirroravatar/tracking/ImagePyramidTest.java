@@ -0,0 +1,88 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ImagePyramidTest {
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Test
+    public void levels_mapOntoEachOther() {
+        ImagePyramid pyramid = new ImagePyramid();
+        pyramid.getFine().create(720, 1280, CvType.CV_8UC1);
+        pyramid.getFine().setTo(new Scalar(100));
+        pyramid.build(0.5);
+
+        assertEquals(640, pyramid.getCoarse().cols());
+        assertEquals(360, pyramid.getCoarse().rows());
+        assertEquals(2.0, pyramid.getScaleX(), 0);
+
+        Rect fine = new Rect();
+        pyramid.toFine(new Rect(10, 20, 30, 40), fine);
+        assertEquals(new Rect(20, 40, 60, 80), fine);
+        pyramid.toFine(new Rect(630, 350, 30, 30), fine);
+        assertEquals(new Rect(1260, 700, 20, 20), fine);
+
+        // the centre of fine pixels 20 and 21 is the centre of coarse pixel 10
+        EyeResult eye = new EyeResult();
+        eye.set(20.5, 40.5, 21, 41);
+        pyramid.toCoarse(eye);
+        assertEquals(10, eye.centerX, 1e-9);
+        assertEquals(20, eye.centerY, 1e-9);
+        assertEquals(10.25, eye.irisX, 1e-9);
+        pyramid.release();
+    }
+
+    @Test
+    public void lumaBuild_scalesTheFineLevelOnlyWhenAsked() {
+        int width = 640;
+        int height = 480;
+        byte[] yPlane = new byte[width * height * 3 / 2];
+        for (int i = 0; i < width * height; i++) {
+            yPlane[i] = (byte) (i % width + i / width);
+        }
+        ImagePyramid pyramid = new ImagePyramid();
+        pyramid.build(yPlane, width, height, 1.0, 0.5, 0);
+
+        assertFalse(pyramid.isFineBuilt());
+        // turned by the rotation
+        assertEquals(240, pyramid.getCoarse().cols());
+        assertEquals(320, pyramid.getCoarse().rows());
+        assertEquals(2.0, pyramid.getScaleX(), 0);
+        Rect fine = new Rect();
+        pyramid.toFine(new Rect(230, 310, 20, 20), fine);
+        assertEquals(new Rect(460, 620, 20, 20), fine);
+        assertFalse(pyramid.isFineBuilt());
+
+        // the buffer is the camera's again once the frame was acquired
+        byte[] expected = yPlane.clone();
+        Arrays.fill(yPlane, (byte) 0);
+        Mat reference = new Mat();
+        new LumaScaler().scale(expected, width, height, 1.0, 0, reference);
+        Mat difference = new Mat();
+        Core.absdiff(pyramid.getFine(), reference, difference);
+        assertTrue(pyramid.isFineBuilt());
+        assertEquals(0, Core.countNonZero(difference));
+
+        ImagePyramid copy = new ImagePyramid();
+        pyramid.copyTo(copy);
+        assertEquals(480, copy.getFine().cols());
+        reference.release();
+        difference.release();
+        copy.release();
+        pyramid.release();
+    }
+}
@@ -0,0 +1,71 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IrisLocatorTest {
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Test
+    public void locate_findsTheDarkDiskCentreDespiteNoise() {
+        Random random = new Random(3);
+        IrisLocator locator = new IrisLocator();
+        for (int i = 0; i < 20; i++) {
+            double irisX = 40 + random.nextDouble() * 20;
+            double irisY = 32 + random.nextDouble() * 6;
+            Mat gray = eye(160, 80, irisX, irisY, 7, random);
+            Rect area = new Rect(20, 20, 60, 30);
+
+            assertTrue(locator.locate(gray, area));
+            assertEquals(irisX, locator.getX(), 1.0);
+            assertEquals(irisY, locator.getY(), 1.0);
+            // a cropped image (not continuous) gives the same answer
+            Mat cropped = gray.submat(new Rect(10, 10, 100, 60));
+            assertTrue(locator.locate(cropped, new Rect(10, 10, 60, 30)));
+            assertEquals(irisX - 10, locator.getX(), 1.0);
+            gray.release();
+        }
+    }
+
+    @Test
+    public void locate_rejectsFlatAndTinyAreas() {
+        Mat flat = new Mat(40, 40, CvType.CV_8UC1);
+        flat.setTo(new org.opencv.core.Scalar(128));
+        IrisLocator locator = new IrisLocator();
+
+        assertFalse(locator.locate(flat, new Rect(5, 5, 30, 30)));
+        assertFalse(locator.locate(flat, new Rect(5, 5, 3, 30)));
+        flat.release();
+    }
+
+    /**
+     * Bright sclera with a dark anti-aliased disk, a darker speckle away from it and some noise.
+     */
+    private static Mat eye(int width, int height, double irisX, double irisY, double radius, Random random) {
+        byte[] data = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double distance = Math.hypot(x - irisX, y - irisY);
+                double coverage = Math.max(0, Math.min(1, radius + 0.5 - distance));
+                double value = 200 - 150 * coverage + random.nextGaussian() * 4;
+                data[y * width + x] = (byte) Math.max(0, Math.min(255, (int) Math.round(value)));
+            }
+        }
+        // a single very dark pixel, where the darkest pixel would end up
+        data[(int) (irisY + 12) * width + 25] = 0;
+        Mat mat = new Mat(height, width, CvType.CV_8UC1);
+        mat.put(0, 0, data);
+        return mat;
+    }
+}
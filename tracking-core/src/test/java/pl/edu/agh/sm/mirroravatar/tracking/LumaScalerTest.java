@@ -0,0 +1,52 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LumaScalerTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Test
+    public void orientedScale_matchesScaleThenRotate() {
+        byte[] yPlane = new byte[WIDTH * HEIGHT];
+        new Random(7).nextBytes(yPlane);
+        LumaScaler scaler = new LumaScaler();
+        EyeTracker tracker = new EyeTracker(null);
+        MatPool pool = new MatPool();
+
+        for (double ratio : new double[]{1.0, 0.5, 0.3}) {
+            for (int rotation : new int[]{0, 90, 180, 270}) {
+                pool.beginFrame();
+                Mat scaled = pool.acquire();
+                scaler.scale(yPlane, WIDTH, HEIGHT, ratio, scaled);
+                Mat expected = tracker.rotate(scaled, rotation, pool);
+                Mat oriented = pool.acquire();
+                scaler.scale(yPlane, WIDTH, HEIGHT, ratio, rotation, oriented);
+
+                String at = "ratio " + ratio + ", rotation " + rotation;
+                assertEquals(at, expected.size(), oriented.size());
+                assertArrayEquals(at, bytes(expected), bytes(oriented));
+                pool.endFrame();
+            }
+        }
+        pool.release();
+    }
+
+    private static byte[] bytes(Mat mat) {
+        byte[] data = new byte[(int) mat.total()];
+        mat.get(0, 0, data);
+        return data;
+    }
+}
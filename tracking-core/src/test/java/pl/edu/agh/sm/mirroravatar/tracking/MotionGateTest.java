@@ -0,0 +1,127 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MotionGateTest {
+
+    private static final Rect AREA = new Rect(20, 10, 48, 32);
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Test
+    public void isStill_skipsNoiseUpToTheLimit() {
+        Random random = new Random(5);
+        MotionGate gate = new MotionGate(8, 8, 4, 3);
+        Mat frame = frame(0, random);
+
+        assertFalse("nothing detected yet", gate.isStill(frame));
+        gate.update(frame, AREA);
+        for (int i = 0; i < 3; i++) {
+            Mat noisy = frame(0, random);
+            assertTrue(gate.isStill(noisy));
+            noisy.release();
+        }
+        assertFalse("at most three skips in a row", gate.isStill(frame));
+        gate.update(frame, AREA);
+        assertTrue(gate.isStill(frame));
+        frame.release();
+    }
+
+    @Test
+    public void isStill_seesTheContentMove() {
+        Random random = new Random(7);
+        MotionGate gate = new MotionGate(8, 8, 4, 10);
+        Mat frame = frame(0, random);
+        gate.update(frame, AREA);
+
+        Mat moved = frame(6, random);
+        assertFalse(gate.isStill(moved));
+        assertTrue(gate.getLastDifference() > 4);
+        // a non continuous view of the same pixels gives the same answer
+        Mat view = moved.submat(new Rect(0, 0, 100, 60));
+        assertFalse(gate.isStill(view));
+        moved.release();
+        frame.release();
+    }
+
+    @Test
+    public void isStill_peakSeesAnIrisMoveThatTheMeanAveragesAway() {
+        Random random = new Random(11);
+        Rect band = new Rect(24, 16, 192, 48);
+        MotionGate mean = new MotionGate(24, 6, 3, 10);
+        MotionGate peak = new MotionGate(24, 6, 4, 10, MotionGate.Difference.PEAK);
+        Mat frame = eyes(100, random);
+        mean.update(frame, band);
+        peak.update(frame, band);
+
+        Mat noisy = eyes(100, random);
+        assertTrue(peak.isStill(noisy));
+        Mat moved = eyes(101, random);
+        assertTrue(mean.isStill(moved));
+        assertFalse(peak.isStill(moved));
+        noisy.release();
+        moved.release();
+        frame.release();
+    }
+
+    @Test
+    public void update_withoutAreaOrAfterResetNeverSkips() {
+        Random random = new Random(9);
+        MotionGate gate = new MotionGate(8, 8, 4, 10);
+        Mat frame = frame(0, random);
+
+        gate.update(frame, null);
+        assertFalse(gate.isStill(frame));
+        gate.update(frame, AREA);
+        gate.reset();
+        assertFalse(gate.isStill(frame));
+        frame.release();
+    }
+
+    /**
+     * Vertical stripes shifted by {@code shift} pixels, with some sensor noise.
+     */
+    private static Mat frame(int shift, Random random) {
+        int width = 120;
+        int height = 80;
+        byte[] data = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double value = ((x + shift) / 12 % 2 == 0 ? 60 : 190) + random.nextGaussian() * 3;
+                data[y * width + x] = (byte) Math.max(0, Math.min(255, (int) Math.round(value)));
+            }
+        }
+        Mat mat = new Mat(height, width, CvType.CV_8UC1);
+        mat.put(0, 0, data);
+        return mat;
+    }
+
+    /**
+     * A bright band with a dark iris centred on {@code irisX}, with some sensor noise.
+     */
+    private static Mat eyes(int irisX, Random random) {
+        int width = 240;
+        int height = 80;
+        byte[] data = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double value = (Math.hypot(x - irisX, y - 40) < 8 ? 40 : 200) + random.nextGaussian() * 3;
+                data[y * width + x] = (byte) Math.max(0, Math.min(255, (int) Math.round(value)));
+            }
+        }
+        Mat mat = new Mat(height, width, CvType.CV_8UC1);
+        mat.put(0, 0, data);
+        return mat;
+    }
+}
@@ -0,0 +1,53 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PipelineStageTest {
+
+    @Test
+    public void failingItem_isPassedOnAndTheStageKeepsRunning() throws InterruptedException {
+        BlockingQueue<int[]> input = new ArrayBlockingQueue<>(4);
+        BlockingQueue<int[]> output = new ArrayBlockingQueue<>(4);
+        PipelineStage<int[]> stage = new PipelineStage<>("Test", input, output, item -> {
+            if (item[0] < 0) {
+                throw new IllegalStateException("bad item");
+            }
+            item[0]++;
+        });
+        stage.start();
+
+        int[] bad = {-1};
+        int[] good = {1};
+        input.put(bad);
+        input.put(good);
+        assertSame(bad, output.poll(5, TimeUnit.SECONDS));
+        assertSame(good, output.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, good[0]);
+        assertTrue(stage.stop());
+    }
+
+    @Test
+    public void stop_reportsAnInterruptedJoin() throws InterruptedException {
+        BlockingQueue<Object> input = new ArrayBlockingQueue<>(1);
+        PipelineStage<Object> stage = new PipelineStage<>("Test", input, new ArrayBlockingQueue<>(1), item -> {
+            // ignores interrupts, like a native detection call
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+            while (System.nanoTime() < end) {
+                Thread.yield();
+            }
+        });
+        stage.start();
+        input.put(new Object());
+        Thread.sleep(50);
+
+        Thread.currentThread().interrupt();
+        assertFalse(stage.stop());
+        assertTrue(Thread.interrupted());
+    }
+}
@@ -0,0 +1,85 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ResolutionGovernorTest {
+
+    @Test
+    public void choosePreviewSize_takesTheSmallestCoveringTheDetection() {
+        int[] widths = {1920, 320, 640, 1280, 800};
+        int[] heights = {1080, 240, 480, 720, 600};
+
+        assertEquals(2, ResolutionGovernor.choosePreviewSize(widths, heights, 600));
+        assertEquals(3, ResolutionGovernor.choosePreviewSize(widths, heights, 1000));
+        // nothing is big enough
+        assertEquals(0, ResolutionGovernor.choosePreviewSize(widths, heights, 4000));
+    }
+
+    @Test
+    public void detectionSize_followsTheLatencyWithHysteresis() {
+        ResolutionGovernor governor = new ResolutionGovernor(0.030, 600, 240);
+        assertEquals(600, governor.getDetectionSize(), 0);
+
+        // a single slow frame is not enough
+        assertFalse(governor.record(0.100));
+        for (int i = 0; i < 5; i++) {
+            assertFalse(governor.record(0.020));
+        }
+        assertEquals(600, governor.getDetectionSize(), 0);
+
+        int frames = 0;
+        while (!governor.record(0.050)) {
+            frames++;
+        }
+        assertTrue(frames > 5);
+        double reduced = governor.getDetectionSize();
+        assertTrue(reduced < 600);
+
+        // within the band nothing moves
+        for (int i = 0; i < 500; i++) {
+            assertFalse(governor.record(0.025));
+        }
+        assertEquals(reduced, governor.getDetectionSize(), 0);
+
+        frames = 0;
+        while (!governor.record(0.010)) {
+            frames++;
+        }
+        assertTrue(frames > 30);
+        assertEquals(600, governor.getDetectionSize(), 0);
+    }
+
+    @Test
+    public void previewSize_followsTheDetectionLevelOnceItHolds() {
+        ResolutionGovernor governor = new ResolutionGovernor(0.030, 600, 240, 1200);
+        assertEquals(1200, governor.getPreviewSize(), 0);
+
+        while (!governor.record(0.050)) {
+            assertEquals(1200, governor.getPreviewSize(), 0);
+        }
+        double reduced = governor.getDetectionSize();
+        // a short stay at the smaller size does not restart the camera
+        for (int i = 0; i < 100; i++) {
+            governor.record(0.025);
+        }
+        assertEquals(1200, governor.getPreviewSize(), 0);
+
+        for (int i = 0; i < 300; i++) {
+            governor.record(0.025);
+        }
+        assertEquals(reduced, governor.getDetectionSize(), 0);
+        assertEquals(Math.round(1200 * reduced / 600), governor.getPreviewSize(), 0);
+    }
+
+    @Test
+    public void detectionSize_staysAboveTheMinimum() {
+        ResolutionGovernor governor = new ResolutionGovernor(0.030, 600, 240);
+        for (int i = 0; i < 10000; i++) {
+            governor.record(1.0);
+        }
+        assertTrue(governor.getDetectionSize() >= 240);
+        assertTrue(governor.getDetectionSize() < 300);
+    }
+}
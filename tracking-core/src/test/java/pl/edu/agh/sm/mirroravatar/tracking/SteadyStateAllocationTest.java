@@ -0,0 +1,219 @@
+package pl.edu.agh.sm.mirroravatar.tracking;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import pl.edu.agh.sm.mirroravatar.camera.CaptureReader;
+import pl.edu.agh.sm.mirroravatar.camera.FrameRecorder;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Replays a recorded capture through the per-frame tracking path and checks that, once everything has been
+ * warmed up, a frame allocates nothing on the Java heap.
+ */
+public class SteadyStateAllocationTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int FRAMES = 60;
+    /**
+     * The sensor image as it is.
+     */
+    private static final int ROTATION = 90;
+    private static final int WARM_UP_PASSES = 30;
+    private static final int MEASURED_PASSES = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ImagePyramid pyramid = new ImagePyramid();
+    private final MatPool pool = new MatPool();
+    private final EyeResult left = new EyeResult();
+    private final EyeResult right = new EyeResult();
+    private final Rect eye = new Rect();
+    private final ResolutionGovernor governor = new ResolutionGovernor(1 / 30.0, EyeTracker.DETECTION_SIZE, 240);
+    private final EyeFlowTracker eyeFlow = new EyeFlowTracker(15);
+    private byte[] data = new byte[0];
+    private int facesFound;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Test
+    public void trackingPath_allocatesNothingPerFrameAfterWarmUp() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        File cascades = new File(System.getProperty("cascades", "../app/src/main/res/raw"));
+        assumeTrue("cascades not found in " + cascades, new File(cascades, "haarcascade_frontalface_alt2.xml").exists());
+        CascadeClassifier faceDetector = classifier(cascades, "haarcascade_frontalface_alt2.xml");
+        CascadeDetector cascadeDetector = CascadeDetector.haar(faceDetector,
+                classifier(cascades, "haarcascade_lefteye_2splits.xml"),
+                classifier(cascades, "haarcascade_righteye_2splits.xml")).withEyeFlow(15);
+        EyeTracker cascadeTracker = new EyeTracker(cascadeDetector);
+        EyeTracker trackingTracker = new EyeTracker(new TrackingOnlyDetector(faceDetector));
+        File capture = record();
+
+        try (CaptureReader reader = new CaptureReader(capture)) {
+            // starts the eye thread
+            replay(reader, cascadeTracker, trackingTracker);
+            assertTrue("the replay should exercise the face tracking", facesFound > 0);
+            long[] ids = {Thread.currentThread().getId(), threadId("EyeDetectorThread")};
+
+            // the warm-up grows the buffers and pools and gets the code, the counter reads included, compiled;
+            // long enough for the JIT to settle, its recompilations materialize a few objects of their own
+            for (int pass = 0; pass < WARM_UP_PASSES; pass++) {
+                measure(threads, ids, reader, cascadeTracker, trackingTracker);
+            }
+            for (int pass = 0; pass < MEASURED_PASSES; pass++) {
+                long allocated = measure(threads, ids, reader, cascadeTracker, trackingTracker);
+                assertEquals("bytes allocated by measured pass " + pass, 0, allocated);
+            }
+        } finally {
+            cascadeTracker.shutdown();
+            trackingTracker.shutdown();
+            eyeFlow.release();
+            pool.release();
+            pyramid.release();
+        }
+    }
+
+    /**
+     * @return bytes allocated by a replay of the capture
+     */
+    private long measure(com.sun.management.ThreadMXBean threads, long[] ids, CaptureReader reader,
+                         EyeTracker cascadeTracker, EyeTracker trackingTracker) {
+        // reading the counters may allocate itself, that is not the frames' doing
+        long overhead = -allocatedBytes(threads, ids) + allocatedBytes(threads, ids);
+        long before = allocatedBytes(threads, ids);
+        int frames = replay(reader, cascadeTracker, trackingTracker);
+        long allocated = allocatedBytes(threads, ids) - before - overhead;
+        assertEquals(FRAMES, frames);
+        return allocated;
+    }
+
+    /**
+     * Runs the stages of every frame of the capture on this thread, the way the pipeline runs them.
+     */
+    private int replay(CaptureReader reader, EyeTracker cascadeTracker, EyeTracker trackingTracker) {
+        reader.rewind();
+        int frames = 0;
+        while (reader.next()) {
+            if (data.length < reader.length()) {
+                data = new byte[reader.length()];
+            }
+            reader.read(data);
+            long start = System.nanoTime();
+            pyramid.build(data, reader.width(), reader.height(), 0.8, 0.6, ROTATION);
+
+            pool.beginFrame();
+            track(cascadeTracker);
+            track(trackingTracker);
+            pool.endFrame();
+
+            // an eye followed on its own, the cascade detector only does that for eyes its cascades find
+            if (!eyeFlow.track(pyramid.getFine(), eye)) {
+                eye.x = 194;
+                eye.y = 155;
+                eye.width = 60;
+                eye.height = 40;
+                eyeFlow.start(pyramid.getFine(), eye);
+            }
+            governor.record((System.nanoTime() - start) / 1e9);
+            frames++;
+        }
+        return frames;
+    }
+
+    private void track(EyeTracker tracker) {
+        Rect face = tracker.detectFace(pyramid.getCoarse(), ROTATION, pool);
+        left.clear();
+        right.clear();
+        if (face != null) {
+            facesFound++;
+            tracker.detectEyes(pyramid, face, left, right);
+        }
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threads, long[] ids) {
+        long bytes = 0;
+        for (long id : ids) {
+            bytes += threads.getThreadAllocatedBytes(id);
+        }
+        return bytes;
+    }
+
+    private static long threadId(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread.getId();
+            }
+        }
+        throw new AssertionError("No thread named " + name);
+    }
+
+    private static CascadeClassifier classifier(File dir, String name) throws IOException {
+        CascadeClassifier classifier = new CascadeClassifier(new File(dir, name).getAbsolutePath());
+        if (classifier.empty()) {
+            throw new IOException("Could not load cascade " + name);
+        }
+        return classifier;
+    }
+
+    /**
+     * A drawn face swaying sideways with the irises moving, as NV21 frames.
+     */
+    private File record() throws IOException {
+        File file = folder.newFile("capture.bin");
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        try (FrameRecorder recorder = new FrameRecorder(file)) {
+            for (int i = 0; i < FRAMES; i++) {
+                Mat luma = face(12 * Math.sin(i * 0.2), 4 * Math.sin(i * 0.5));
+                luma.get(0, 0, frame);
+                luma.release();
+                for (int c = WIDTH * HEIGHT; c < frame.length; c++) {
+                    frame[c] = (byte) 128;
+                }
+                recorder.write(frame, WIDTH, HEIGHT, i * 33_000_000L);
+            }
+        }
+        return file;
+    }
+
+    private static Mat face(double shift, double gaze) {
+        Mat mat = new Mat(HEIGHT, WIDTH, CvType.CV_8UC1, new Scalar(90));
+        double cx = WIDTH / 2.0 + shift;
+        double cy = HEIGHT / 2.0;
+        Imgproc.ellipse(mat, new Point(cx, cy), new Size(95, 125), 0, 0, 360, new Scalar(185), -1);
+        for (int side : new int[]{-1, 1}) {
+            Point eyeCentre = new Point(cx + side * 40, cy - 25);
+            Imgproc.line(mat, new Point(cx + side * 20, cy - 55), new Point(cx + side * 62, cy - 58), new Scalar(60), 7);
+            Imgproc.ellipse(mat, eyeCentre, new Size(22, 11), 0, 0, 360, new Scalar(235), -1);
+            Imgproc.circle(mat, new Point(eyeCentre.x + gaze, eyeCentre.y), 9, new Scalar(35), -1);
+        }
+        Imgproc.line(mat, new Point(cx, cy - 15), new Point(cx - 8, cy + 25), new Scalar(140), 5);
+        Imgproc.ellipse(mat, new Point(cx, cy + 62), new Size(35, 10), 0, 0, 360, new Scalar(80), -1);
+        Imgproc.GaussianBlur(mat, mat, new Size(0, 0), 2.5);
+        return mat;
+    }
+}